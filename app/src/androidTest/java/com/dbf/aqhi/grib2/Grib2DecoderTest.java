@@ -0,0 +1,239 @@
+package com.dbf.aqhi.grib2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.dbf.aqhi.api.datamart.Pollutant;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+public class Grib2DecoderTest {
+
+    //The unit scale of the pollutant is cancelled by the decimal scale, so the decoded values are the packed integers
+    private static final Pollutant POLLUTANT = Pollutant.PM25;
+    private static final int DECIMAL_SCALE = 9;
+    private static final float DELTA = 1e-3f;
+
+    /**
+     * Big-endian bit writer, the counterpart of {@link Grib2BitReader}.
+     */
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int buffer;
+        private int bitCount;
+
+        BitWriter write(int value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                buffer = (buffer << 1) | ((value >>> i) & 1);
+                if (++bitCount == 8) flush();
+            }
+            return this;
+        }
+
+        BitWriter writeSigned(int value, int bits) {
+            return write(value < 0 ? (1 << (bits - 1)) | -value : value, bits);
+        }
+
+        BitWriter align() {
+            while (bitCount != 0) write(0, 1);
+            return this;
+        }
+
+        private void flush() {
+            out.write(buffer);
+            buffer = 0;
+            bitCount = 0;
+        }
+
+        byte[] toBytes() {
+            align();
+            return out.toByteArray();
+        }
+    }
+
+    private static Grib2ValueWriter createWriter(Grib2DataMetaData scaleMeta, int pointCount) {
+        return new Grib2ValueWriter(pointCount, scaleMeta, POLLUTANT, 255);
+    }
+
+    private static void assertValues(float[] expected, Grib2ValueWriter writer) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Value " + i, expected[i], writer.values[i], DELTA);
+        }
+    }
+
+    @Test
+    public void testSimplePacking() {
+        final int[] packed = {0, 1, 4095, 2048, 7, 300, 1234};
+        final BitWriter bits = new BitWriter();
+        for (int x : packed) bits.write(x, 12);
+        final byte[] data = bits.toBytes();
+
+        final Grib2DataMetaData scaleMeta = new Grib2DataMetaData(5f, 0, DECIMAL_SCALE, 12, 0, Grib2Parser.DATA_TEMPLATE_SIMPLE, packed.length);
+        final Grib2ValueWriter writer = createWriter(scaleMeta, packed.length);
+        Grib2SimpleDecoder.decode(data, 0, data.length, scaleMeta, writer, packed.length);
+
+        final float[] expected = new float[packed.length];
+        for (int i = 0; i < packed.length; i++) expected[i] = 5 + packed[i];
+        assertValues(expected, writer);
+    }
+
+    @Test
+    public void testComplexPackingWithMissingValues() {
+        //Groups: [3, 4], all missing (the reference is the primary missing value), [8, missing, 5, 2]
+        final BitWriter bits = new BitWriter();
+        bits.write(3, 4).write(15, 4).write(2, 4).align(); //Group references
+        bits.write(2, 2).write(0, 2).write(3, 2).align();  //Group widths, reference 0
+        bits.write(0, 3).write(1, 3).write(2, 3).align();  //Scaled group lengths, reference 2, the last one is stored as well
+        bits.write(0, 2).write(1, 2);                      //Group 0, width 2
+        bits.write(6, 3).write(7, 3).write(3, 3).write(0, 3); //Group 2, width 3, all ones is the primary missing value
+        final byte[] data = bits.toBytes();
+
+        final Grib2ComplexPacking packing = new Grib2ComplexPacking(1, 1, 3, 0, 2, 2, 1, 4, 3, 0, 0);
+        final Grib2DataMetaData scaleMeta = new Grib2DataMetaData(0f, 0, DECIMAL_SCALE, 4, 0, Grib2Parser.DATA_TEMPLATE_COMPLEX, 9, packing);
+        final Grib2ValueWriter writer = createWriter(scaleMeta, 9);
+        Grib2ComplexDecoder.decode(data, 0, data.length, scaleMeta, writer, 9);
+
+        assertValues(new float[]{3, 4, Float.NaN, Float.NaN, Float.NaN, 8, Float.NaN, 5, 2}, writer);
+    }
+
+    @Test
+    public void testComplexPackingWithSpatialDifferencing() {
+        //Second order differences of the values, minus their minimum of -11: [12, 12, 8, 20, 0]
+        //The first two values are stored as descriptors, their packed values are ignored
+        final float[] expected = {10, 12, 15, 19, 20, 30, 29};
+        final BitWriter bits = new BitWriter();
+        bits.writeSigned(10, 16).writeSigned(12, 16).writeSigned(-11, 16); //First values & minimum difference
+        bits.write(0, 4).write(8, 4).write(0, 4).align();                  //Group references
+        bits.write(1, 2).write(0, 2).write(2, 2).align();                  //Group widths, reference 3
+        //Scaled group lengths, reference 2. The last one is stored as well, 12 bits take 2 octets where 8 bits would take 1
+        bits.write(1, 4).write(0, 4).write(0, 4).align();
+        bits.write(0, 4).write(0, 4).write(12, 4); //Group 0, width 4
+        bits.write(4, 3).write(0, 3);              //Group 1, width 3
+        bits.write(20, 5).write(0, 5);             //Group 2, width 5
+        final byte[] data = bits.toBytes();
+
+        final Grib2ComplexPacking packing = new Grib2ComplexPacking(1, 0, 3, 3, 2, 2, 1, 2, 4, 2, 2);
+        final Grib2DataMetaData scaleMeta = new Grib2DataMetaData(0f, 0, DECIMAL_SCALE, 4, 0, Grib2Parser.DATA_TEMPLATE_COMPLEX_SPATIAL, expected.length, packing);
+        final Grib2ValueWriter writer = createWriter(scaleMeta, expected.length);
+        Grib2ComplexDecoder.decode(data, 0, data.length, scaleMeta, writer, expected.length);
+
+        assertValues(expected, writer);
+    }
+
+    @Test
+    public void testPngFilters() {
+        //16 bit grayscale, 3x3, one row per filter: Sub, Up & Paeth
+        final int width = 3;
+        final int[][] rows = {{1000, 1010, 990}, {1000, 65535, 0}, {300, 299, 40000}};
+        final int[] filters = {1, 2, 4};
+        final int rowBytes = width * 2;
+
+        final byte[] raw = new byte[rows.length * (rowBytes + 1)];
+        byte[] previous = new byte[rowBytes];
+        for (int row = 0; row < rows.length; row++) {
+            final byte[] current = new byte[rowBytes];
+            for (int col = 0; col < width; col++) {
+                current[col * 2] = (byte) (rows[row][col] >>> 8);
+                current[col * 2 + 1] = (byte) rows[row][col];
+            }
+            final int start = row * (rowBytes + 1);
+            raw[start] = (byte) filters[row];
+            for (int i = 0; i < rowBytes; i++) {
+                final int left = i >= 2 ? current[i - 2] & 0xFF : 0;
+                final int up = previous[i] & 0xFF;
+                final int upLeft = i >= 2 ? previous[i - 2] & 0xFF : 0;
+                final int predictor;
+                switch (filters[row]) {
+                    case 1: predictor = left; break;
+                    case 2: predictor = up; break;
+                    default: predictor = paeth(left, up, upLeft); break;
+                }
+                raw[start + 1 + i] = (byte) (current[i] - predictor);
+            }
+            previous = current;
+        }
+
+        final byte[] data = createPng(width, rows.length, 16, raw);
+        final Grib2DataMetaData scaleMeta = new Grib2DataMetaData(0f, 0, DECIMAL_SCALE, 16, 0, Grib2Parser.DATA_TEMPLATE_PNG, width * rows.length);
+        final Grib2ValueWriter writer = createWriter(scaleMeta, width * rows.length);
+        Grib2PngDecoder.decode(data, 0, data.length, scaleMeta, writer, width * rows.length);
+
+        final float[] expected = new float[width * rows.length];
+        for (int i = 0; i < expected.length; i++) expected[i] = rows[i / width][i % width];
+        assertValues(expected, writer);
+    }
+
+    @Test
+    public void testBitmapExpand() {
+        //Grid points 0, 3, 4 & 9 hold a value
+        final byte[] bytes = {(byte) 0b10011000, (byte) 0b01000000};
+        final Grib2Bitmap bitmap = Grib2Bitmap.fromBytes(bytes, 0, bytes.length, 10);
+        assertEquals("Valid count", 4, bitmap.getValidCount());
+
+        final float[] values = {1, 2, 3, 4, 0, 0, 0, 0, 0, 0};
+        final byte[] pixels = {10, 20, 30, 40, 0, 0, 0, 0, 0, 0};
+        bitmap.expand(values, pixels);
+
+        final float[] expected = {1, Float.NaN, Float.NaN, 2, 3, Float.NaN, Float.NaN, Float.NaN, Float.NaN, 4};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Value " + i, expected[i], values[i], 0f);
+            assertTrue("Pixel " + i, Float.isNaN(expected[i]) ? pixels[i] == 0 : pixels[i] == expected[i] * 10);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * @return a grayscale PNG image of already filtered rows, the CRCs are not checked by the decoder and left empty
+     */
+    private static byte[] createPng(int width, int height, int bitDepth, byte[] filteredRows) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(filteredRows);
+        deflater.finish();
+        final byte[] compressed = new byte[filteredRows.length + 64];
+        final int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        writeInt(png, 0x89504E47);
+        writeInt(png, 0x0D0A1A0A);
+
+        writeInt(png, 13);
+        writeInt(png, 0x49484452); //IHDR
+        writeInt(png, width);
+        writeInt(png, height);
+        png.write(bitDepth);
+        png.write(0); //Grayscale
+        png.write(0); //Compression
+        png.write(0); //Filter method
+        png.write(0); //No interlace
+        writeInt(png, 0);
+
+        writeInt(png, compressedLength);
+        writeInt(png, 0x49444154); //IDAT
+        png.write(compressed, 0, compressedLength);
+        writeInt(png, 0);
+
+        writeInt(png, 0);
+        writeInt(png, 0x49454E44); //IEND
+        writeInt(png, 0);
+        return png.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
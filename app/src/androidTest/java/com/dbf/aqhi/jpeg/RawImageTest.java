@@ -0,0 +1,97 @@
+package com.dbf.aqhi.jpeg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RawImageTest {
+
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+    private static final int SAMPLES = 256;
+
+    private static RawImage createImage(long seed) {
+        final Random random = new Random(seed);
+        final byte[] pixels = new byte[WIDTH * HEIGHT];
+        final float[] values = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) random.nextInt(256);
+            values[i] = random.nextFloat() * 100f;
+        }
+        return new RawImage(WIDTH, HEIGHT, pixels, values);
+    }
+
+    @Test
+    public void testPixelSpanInside() {
+        final RawImage image = createImage(1);
+        final Random random = new Random(2);
+        final double[] x = new double[SAMPLES];
+        final double[] y = new double[SAMPLES];
+        for (int row = 0; row < 20; row++) {
+            for (int i = 0; i < SAMPLES; i++) {
+                x[i] = random.nextDouble() * (WIDTH - 1.001);
+                y[i] = random.nextDouble() * (HEIGHT - 1.001);
+            }
+            assertPixelSpan(image, x, y);
+        }
+    }
+
+    @Test
+    public void testPixelSpanEdges() {
+        final RawImage image = createImage(3);
+        final Random random = new Random(4);
+        final double[] x = new double[SAMPLES];
+        final double[] y = new double[SAMPLES];
+        for (int row = 0; row < 20; row++) {
+            //Include positions outside the grid, and exactly on the last row and column
+            for (int i = 0; i < SAMPLES; i++) {
+                x[i] = (i % 7 == 0) ? WIDTH - 1 : random.nextDouble() * (WIDTH + 4) - 2;
+                y[i] = (i % 11 == 0) ? HEIGHT - 1 : random.nextDouble() * (HEIGHT + 4) - 2;
+            }
+            x[0] = Double.NaN;
+            assertPixelSpan(image, x, y);
+        }
+    }
+
+    @Test
+    public void testValueSpan() {
+        final RawImage image = createImage(5);
+        final Random random = new Random(6);
+        final int[] fixedX = new int[SAMPLES];
+        final int[] fixedY = new int[SAMPLES];
+        final float[] out = new float[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            fixedX[i] = RawImage.toFixed(random.nextDouble() * (WIDTH - 1));
+            fixedY[i] = RawImage.toFixed(random.nextDouble() * (HEIGHT - 1));
+        }
+        image.sampleValuesSpan(fixedX, fixedY, out, SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            final float expected = image.sampleValuesBilinear((float) fixedX[i] / RawImage.FIXED_ONE, (float) fixedY[i] / RawImage.FIXED_ONE);
+            assertEquals("value mismatch at " + i, expected, out[i], 1e-3f);
+        }
+    }
+
+    private static void assertPixelSpan(RawImage image, double[] x, double[] y) {
+        final int[] fixedX = new int[SAMPLES];
+        final int[] fixedY = new int[SAMPLES];
+        final int[] out = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            fixedX[i] = RawImage.toFixed(x[i]);
+            fixedY[i] = RawImage.toFixed(y[i]);
+        }
+        image.samplePixelsSpan(fixedX, fixedY, out, SAMPLES);
+
+        for (int i = 0; i < SAMPLES; i++) {
+            final int expected = image.samplePixelsBilinear(x[i], y[i]);
+            if (expected < 0) {
+                assertEquals("outside mismatch at (" + x[i] + ", " + y[i] + ")", -1, out[i]);
+            } else {
+                //Within 1 alpha level of the double precision result
+                assertTrue("pixel mismatch at (" + x[i] + ", " + y[i] + "): " + expected + " != " + out[i], Math.abs(expected - out[i]) <= 1);
+            }
+        }
+    }
+}
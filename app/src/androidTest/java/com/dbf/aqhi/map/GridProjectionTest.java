@@ -0,0 +1,128 @@
+package com.dbf.aqhi.map;
+
+import static com.dbf.aqhi.AQHIFeature.MAP_HEIGHT;
+import static com.dbf.aqhi.AQHIFeature.MAP_WIDTH;
+import static org.junit.Assert.assertEquals;
+
+import android.util.Pair;
+
+import com.dbf.aqhi.Utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class GridProjectionTest {
+
+    //Less than 0.1% of a grid cell, about 10m
+    private static final double GRID_TOLERANCE = 1e-3;
+    private static final double ATAN_TOLERANCE = 2.5e-7;
+    private static final int SAMPLES = 100000;
+
+    //Rotated grid of the regional air quality model
+    private static final double SOUTH_POLE_LAT = -36.0885;
+    private static final double SOUTH_POLE_LON = 245.305;
+    private static final double R_LAT_ZERO = -31.860001;
+    private static final double R_LON_ZERO = -39.537223;
+    private static final double GRID_SCALE_INV = 1.0 / 0.09;
+
+    private static final double LAM_P = Math.toRadians(Utils.wrapLongitude(-Utils.wrapLongitude(SOUTH_POLE_LON) + 180.0));
+    private static final double SIN_PHI_P = Math.sin(Math.toRadians(-SOUTH_POLE_LAT));
+    private static final double COS_PHI_P = Math.cos(Math.toRadians(-SOUTH_POLE_LAT));
+
+    private static final double[][] testPoints = new double[][]{
+            {45.4215, -75.6972},  // Ottawa
+            {43.6532, -79.3832},  // Toronto
+            {46.8139, -71.2080},  // Québec City
+            {49.2827, -123.1207}, // Vancouver
+            {53.5461, -113.4938}  // Edmonton
+    };
+
+    private final GridProjection projection = new GridProjection(LAM_P, SIN_PHI_P, COS_PHI_P, R_LAT_ZERO, R_LON_ZERO, GRID_SCALE_INV, GRID_SCALE_INV);
+
+    /**
+     * The transformation as it was done before the fused kernel, from MapTransformer and the rotation of the pole.
+     */
+    private static void referenceLatLonToGrid(double lat, double lon, double[] yx) {
+        final double phi = Math.toRadians(lat);
+        final double lam = Math.toRadians(lon + 4.8);
+
+        final double sinLat = Math.sin(phi);
+        final double cosLat = Math.cos(phi);
+
+        final double dLam = lam - LAM_P;
+        final double cosLatCosDLam = Math.cos(dLam) * cosLat;
+
+        final double phiR = Math.asin((sinLat * SIN_PHI_P) - (COS_PHI_P * cosLatCosDLam));
+        final double lamR = Math.atan2(cosLat * Math.sin(dLam), (sinLat * COS_PHI_P) + (SIN_PHI_P * cosLatCosDLam));
+
+        yx[0] = (Math.toDegrees(phiR) - R_LAT_ZERO) * GRID_SCALE_INV;
+        yx[1] = (Math.toDegrees(lamR) - R_LON_ZERO) * GRID_SCALE_INV;
+    }
+
+    private static void referencePixelToGrid(double x, double y, double[] yx) {
+        MapTransformer.transformXY(x, y, yx);
+        referenceLatLonToGrid(yx[0], yx[1], yx);
+    }
+
+    private void assertPixel(double x, double y) {
+        final double[] expected = new double[2];
+        final double[] actual = new double[2];
+        referencePixelToGrid(x, y, expected);
+        projection.pixelToGrid(x, y, actual);
+        assertEquals("Y mismatch at (" + x + "," + y + ")", expected[0], actual[0], GRID_TOLERANCE);
+        assertEquals("X mismatch at (" + x + "," + y + ")", expected[1], actual[1], GRID_TOLERANCE);
+    }
+
+    @Test
+    public void testControlPoints() {
+        final double[] expected = new double[2];
+        final double[] actual = new double[2];
+        for (double[] p : testPoints) {
+            referenceLatLonToGrid(p[0], p[1], expected);
+            projection.latLonToGrid(p[0], p[1], actual);
+            assertEquals("Y mismatch", expected[0], actual[0], GRID_TOLERANCE);
+            assertEquals("X mismatch", expected[1], actual[1], GRID_TOLERANCE);
+
+            final Pair<Integer, Integer> xy = MapTransformer.transformLatLon(p[0], p[1]);
+            assertPixel(xy.first, xy.second);
+        }
+    }
+
+    @Test
+    public void testRandomPixels() {
+        final Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            assertPixel(random.nextDouble() * MAP_WIDTH, random.nextDouble() * MAP_HEIGHT);
+        }
+    }
+
+    @Test
+    public void testRandomLatLon() {
+        final Random random = new Random(2);
+        final double[] expected = new double[2];
+        final double[] actual = new double[2];
+        for (int i = 0; i < SAMPLES; i++) {
+            final double lat = 40 + random.nextDouble() * 45;
+            final double lon = -145 + random.nextDouble() * 95;
+            referenceLatLonToGrid(lat, lon, expected);
+            projection.latLonToGrid(lat, lon, actual);
+            assertEquals("Y mismatch at (" + lat + "," + lon + ")", expected[0], actual[0], GRID_TOLERANCE);
+            assertEquals("X mismatch at (" + lat + "," + lon + ")", expected[1], actual[1], GRID_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void testAtan2() {
+        assertEquals(0, GridProjection.atan2(0, 0), 0);
+
+        final Random random = new Random(3);
+        for (int i = 0; i < SAMPLES; i++) {
+            final double angle = (random.nextDouble() * 2 - 1) * Math.PI;
+            final double radius = Math.exp((random.nextDouble() * 2 - 1) * 10);
+            final double y = Math.sin(angle) * radius;
+            final double x = Math.cos(angle) * radius;
+            assertEquals("atan2(" + y + "," + x + ")", Math.atan2(y, x), GridProjection.atan2(y, x), ATAN_TOLERANCE);
+        }
+    }
+}
@@ -8,6 +8,10 @@
 #define LOG_WARN(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOG_INFO(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 
+//Layout of the statistics arrays, see ImageStats
+#define STATS_BINS 32
+#define STATS_LEVELS 3
+
 static void error_callback(const char *msg, void *client_data) {
     LOG_ERROR("OpenJPEG error: %s", msg);
 }
@@ -80,7 +84,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
     (*env)->DeleteLocalRef(env, rawImage_class_local);
     if (!rawImage_class) return JNI_ERR;
 
-    rawImage_constructor = (*env)->GetMethodID(env, rawImage_class, "<init>", "(II[B[F)V");
+    rawImage_constructor = (*env)->GetMethodID(env, rawImage_class, "<init>", "(II[B[FIII)V");
     if (!rawImage_constructor) {
         LOG_ERROR("Could not find RawImage constructor.");
         return JNI_ERR;
@@ -101,11 +105,17 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved) {
     rawImage_constructor = NULL;
 }
 
-JNIEXPORT jobject JNICALL
-Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000(
-        JNIEnv *env, jclass clazz, jobject data, jint offset, jint length, jfloat data_scale, jfloat min_val, jfloat max_val, jint max_alpha) {
+/**
+ * Decodes the JPEG 2000 codestream contained in a Java direct ByteBuffer.
+ * On success, the returned image must be destroyed with opj_image_destroy.
+ * The reduction is updated with the one that was actually applied, and the origin is the position
+ * of the decoded area within the full image, at the decoded resolution.
+ */
+static opj_image_t* decode_image(JNIEnv *env, jobject data, jint offset, jint length, jint* reduction,
+                                 jint area_x0, jint area_y0, jint area_x1, jint area_y1, jint num_threads,
+                                 int* origin_x, int* origin_y) {
 
-    LOG_INFO("Starting JPEG2000 image decompression.");
+    LOG_INFO("Starting JPEG2000 image decompression, reduction=%d, area=(%d,%d)-(%d,%d), threads=%d.", *reduction, area_x0, area_y0, area_x1, area_y1, num_threads);
 
     //Extract the data from a Java direct ByteBuffer
     const unsigned char* data_addr_base = (unsigned char*)(*env)->GetDirectBufferAddress(env, data);
@@ -125,12 +135,9 @@ Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000(
     opj_codec_t* l_codec = NULL;
     opj_image_t* l_image = NULL;
     opj_dparameters_t parameters;
-
-    //Output data arrays
-    jbyte*  outPixels = NULL;
-    jfloat* outVals   = NULL;
-
-    jobject decoded_img = NULL; //Java return object
+    OPJ_UINT32 full_x0 = 0; //Origin of the full image, before any decode area is applied
+    OPJ_UINT32 full_y0 = 0;
+    OPJ_BOOL success = OPJ_FALSE;
 
     opj_set_default_decoder_parameters(&parameters);
 
@@ -161,10 +168,52 @@ Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000(
         LOG_ERROR("Failed to setup decoder.");
         goto cleanup;
     }
+
+    //Decode the code-blocks in parallel. Must be set before reading the header.
+    //The thread count is governed by the caller, so that concurrent decodes never oversubscribe the cores.
+    if (num_threads > 1) {
+        if (!opj_has_thread_support()) {
+            LOG_WARN("OpenJPEG was built without thread support, decoding with a single thread.");
+        } else if (!opj_codec_set_threads(l_codec, num_threads)) {
+            LOG_WARN("Failed to set the number of decode threads to %d.", num_threads);
+        }
+    }
     if (!opj_read_header(l_stream, l_codec, &l_image)) {
         LOG_ERROR("Failed to read image header.");
         goto cleanup;
     }
+    full_x0 = l_image->x0;
+    full_y0 = l_image->y0;
+
+    //Discard the highest resolution levels of the wavelet transform, each level halves the width and height.
+    //The codestream may have fewer levels than requested, in which case use as many as possible.
+    while (*reduction > 0 && !opj_set_decoded_resolution_factor(l_codec, (OPJ_UINT32) *reduction)) {
+        LOG_WARN("Unable to reduce the resolution by %d level(s).", *reduction);
+        (*reduction)--;
+    }
+
+    //Only decode the code-blocks covering the requested area, in full resolution grid coordinates.
+    //An empty area means the whole image.
+    if (area_x1 > area_x0 && area_y1 > area_y0) {
+        //Clamp to the image, OpenJPEG rejects areas that extend outside of it
+        const OPJ_INT32 img_x0 = (OPJ_INT32) l_image->x0;
+        const OPJ_INT32 img_y0 = (OPJ_INT32) l_image->y0;
+        const OPJ_INT32 img_x1 = (OPJ_INT32) l_image->x1;
+        const OPJ_INT32 img_y1 = (OPJ_INT32) l_image->y1;
+        const OPJ_INT32 x0 = (img_x0 + area_x0 > img_x1) ? img_x1 : img_x0 + area_x0;
+        const OPJ_INT32 y0 = (img_y0 + area_y0 > img_y1) ? img_y1 : img_y0 + area_y0;
+        const OPJ_INT32 x1 = (img_x0 + area_x1 > img_x1) ? img_x1 : img_x0 + area_x1;
+        const OPJ_INT32 y1 = (img_y0 + area_y1 > img_y1) ? img_y1 : img_y0 + area_y1;
+        if (x1 <= x0 || y1 <= y0) {
+            LOG_ERROR("Decode area is outside of the image.");
+            goto cleanup;
+        }
+        if (!opj_set_decode_area(l_codec, l_image, x0, y0, x1, y1)) {
+            LOG_ERROR("Failed to set the decode area.");
+            goto cleanup;
+        }
+    }
+
     if (!opj_decode(l_codec, l_stream, l_image)) {
         LOG_ERROR("Failed to decode image.");
         goto cleanup;
@@ -179,60 +228,225 @@ Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000(
         goto cleanup;
     }
 
-    //Retrieve image format information
-    opj_image_comp_t* comp = &l_image->comps[0];
-    const int precision = comp->prec;     // e.g., 12, 16, 8
-    const int is_signed = comp->sgnd;
-    const int factor = comp->factor;
+    //Position of the decoded area within the full image, at the decoded resolution
+    const opj_image_comp_t* comp = &l_image->comps[0];
+    const OPJ_UINT32 factor = comp->factor;
+    *origin_x = (int) (((comp->x0 + (1u << factor) - 1) >> factor) - ((full_x0 + (1u << factor) - 1) >> factor));
+    *origin_y = (int) (((comp->y0 + (1u << factor) - 1) >> factor) - ((full_y0 + (1u << factor) - 1) >> factor));
+
+    LOG_INFO("Image data: components=%d, precision=%d, signed=%d, factor=%d, width=%d, height=%d, origin=(%d,%d)",
+             l_image->numcomps, comp->prec, comp->sgnd, factor, comp->w, comp->h, *origin_x, *origin_y);
+    success = OPJ_TRUE;
+
+    //End of processing
+    cleanup:
+    if (l_codec) opj_destroy_codec(l_codec);
+    if (l_stream) opj_stream_destroy(l_stream);
+    if (!success && l_image) {
+        opj_image_destroy(l_image);
+        l_image = NULL;
+    }
+    return l_image;
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000(
+        JNIEnv *env, jclass clazz, jobject data, jint offset, jint length, jint reduction,
+        jint area_x0, jint area_y0, jint area_x1, jint area_y1, jint num_threads,
+        jfloat data_offset, jfloat data_scale, jfloat min_val, jfloat max_val, jint max_alpha,
+        jbyteArray out_pixels, jfloatArray out_values,
+        jfloatArray stats_params, jintArray out_stats_counts, jdoubleArray out_stats_summary) {
+
+    int origin_x = 0;
+    int origin_y = 0;
+    opj_image_t* l_image = decode_image(env, data, offset, length, &reduction, area_x0, area_y0, area_x1, area_y1, num_threads, &origin_x, &origin_y);
+    if (!l_image) return NULL;
+
+    //Output data arrays, provided by the caller when possible
+    jbyteArray pixel_array  = NULL;
+    jfloatArray value_array = NULL;
+    jbyte*  outPixels = NULL;
+    jfloat* outVals   = NULL;
+
+    jobject decoded_img = NULL; //Java return object
+
+    //Use first image component only (greyscale)
+    const opj_image_comp_t* comp = &l_image->comps[0];
     const int width  = comp->w;
     const int height = comp->h;
     const int pixel_cnt = width * height;
 
-    //Singed ranges from -2^(precision-1) to (2^(precision-1))-1
-    //Unsigned ranges from 0 to (2^precision)-1
-    const int min_val_img = is_signed ? -(1 << (precision - 1)) : 0;
-    const int max_val_img = is_signed ? (1 << (precision - 1)) - 1 : (1 << precision) - 1;
     const float alphaScaleFactor = max_alpha/(max_val - min_val);
     const jbyte min_val_byte = (jbyte) min_val;
     const jbyte max_alpha_byte = (jbyte) max_alpha;
 
-    LOG_INFO("Image data: components=%d, precision=%d, signed=%d, factor=%d, min_val=%d, max_val=%d, width=%d, height=%d, pixel_cnt=%d",
-             l_image->numcomps, precision, is_signed, factor, min_val_img, max_val_img, width, height, pixel_cnt);
+    //Statistics of the values, see ImageStats: histogram min, histogram max and the levels, undefined levels are negative
+    const int with_stats = stats_params && out_stats_counts && out_stats_summary;
+    jfloat params[2 + STATS_LEVELS] = {0};
+    jint counts[STATS_BINS + STATS_LEVELS] = {0};
+    double sum = 0;
+    float stats_min = 0;
+    float stats_max = 0;
+    if (with_stats) (*env)->GetFloatArrayRegion(env, stats_params, 0, 2 + STATS_LEVELS, params);
+    const float bin_scale = with_stats ? STATS_BINS / (params[1] - params[0]) : 0;
+
+    //Write directly into the caller's arrays, unless they are too small (e.g. the resolution could not be reduced as requested)
+    if (out_pixels && out_values
+            && (*env)->GetArrayLength(env, out_pixels) >= pixel_cnt
+            && (*env)->GetArrayLength(env, out_values) >= pixel_cnt) {
+        pixel_array = out_pixels;
+        value_array = out_values;
+    } else {
+        if (out_pixels || out_values) LOG_WARN("Provided output arrays are too small for %d pixels, allocating new ones.", pixel_cnt);
+        pixel_array = (*env)->NewByteArray(env, pixel_cnt);
+        value_array = (*env)->NewFloatArray(env, pixel_cnt);
+        if (!pixel_array || !value_array) {
+            LOG_ERROR("Failed to allocate output arrays.");
+            goto cleanup;
+        }
+    }
 
-    //Allocate and fill the output pixel array
-    jbyteArray pixel_array  = (*env)->NewByteArray(env, pixel_cnt);
-    jfloatArray value_array = (*env)->NewFloatArray(env, pixel_cnt);
-    if (!pixel_array || !value_array) {
-        LOG_ERROR("Failed to allocate output arrays.");
+    //Pin the arrays to avoid any copy. No JNI calls are allowed until they are released.
+    outPixels = (jbyte*)(*env)->GetPrimitiveArrayCritical(env, pixel_array, NULL);
+    outVals  = (jfloat*)(*env)->GetPrimitiveArrayCritical(env, value_array, NULL);
+    if (!outPixels || !outVals) {
+        LOG_ERROR("Failed to access the output arrays.");
         goto cleanup;
     }
-    outPixels = (jbyte*)(*env)->GetByteArrayElements (env, pixel_array, NULL);
-    outVals  = (jfloat*)(*env)->GetFloatArrayElements(env, value_array, NULL);
 
-    //Use first image component only (greyscale)
+    const OPJ_INT32* in = comp->data;
+    if (with_stats && pixel_cnt > 0) stats_min = stats_max = data_offset + in[0] * data_scale;
     for (int i = 0; i < pixel_cnt; ++i) {
-        outVals[i] = comp->data[i] * data_scale;
-        if (outVals[i] < min_val) {
+        const float val = data_offset + in[i] * data_scale;
+        outVals[i] = val;
+        if (val < min_val) {
             outPixels[i] = min_val_byte;
-        } else if (outVals[i] > max_val){
+        } else if (val > max_val){
             outPixels[i] = max_alpha_byte;
         } else {
-            outPixels[i] = (jbyte) ((outVals[i] - min_val) * alphaScaleFactor);
+            outPixels[i] = (jbyte) ((val - min_val) * alphaScaleFactor);
+        }
+
+        //Accumulated while the value is at hand, the branch is the same for every pixel
+        if (with_stats) {
+            if (val < stats_min) stats_min = val;
+            else if (val > stats_max) stats_max = val;
+            sum += val;
+            for (int l = 0; l < STATS_LEVELS; ++l) {
+                if (params[2 + l] >= 0 && val > params[2 + l]) counts[STATS_BINS + l]++;
+            }
+            const int bin = (int) ((val - params[0]) * bin_scale);
+            counts[bin < 0 ? 0 : (bin >= STATS_BINS ? STATS_BINS - 1 : bin)]++;
         }
     }
 
+    (*env)->ReleasePrimitiveArrayCritical(env, value_array, outVals, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, pixel_array, outPixels, 0);
+    outVals = NULL;
+    outPixels = NULL;
+
+    if (with_stats) {
+        const jdouble summary[3] = { sum, stats_min, stats_max };
+        (*env)->SetIntArrayRegion(env, out_stats_counts, 0, STATS_BINS + STATS_LEVELS, counts);
+        (*env)->SetDoubleArrayRegion(env, out_stats_summary, 0, 3, summary);
+    }
+
     //Manually invoke the constructor of the output object (RawImage type)
-    decoded_img = (*env)->NewObject(env, rawImage_class, rawImage_constructor, width, height, pixel_array, value_array);
+    decoded_img = (*env)->NewObject(env, rawImage_class, rawImage_constructor, width, height, pixel_array, value_array, reduction, origin_x, origin_y);
 
     //End of processing
     cleanup:
-    if (l_image) opj_image_destroy(l_image);
-    if (l_codec) opj_destroy_codec(l_codec);
-    if (l_stream) opj_stream_destroy(l_stream);
-    if (outPixels) (*env)->ReleaseByteArrayElements(env, pixel_array, outPixels, 0);
-    if (outVals)   (*env)->ReleaseFloatArrayElements(env, value_array, outVals, 0);
+    //Critical regions are released in the reverse order they were acquired
+    if (outVals)   (*env)->ReleasePrimitiveArrayCritical(env, value_array, outVals, JNI_ABORT);
+    if (outPixels) (*env)->ReleasePrimitiveArrayCritical(env, pixel_array, outPixels, JNI_ABORT);
+    opj_image_destroy(l_image);
 
     LOG_INFO("JPEG2000 image decompression complete.");
     return decoded_img;
 }
 
+JNIEXPORT jshortArray JNICALL
+Java_com_dbf_aqhi_jpeg_Jpeg2000Decoder_decodeJpeg2000Codes(
+        JNIEnv *env, jclass clazz, jobject data, jint offset, jint length, jint reduction,
+        jint area_x0, jint area_y0, jint area_x1, jint area_y1, jint num_threads,
+        jshortArray out_codes, jintArray out_code_counts, jintArray out_info) {
+
+    int origin_x = 0;
+    int origin_y = 0;
+    opj_image_t* l_image = decode_image(env, data, offset, length, &reduction, area_x0, area_y0, area_x1, area_y1, num_threads, &origin_x, &origin_y);
+    if (!l_image) return NULL;
+
+    jshortArray code_array = NULL;
+    jshort* outCodes = NULL;
+    jint* outCounts = NULL; //Number of occurrences of each code, optional
+    jshortArray result = NULL; //Java return object
+
+    //Use first image component only (greyscale)
+    const opj_image_comp_t* comp = &l_image->comps[0];
+    const int width  = comp->w;
+    const int height = comp->h;
+    const int pixel_cnt = width * height;
+
+    //The codes are stored as unsigned 16 bit integers
+    if (comp->sgnd || comp->prec > 16) {
+        LOG_ERROR("Unsupported image precision for integer codes: precision=%d, signed=%d.", comp->prec, comp->sgnd);
+        goto cleanup;
+    }
+
+    //Write directly into the caller's array, unless it's too small (e.g. the resolution could not be reduced as requested)
+    if (out_codes && (*env)->GetArrayLength(env, out_codes) >= pixel_cnt) {
+        code_array = out_codes;
+    } else {
+        if (out_codes) LOG_WARN("Provided output array is too small for %d codes, allocating a new one.", pixel_cnt);
+        if (!(code_array = (*env)->NewShortArray(env, pixel_cnt))) {
+            LOG_ERROR("Failed to allocate output array.");
+            goto cleanup;
+        }
+    }
+
+    //The caller provides room for every 16 bit code
+    if (out_code_counts && (*env)->GetArrayLength(env, out_code_counts) < (1 << comp->prec)) {
+        LOG_ERROR("Provided code count array is too small for a precision of %d.", comp->prec);
+        goto cleanup;
+    }
+
+    //Pin the arrays to avoid any copy. No JNI calls are allowed until they are released.
+    if (!(outCodes = (jshort*)(*env)->GetPrimitiveArrayCritical(env, code_array, NULL))) {
+        LOG_ERROR("Failed to access the output array.");
+        goto cleanup;
+    }
+    if (out_code_counts && !(outCounts = (jint*)(*env)->GetPrimitiveArrayCritical(env, out_code_counts, NULL))) {
+        LOG_ERROR("Failed to access the code count array.");
+        goto cleanup;
+    }
+    const OPJ_INT32* in = comp->data;
+    if (outCounts) {
+        for (int i = 0; i < pixel_cnt; ++i) {
+            outCodes[i] = (jshort) in[i];
+            outCounts[in[i]]++;
+        }
+        (*env)->ReleasePrimitiveArrayCritical(env, out_code_counts, outCounts, 0);
+        outCounts = NULL;
+    } else {
+        for (int i = 0; i < pixel_cnt; ++i) {
+            outCodes[i] = (jshort) in[i];
+        }
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, code_array, outCodes, 0);
+    outCodes = NULL;
+
+    //Width, height, reduction, origin x, origin y, precision
+    const jint info[6] = { width, height, reduction, origin_x, origin_y, (jint) comp->prec };
+    (*env)->SetIntArrayRegion(env, out_info, 0, 6, info);
+    result = code_array;
+
+    //End of processing
+    cleanup:
+    //Critical regions are released in the reverse order they were acquired
+    if (outCounts) (*env)->ReleasePrimitiveArrayCritical(env, out_code_counts, outCounts, JNI_ABORT);
+    if (outCodes)  (*env)->ReleasePrimitiveArrayCritical(env, code_array, outCodes, JNI_ABORT);
+    opj_image_destroy(l_image);
+
+    LOG_INFO("JPEG2000 image decompression complete.");
+    return result;
+}
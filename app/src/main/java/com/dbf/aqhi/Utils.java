@@ -98,7 +98,7 @@ public class Utils {
         return Math.pow(Math.sin(latitudeDiff / 2), 2)  + Math.cos(latitude1) * Math.cos(latitude2) * Math.pow(Math.sin(longitudeDiff / 2), 2);
     }
 
-    private static final double EARTH_RADIUS = 6371000.0; //Global average. Close enough!
+    public static final double EARTH_RADIUS = 6371000.0; //Global average. Close enough!
 
     /**
      * Calculates the approximate distance between two points latitude and longitude on Earth.
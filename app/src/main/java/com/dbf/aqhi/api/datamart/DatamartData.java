@@ -1,25 +1,25 @@
 package com.dbf.aqhi.api.datamart;
 
 import com.dbf.aqhi.data.spatial.ModelMetaData;
+import com.dbf.aqhi.grib2.Grib2;
 
 public class DatamartData {
 
     private ModelMetaData model;
-    private byte[] rawData;
+    private Grib2 grib2;
 
     public DatamartData() {}
 
-    public DatamartData(String model, String pollutant, String modelRunDate, String modelRunHour, String hour, byte[] rawData) {
+    public DatamartData(String model, String pollutant, String modelRunDate, String modelRunHour, String hour) {
         this.model = new ModelMetaData(model, pollutant, modelRunDate, modelRunHour, hour);
-        this.rawData = rawData;
     }
 
-    public byte[] getRawData() {
-        return rawData;
+    public Grib2 getGrib2() {
+        return grib2;
     }
 
-    public void setRawData(byte[] rawData) {
-        this.rawData = rawData;
+    public void setGrib2(Grib2 grib2) {
+        this.grib2 = grib2;
     }
 
     public ModelMetaData getModel() {
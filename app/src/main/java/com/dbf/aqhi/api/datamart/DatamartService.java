@@ -3,6 +3,8 @@ package com.dbf.aqhi.api.datamart;
 import android.util.Log;
 
 import com.dbf.aqhi.api.APIService;
+import com.dbf.aqhi.grib2.Grib2;
+import com.dbf.aqhi.grib2.Grib2Parser;
 import com.dbf.utils.stacktrace.StackTraceCompactor;
 
 import org.apache.commons.lang3.StringUtils;
@@ -39,7 +41,7 @@ public class DatamartService extends APIService {
     }
 
     public DatamartData getObservation(Pollutant pollutant, boolean metaOnly) {
-        return getRDAQAObservation(pollutant.getDatamartObservationName(), true, metaOnly);
+        return getRDAQAObservation(pollutant, true, metaOnly);
     }
 
     public DatamartData getForecast(Pollutant pollutant) {
@@ -47,10 +49,10 @@ public class DatamartService extends APIService {
     }
 
     public DatamartData getForecast(Pollutant pollutant, boolean metaOnly) {
-        return getRAQDPSForecast(pollutant.getDatamartForecastName(), metaOnly);
+        return getRAQDPSForecast(pollutant, metaOnly);
     }
 
-    private DatamartData getRDAQAObservation(String pollutant, boolean allowPrelim, boolean metaOnly) {
+    private DatamartData getRDAQAObservation(Pollutant pollutant, boolean allowPrelim, boolean metaOnly) {
         //Preliminary results are available 1 hour later and final results are available 2 hours later
         ZonedDateTime modelRunDate = ZonedDateTime.now(ZoneOffset.UTC);
 
@@ -69,12 +71,12 @@ public class DatamartService extends APIService {
         return null;
     }
 
-    private DatamartData getRDAQAObservation(String pollutant, ZonedDateTime modelRunDate, boolean prelim, boolean metaOnly) {
+    private DatamartData getRDAQAObservation(Pollutant pollutant, ZonedDateTime modelRunDate, boolean prelim, boolean metaOnly) {
         final String model = prelim ? RDAQA_MODEL + "-Prelim" : RDAQA_MODEL;
-        return getData(model, null, RDAQA_DIR, RDAQA_FILE_SUFFIX, pollutant, modelRunDate.format(DATAMART_DATE_FORMAT), null, modelRunDate.format(DATAMART_HOUR_FORMAT), null, metaOnly);
+        return getData(model, null, RDAQA_DIR, RDAQA_FILE_SUFFIX, pollutant, pollutant.getDatamartObservationName(), modelRunDate.format(DATAMART_DATE_FORMAT), null, modelRunDate.format(DATAMART_HOUR_FORMAT), null, metaOnly);
     }
 
-    private DatamartData getRAQDPSForecast(String pollutant, boolean metaOnly) {
+    private DatamartData getRAQDPSForecast(Pollutant pollutant, boolean metaOnly) {
         ZonedDateTime modelDate = ZonedDateTime.now(ZoneOffset.UTC).toLocalDate().atStartOfDay(ZoneOffset.UTC);
         DatamartData data = getRAQDPSForecast(pollutant, modelDate, metaOnly);
         if(null == data) {
@@ -85,7 +87,7 @@ public class DatamartService extends APIService {
         return data;
     }
 
-    private DatamartData getRAQDPSForecast(String pollutant, ZonedDateTime modelDate, boolean metaOnly) {
+    private DatamartData getRAQDPSForecast(Pollutant pollutant, ZonedDateTime modelDate, boolean metaOnly) {
         //The model is run at 0 and 12 hours UTC each day. Try the 12 model run first, if it exists.
         DatamartData data = getRAQDPSForecast(pollutant, modelDate.plusHours(12), "12", metaOnly);
         if(null == data) {
@@ -95,7 +97,7 @@ public class DatamartService extends APIService {
         return data;
     }
 
-    private DatamartData getRAQDPSForecast(String pollutant, ZonedDateTime modelDate, String modelRunHour, boolean metaOnly) {
+    private DatamartData getRAQDPSForecast(Pollutant pollutant, ZonedDateTime modelDate, String modelRunHour, boolean metaOnly) {
         long modelOffset = determineModelTime(modelDate);
         if(modelOffset < 0) {
             //Model hasn't run yet!
@@ -104,7 +106,7 @@ public class DatamartService extends APIService {
         final String forecastHour = StringUtils.leftPad("" + modelOffset,3,'0');
         final String fileSuffix = RAQDPS_FILE_TRANSFORM + forecastHour +  RAQDPS_FILE_SUFFIX;
         final String dateString = modelDate.format(DATAMART_DATE_FORMAT);
-        return getData(RAQDPS_MODEL, DATAMART_SUB_DIR, RAQDPS_DIR, fileSuffix, pollutant, dateString, dateString, modelRunHour, forecastHour, metaOnly);
+        return getData(RAQDPS_MODEL, DATAMART_SUB_DIR, RAQDPS_DIR, fileSuffix, pollutant, pollutant.getDatamartForecastName(), dateString, dateString, modelRunHour, forecastHour, metaOnly);
     }
 
     private long determineModelTime(ZonedDateTime modelDate) {
@@ -112,17 +114,26 @@ public class DatamartService extends APIService {
         //TODO: Round to the closest hour. 55 minutes past the hour shouldn't result in the previous hour
     }
 
-    private DatamartData getData(String model, String subDir, String modelDir, String fileSuffix, String pollutant, String date, String dateDir, String modelRunHour, String forecastHour, boolean metaOnly) {
+    private DatamartData getData(String model, String subDir, String modelDir, String fileSuffix, Pollutant pollutant, String pollutantName, String date, String dateDir, String modelRunHour, String forecastHour, boolean metaOnly) {
         //Example URL: https://dd.weather.gc.ca/20250802/WXO-DD/model_raqdps/10km/grib2/12/025/20250802T12Z_MSC_RAQDPS_PM10-WildfireSmokePlume_Sfc_RLatLon0.09_PT025H.grib2
         //Or           https://dd.weather.gc.ca/20250803/WXO-DD/model_rdaqa/10km/13/20250803T13Z_MSC_RDAQA_PM2.5_Sfc_RLatLon0.09_PT0H.grib2
-        final String fileName = buildFileName(date, modelRunHour, model, pollutant, fileSuffix);
+        final String fileName = buildFileName(date, modelRunHour, model, pollutantName, fileSuffix);
         final String url = buildUrl(DATAMART_BASE_URL, dateDir, subDir, modelDir, modelRunHour, forecastHour, fileName);
-        final byte[] rawData = callDatamart(url, metaOnly);
-        if (null == rawData) return null;
-        return new DatamartData(model, pollutant, date, modelRunHour, forecastHour, rawData);
+        final DatamartData data = new DatamartData(model, pollutantName, date, modelRunHour, forecastHour);
+        return callDatamart(url, pollutant, data, metaOnly) ? data : null;
     }
 
-    private byte[] callDatamart(String url, boolean metaOnly) {
+    /**
+     * Calls the Datamart service for a single GRIB2 file. For GET requests, the response body is parsed
+     * as it is streamed, so the file is never fully buffered in memory.
+     *
+     * @param url       URL of the GRIB2 file
+     * @param pollutant pollutant contained in the file
+     * @param data      output object, populated with the parsed GRIB2 data for GET requests
+     * @param metaOnly  only perform a HEAD request
+     * @return true if the call succeeded
+     */
+    private boolean callDatamart(String url, Pollutant pollutant, DatamartData data, boolean metaOnly) {
         Log.i(LOG_TAG, (metaOnly? "HEAD" : "GET") + " Datamart HTTP service. URL: " + url);
         try (Response response = client.newCall(new Request.Builder()
                     .method(metaOnly ? "HEAD" : "GET", null)
@@ -132,29 +143,39 @@ public class DatamartService extends APIService {
 
             if (response.code() == 404) {
                 Log.i(LOG_TAG, "No data returned from Datamart (404). URL: " + url);
-                return null;
+                return false;
             }
             if (!response.isSuccessful()) {
                 //Service might be down, might not be our fault.
                 Log.w(LOG_TAG, "Call to Datamart failed. URL: " + url + ". HTTP Code: " + response.code());
-                return null;
+                return false;
             }
 
             if(metaOnly) {
                 Log.i(LOG_TAG, "HEAD successful to Datamart. URL: " + url);
-                return new byte[0]; //HEAD requests have no body
+                return true; //HEAD requests have no body
             }
 
             if (response.body() == null) {
                 Log.e(LOG_TAG, "Call to Datamart API failed. URL: " + url + ". Empty response body.");
-                return null;
+                return false;
             }
             Log.i(LOG_TAG, "Data successfully returned from Datamart. Content Length: " + response.body().contentLength() + ",  URL: " + url);
-            //TODO: Manually read the input stream so that we can protect against reading too many bytes.
-            return response.body().bytes();
+
+            //The parser enforces the maximum message size, based on the length declared in the GRIB2 header
+            final Grib2 grib2 = Grib2Parser.parse(response.body().source(), pollutant);
+            if (null == grib2) {
+                Log.e(LOG_TAG, "Failed to parse grib2 data from Datamart. URL: " + url);
+                return false;
+            }
+            data.setGrib2(grib2);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Failed to parse grib2 data from Datamart. URL: " + url + "\n" + StackTraceCompactor.getCompactStackTrace(e));
+            return false;
         } catch (Exception e) {
             Log.e(LOG_TAG, "Failed to call Datamart. URL: " + url + "\n" + StackTraceCompactor.getCompactStackTrace(e));
-            return null;
+            return false;
         }
     }
 
@@ -59,6 +59,17 @@ public class ModelMetaData {
         this.forecastHour = forecastHour;
     }
 
+    /**
+     * @return true if both are from the same run of the same model, for the same forecast hour, regardless of the pollutant
+     */
+    public boolean isSameRun(ModelMetaData other) {
+        return null != other
+                && Objects.equals(model, other.model)
+                && Objects.equals(modelRunDate, other.modelRunDate)
+                && Objects.equals(modelRunHour, other.modelRunHour)
+                && Objects.equals(forecastHour, other.forecastHour);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass()) return false;
@@ -1,14 +1,22 @@
 package com.dbf.aqhi.data.spatial;
 
 import static com.dbf.aqhi.Utils.DEG_TO_RAD;
-import static com.dbf.aqhi.Utils.RAD_TO_DEG;
 
 import com.dbf.aqhi.Utils;
 import com.dbf.aqhi.grib2.Grib2;
 import com.dbf.aqhi.grib2.Grib2GridMetaData;
+import com.dbf.aqhi.jpeg.RawImage;
+import com.dbf.aqhi.jpeg.RegionStats;
+import com.dbf.aqhi.jpeg.SummedAreaTable;
+import com.dbf.aqhi.map.GridProjection;
+
+import java.util.Arrays;
 
 public class SpatialData {
 
+    //Largest window of the grid decoded for a lookup, the full image is decoded instead
+    private static final int MAX_WINDOW_CELLS = 256 * 256;
+
     private ModelMetaData model;
     private Grib2 grib2;
 
@@ -23,10 +31,12 @@ public class SpatialData {
     private final double sinPhiP;
     private final double cosPhiP;
 
+    private transient volatile GridProjection projection; //Created on first use, this class is deserialized without calling the constructor
+
     public SpatialData(ModelMetaData model, Grib2 grib2) {
         if(model == null) throw new IllegalArgumentException("Model cannot be null.");
         if(grib2 == null) throw new IllegalArgumentException("Grib2 data cannot be null.");
-        if(grib2.getRawImage() == null) throw new IllegalArgumentException("Grib2 raw image cannot be null.");
+        if(!grib2.hasData()) throw new IllegalArgumentException("Grib2 image data cannot be null.");
 
         final Grib2GridMetaData grid = grib2.getGridMetaData();
         if(grid == null) throw new IllegalArgumentException("Grib2 grid metadata cannot be null.");
@@ -59,56 +69,345 @@ public class SpatialData {
 
     /**
      * Lookup the overlay alpha pixel value at a given latitude and longitude coordinate pair.
+     * Like {@link #overlayValueLookup(double, double)}, safe to call from the UI thread.
      *
      * @param lat coordinate
      * @param lon coordinate
      *
-     * @return Overlay value
+     * @return Overlay value, -1 if outside the grid, or if the full image must be decoded first
      */
     public int pixelLookup(double lat, double lon) {
-        final double[] yxCoords = latLonYXLookup(lat, lon);
-        return grib2.getRawImage().samplePixelsBilinear(yxCoords[1], yxCoords[0]);
+        final double[] yx = new double[2];
+        final RawImage rawImage = getRawImageAt(lat, lon, yx);
+        if(null == rawImage) return -1;
+        try {
+            return rawImage.samplePixelsBilinear(yx[1], yx[0]);
+        } finally {
+            rawImage.release();
+        }
     }
 
     /**
      * Lookup the overlay raw value at a given latitude and longitude coordinate pair
+     * Safe to call from the UI thread, the full image is never decoded by the calling thread, see {@link Grib2#getRawImageWindow(int, int, int, int)}.
      *
      * @param lat coordinate
      * @param lon coordinate
      *
-     * @return Overlay value
+     * @return Overlay value, NaN if outside the grid, or if the full image must be decoded first. It is then decoded in the background.
      */
     public float overlayValueLookup(double lat, double lon) {
-        final double[] yxCoords = latLonYXLookup(lat, lon);
-        return grib2.getRawImage().sampleValuesBilinear((float) yxCoords[1], (float) yxCoords[0]);
+        final double[] yx = new double[2];
+        final RawImage rawImage = getRawImageAt(lat, lon, yx);
+        if(null == rawImage) return Float.NaN;
+        try {
+            return rawImage.sampleValuesBilinear((float) yx[1], (float) yx[0]);
+        } finally {
+            rawImage.release();
+        }
     }
 
-    private double[] latLonYXLookup(double lat, double lon) {
-        double[] latLon = new double[] {lat, lon};
+    /**
+     * Transforms a single point, and returns an image covering its grid cell.
+     * If the full image is not already decoded, only the 2x2 window of grid points around the point is decoded.
+     *
+     * @param yx receives the fractional grid indices of the point, Y at position 0 and X at position 1
+     * @return the image retained for the caller, or null if the point is outside the grid or the window is not available
+     */
+    private RawImage getRawImageAt(double lat, double lon, double[] yx) {
+        latLonToGrid(lat, lon, yx);
 
-        //Fudge factor
-        latLon[1] += 4.8;
+        final RawImage decoded = grib2.getDecodedRawImage();
+        if(null != decoded) return decoded;
 
-        //Convert from degrees to rotated radian coordinates
-        latLon[0] *= DEG_TO_RAD;
-        latLon[1] *= DEG_TO_RAD;
+        final Grib2GridMetaData grid = grib2.getGridMetaData();
+        final int maxX = grid.getGridWidth() - 1;
+        final int maxY = grid.getGridHeight() - 1;
+        final double x = yx[1];
+        final double y = yx[0];
+        if(!(x >= 0 && y >= 0 && x <= maxX && y <= maxY)) return null; //Outside grid, or NaN
+        final int i0 = (int) x;
+        final int j0 = (int) y;
+        return grib2.getRawImageWindow(i0, j0, Math.min(i0 + 1, maxX), Math.min(j0 + 1, maxY));
+    }
+
+    /**
+     * Batch version of {@link #overlayValueLookup(double, double)}, for many points at once such as stations or route samples.
+     * If the full image is already decoded, each point is transformed and sampled in a single loop, without any allocation.
+     * Otherwise, only the window of the grid covering all the points is decoded, using the scratch arrays to keep the transformed points,
+     * unless the points are spread over a large part of the grid, then the full image is decoded and kept.
+     * The scratch arrays can be re-used by the caller for every batch.
+     *
+     * @param lats  latitude of each point
+     * @param lons  longitude of each point
+     * @param gridX scratch array of at least {@code count} elements
+     * @param gridY scratch array of at least {@code count} elements
+     * @param out   receives the value of each point, NaN if outside the grid
+     * @param count number of points
+     */
+    public void overlayValueLookup(double[] lats, double[] lons, double[] gridX, double[] gridY, float[] out, int count) {
+        checkBatch(lats, lons, gridX, gridY, out.length, count);
+        final double[] yx = new double[2]; //Re-used for every point
+        final RawImage decoded = grib2.getDecodedRawImage();
+        if(null != decoded) {
+            try {
+                for (int i = 0; i < count; i++) {
+                    latLonToGrid(lats[i], lons[i], yx);
+                    out[i] = decoded.sampleValuesBilinear((float) yx[1], (float) yx[0]);
+                }
+            } finally {
+                decoded.release();
+            }
+            return;
+        }
+
+        final RawImage rawImage = getRawImageAround(lats, lons, gridX, gridY, count, yx);
+        if(null == rawImage) {
+            Arrays.fill(out, 0, count, Float.NaN);
+            return;
+        }
+        try {
+            rawImage.sampleValuesBilinear(gridX, gridY, out, count);
+        } finally {
+            rawImage.release();
+        }
+    }
+
+    /**
+     * Batch version of {@link #pixelLookup(double, double)}.
+     *
+     * @param out receives the pixel of each point, [0..255], -1 if outside the grid
+     * @see #overlayValueLookup(double[], double[], double[], double[], float[], int)
+     */
+    public void pixelLookup(double[] lats, double[] lons, double[] gridX, double[] gridY, int[] out, int count) {
+        checkBatch(lats, lons, gridX, gridY, out.length, count);
+        final double[] yx = new double[2]; //Re-used for every point
+        final RawImage decoded = grib2.getDecodedRawImage();
+        if(null != decoded) {
+            try {
+                for (int i = 0; i < count; i++) {
+                    latLonToGrid(lats[i], lons[i], yx);
+                    out[i] = decoded.samplePixelsBilinear(yx[1], yx[0]);
+                }
+            } finally {
+                decoded.release();
+            }
+            return;
+        }
+
+        final RawImage rawImage = getRawImageAround(lats, lons, gridX, gridY, count, yx);
+        if(null == rawImage) {
+            Arrays.fill(out, 0, count, -1);
+            return;
+        }
+        try {
+            rawImage.samplePixelsBilinear(gridX, gridY, out, count);
+        } finally {
+            rawImage.release();
+        }
+    }
+
+    private static void checkBatch(double[] lats, double[] lons, double[] gridX, double[] gridY, int outLength, int count) {
+        if(count < 0 || count > lats.length || count > lons.length || count > gridX.length || count > gridY.length || count > outLength)
+            throw new IllegalArgumentException("Invalid batch size " + count + " for arrays of " + lats.length + ", " + lons.length + ", "
+                    + gridX.length + ", " + gridY.length + " and " + outLength + " points.");
+    }
+
+    /**
+     * Transforms the points of a batch lookup, and decodes the window of the grid covering all their grid cells,
+     * or the full image if the window would be larger than {@link #MAX_WINDOW_CELLS}.
+     * The bounds of the window are found while transforming the points.
+     *
+     * @param gridX receives the fractional grid column of each point
+     * @param gridY receives the fractional grid row of each point
+     * @param yx    scratch array of 2 elements
+     * @return the image retained for the caller, or null if every point is outside the grid, the data could not be decoded,
+     * or only the full image can be decoded and the window is small, see {@link Grib2#getRawImageWindow(int, int, int, int)}
+     */
+    private RawImage getRawImageAround(double[] lats, double[] lons, double[] gridX, double[] gridY, int count, double[] yx) {
+        final Grib2GridMetaData grid = grib2.getGridMetaData();
+        final int maxX = grid.getGridWidth() - 1;
+        final int maxY = grid.getGridHeight() - 1;
+        int minI = Integer.MAX_VALUE;
+        int minJ = Integer.MAX_VALUE;
+        int maxI = Integer.MIN_VALUE;
+        int maxJ = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            latLonToGrid(lats[i], lons[i], yx);
+            final double x = yx[1];
+            final double y = yx[0];
+            gridX[i] = x;
+            gridY[i] = y;
+            if(!(x >= 0 && y >= 0 && x <= maxX && y <= maxY)) continue; //Outside grid, or NaN
+            final int i0 = (int) x;
+            final int j0 = (int) y;
+            if(i0 < minI) minI = i0;
+            if(j0 < minJ) minJ = j0;
+            if(i0 + 1 > maxI) maxI = i0 + 1;
+            if(j0 + 1 > maxJ) maxJ = j0 + 1;
+        }
+        if(minI > maxI) return null; //No point inside the grid
+
+        //A window of points spread across the country is about as large as the full image, which is shared with the map
+        if((long) (maxI - minI + 1) * (maxJ - minJ + 1) > MAX_WINDOW_CELLS) return grib2.getRawImage();
+        return grib2.getRawImageWindow(minI, minJ, Math.min(maxI, maxX), Math.min(maxJ, maxY));
+    }
 
-        final double sinLat = Math.sin(latLon[0]);
-        final double cosLat = Math.cos(latLon[0]);
+    /**
+     * Determines the rectangle of grid indices covering a latitude and longitude bounding box.
+     * Since the grid is rotated, the edges of the bounding box are sampled and not just its corners.
+     *
+     * @return the grid indices {minX, minY, maxX, maxY} inclusive, clamped to the grid, or null if the bounding box is outside the grid
+     */
+    public int[] getGridBounds(double minLat, double minLon, double maxLat, double maxLon) {
+        final int samples = 8; //Per edge
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i <= samples; i++) {
+            final double t = (double) i / samples;
+            final double lat = minLat + t * (maxLat - minLat);
+            final double lon = minLon + t * (maxLon - minLon);
+            final double[][] points = {
+                    latLonYXLookup(minLat, lon), latLonYXLookup(maxLat, lon),
+                    latLonYXLookup(lat, minLon), latLonYXLookup(lat, maxLon)};
+            for (double[] yx : points) {
+                minY = Math.min(minY, yx[0]);
+                maxY = Math.max(maxY, yx[0]);
+                minX = Math.min(minX, yx[1]);
+                maxX = Math.max(maxX, yx[1]);
+            }
+        }
+
+        if(Double.isNaN(minX) || Double.isNaN(minY) || Double.isNaN(maxX) || Double.isNaN(maxY)) return null;
+
+        //Include the neighbours used by the interpolation
+        final Grib2GridMetaData grid = grib2.getGridMetaData();
+        final int[] bounds = {
+                Math.max(0, (int) Math.floor(minX)),
+                Math.max(0, (int) Math.floor(minY)),
+                Math.min(grid.getGridWidth() - 1, (int) Math.ceil(maxX)),
+                Math.min(grid.getGridHeight() - 1, (int) Math.ceil(maxY))};
+        if(bounds[2] < bounds[0] || bounds[3] < bounds[1]) return null;
+        return bounds;
+    }
 
-        final double dLam = latLon[1] - lamP;
-        final double cosLatCosDLam = Math.cos(dLam) * cosLat;
+    /**
+     * Returns an image covering a latitude and longitude bounding box, such as a viewport or the area around a station.
+     * If the full image is not already decoded, only the covering window of the grid is decoded, unless it is larger than {@link #MAX_WINDOW_CELLS}.
+     * The caller must call {@link RawImage#release()} once done with the image.
+     *
+     * @return the image, or null if the bounding box is outside the grid or the data could not be decoded
+     */
+    public RawImage getRawImage(double minLat, double minLon, double maxLat, double maxLon) {
+        final RawImage decoded = grib2.getDecodedRawImage();
+        if(null != decoded) return decoded;
+
+        final int[] bounds = getGridBounds(minLat, minLon, maxLat, maxLon);
+        if(null == bounds) return null;
+        if((long) (bounds[2] - bounds[0] + 1) * (bounds[3] - bounds[1] + 1) > MAX_WINDOW_CELLS) return grib2.getRawImage();
+        return grib2.getRawImageWindow(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
 
-        final double phiR = Math.asin((sinLat * sinPhiP) - (cosPhiP * cosLatCosDLam)); //Faster than Math.atan2(sinPhiR, Math.hypot(cosPhiR_sinLamR, cosPhiR_cosLamR));
-        final double lamR = Math.atan2(cosLat * Math.sin(dLam), (sinLat * cosPhiP) + (sinPhiP * cosLatCosDLam));
+    /**
+     * Computes the aggregates of the values within a latitude and longitude bounding box, such as a viewport.
+     * Since the grid is rotated, every grid point of the rectangle of grid indices covering the box is included, see {@link #getGridBounds}.
+     * The aggregates are answered from the {@link SummedAreaTable} of the overlay, without visiting the grid points.
+     *
+     * @param threshold value above which a grid point counts as an exceedance, NaN if not needed
+     * @return the aggregates, or null if the overlay has no values
+     */
+    public RegionStats getRegionStats(double minLat, double minLon, double maxLat, double maxLon, float threshold) {
+        final SummedAreaTable table = grib2.getSummedAreaTable();
+        if(null == table) return null;
+
+        try {
+            final RegionStats stats = new RegionStats(threshold);
+            final int[] bounds = getGridBounds(minLat, minLon, maxLat, maxLon);
+            if(null != bounds) table.aggregate(bounds[0], bounds[1], bounds[2], bounds[3], stats);
+            return stats;
+        } finally {
+            table.release();
+        }
+    }
 
-        //Convert from rotated radian coordinates to grid fractional indices (i,j) in degrees
-        latLon[0] = ((phiR * RAD_TO_DEG) - rLatZero) * gridScaleYInv;
-        latLon[1] = ((lamR * RAD_TO_DEG) - rLonZero) * gridScaleXInv;
+    /**
+     * Computes the aggregates of the values within a radius around a location, for example the average within 25 km of a station.
+     * The grid is locally uniform, so the disc is an ellipse of grid indices, aggregated a row at a time from the {@link SummedAreaTable}.
+     * If the radius is smaller than a grid cell, the nearest grid point is used.
+     *
+     * @param radiusKm  radius around the location, in kilometres
+     * @param threshold value above which a grid point counts as an exceedance, NaN if not needed
+     * @return the aggregates, or null if the overlay has no values
+     */
+    public RegionStats getRegionStats(double lat, double lon, double radiusKm, float threshold) {
+        if(!(radiusKm >= 0)) throw new IllegalArgumentException("Invalid radius: " + radiusKm);
+
+        final SummedAreaTable table = grib2.getSummedAreaTable();
+        if(null == table) return null;
+
+        try {
+            final RegionStats stats = new RegionStats(threshold);
+            final double[] yx = latLonYXLookup(lat, lon);
+            final double centreX = yx[1];
+            final double centreY = yx[0];
+            if(Double.isNaN(centreX) || Double.isNaN(centreY)) return stats;
+
+            //Size of a grid cell, in kilometres. The rotated longitudes get closer away from the rotated equator.
+            final double kmPerDegree = Utils.EARTH_RADIUS * DEG_TO_RAD / 1000.0;
+            final double rotatedLat = rLatZero + centreY / gridScaleYInv;
+            final double cellHeightKm = kmPerDegree / gridScaleYInv;
+            final double cellWidthKm = kmPerDegree * Math.cos(rotatedLat * DEG_TO_RAD) / gridScaleXInv;
+            final double radiusX = radiusKm / cellWidthKm;
+            final double radiusY = radiusKm / cellHeightKm;
+
+            final int minY = (int) Math.ceil(centreY - radiusY);
+            final int maxY = (int) Math.floor(centreY + radiusY);
+            for (int y = minY; y <= maxY; y++) {
+                final double dy = (y - centreY) / radiusY;
+                final double halfWidth = radiusX * Math.sqrt(Math.max(0, 1 - dy * dy));
+                table.aggregate((int) Math.ceil(centreX - halfWidth), y, (int) Math.floor(centreX + halfWidth), y, stats);
+            }
+
+            if(stats.getCellCount() == 0) {
+                final int x = (int) Math.round(centreX);
+                final int y = (int) Math.round(centreY);
+                table.aggregate(x, y, x, y, stats); //Ignored if outside the grid
+            }
+            return stats;
+        } finally {
+            table.release();
+        }
+    }
 
+    private double[] latLonYXLookup(double lat, double lon) {
+        final double[] latLon = new double[2];
+        latLonToGrid(lat, lon, latLon);
         return latLon;
     }
 
+    /**
+     * Transforms a latitude and longitude coordinate pair to fractional grid indices.
+     *
+     * @param latLon output, grid Y index at position 0 and grid X index at position 1
+     */
+    private void latLonToGrid(double lat, double lon, double[] latLon) {
+        getProjection().latLonToGrid(lat, lon, latLon);
+    }
+
+    /**
+     * @return the transformation from map pixels, or latitude and longitude coordinates, to grid indices
+     */
+    public GridProjection getProjection() {
+        GridProjection p = projection;
+        if (null == p) {
+            p = new GridProjection(lamP, sinPhiP, cosPhiP, rLatZero, rLonZero, gridScaleXInv, gridScaleYInv);
+            projection = p;
+        }
+        return p;
+    }
+
     public double getGridScaleXInv() {
         return gridScaleXInv;
     }
@@ -9,7 +9,8 @@ import com.dbf.aqhi.api.datamart.Pollutant;
 import com.dbf.aqhi.data.DataService;
 import com.dbf.aqhi.jpeg.RawImage;
 import com.dbf.aqhi.grib2.Grib2;
-import com.dbf.aqhi.grib2.Grib2Parser;
+import com.dbf.aqhi.grib2.Grib2Bitmap;
+import com.dbf.aqhi.map.OverlayPalette;
 import com.dbf.utils.stacktrace.StackTraceCompactor;
 import com.google.gson.reflect.TypeToken;
 
@@ -75,9 +76,14 @@ public class SpatialDataService extends DataService {
     private static final long   MAX_CACHE_DURATION = 1000*60*60*24; //1 day
     private static final String CACHE_DIR_NAME = "spatial_data";
 
+    //Cache files starting with this marker hold the encoded GRIB2 data.
+    //Older cache files hold the decoded image, and start with its width instead.
+    private static final int    CACHE_FORMAT_ENCODED = -1;
+
     //Shared preferences keys
     private static final String SPATIAL_DATA_KEY = "SPATIAL_DATA_VAL";
     private static final String SPATIAL_DATA_TS_KEY = "SPATIAL_DATA_TS";
+    private static final String MAP_PALETTE_MODE_KEY = "MAP_PALETTE_MODE";
 
     private static final Type gsonSpatialDataType = new TypeToken<SpatialData>(){}.getType();
 
@@ -162,10 +168,10 @@ public class SpatialDataService extends DataService {
     /**
      * Retrieves pre-download spatial data, if it exists and not stale.
      * The meta data is retrieved from shared preferences and the image data is retrieved from the
-     * Android file system cache.
+     * Android file system cache. The image data is kept encoded, it is decoded on first access.
      *
      * @param pollutant
-     * @param includePixels
+     * @param includePixels only applies to older cache files that contain decoded image data
      * @return SpatialData
      */
     public SpatialData getSpatialData(Pollutant pollutant, boolean includePixels) {
@@ -174,14 +180,12 @@ public class SpatialDataService extends DataService {
             if(null == spatialData) return null;
 
             //Image data is stored in the filesystem cache
-            RawImage rawImage = getCachedData(pollutant, includePixels);
-            if(null == rawImage) {
+            if(!loadCachedData(spatialData.getGrib2(), pollutant, includePixels)) {
                 //Cache was cleared by the system or is too old
                 //We need to also delete the metadata
                 clearSpatialMetaData(pollutant);
                 return null;
             }
-            spatialData.getGrib2().setRawImage(rawImage);
             return spatialData;
         }
     }
@@ -229,19 +233,15 @@ public class SpatialDataService extends DataService {
      */
     private void writeSpatialData(SpatialData spatialData, Pollutant pollutant) {
         synchronized (POLLUTANT_SYNC_OBJECTS.get(pollutant)) {
-            if (null == spatialData || null == spatialData.getGrib2() || null == spatialData.getGrib2().getRawImage()) {
+            if (null == spatialData || null == spatialData.getGrib2() || !spatialData.getGrib2().hasData()) {
                 clearSpatialMetaData(pollutant);
                 return;
             }
 
-            //We don't want to encode the raw image data as JSON since it's much too large
-            //Extract it from the metadata
-            RawImage rawImage = spatialData.getGrib2().getRawImage();
-            spatialData.getGrib2().setRawImage(null);
-
             //Save the image cache first to reduce the race condition
             //No need for a sync block though
-            writeCacheFile(rawImage, pollutant);
+            //Note: The image data is transient, it is never encoded as JSON since it's much too large
+            writeCacheFile(spatialData.getGrib2(), pollutant);
 
             final String prefDataKey = SPATIAL_DATA_KEY    + "_" + pollutant;
             final String prefTSKey   = SPATIAL_DATA_TS_KEY + "_" + pollutant;
@@ -346,32 +346,37 @@ public class SpatialDataService extends DataService {
      * @param pollutant
      */
     private void fetchLatestSpatialData(Pollutant pollutant) {
+        //The grib2 data is parsed while it is being downloaded
         final DatamartData datamartData = datamartService.getObservation(pollutant);
         if(null == datamartData) return; //There is no data available right now, keep what we have even if it's out of date
 
-        Grib2 grib2 = null;
-        try {
-            grib2 = Grib2Parser.parse(datamartData.getRawData(), pollutant);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Failed to parse grib2 data for " + pollutant + " from Datamart.\n" + StackTraceCompactor.getCompactStackTrace(e));
-            return;
-        }
-
         //Sanity checks
+        final Grib2 grib2 = datamartData.getGrib2();
         if(null == grib2) {
             Log.e(LOG_TAG, "Failed to parse grib2 data for " + pollutant + " from Datamart.");
             return;
         }
-        final RawImage rawImg = grib2.getRawImage();
-        if (null == rawImg || null == rawImg.pixels || rawImg.pixels.length < 1) {
+        //The image data is not decoded here, only when it is first displayed
+        final byte[] encodedData = grib2.getEncodedData();
+        if (null == encodedData || encodedData.length < 1) {
             Log.e(LOG_TAG, "No image data returned for " + pollutant + " from Datamart.");
             return;
         }
-        if (rawImg.pixels.length != rawImg.width * rawImg.height) {
+        if (null == grib2.getGridMetaData() || null == grib2.getDataMetaData()) {
             Log.e(LOG_TAG, "Invalid image data returned for " + pollutant + " from Datamart.");
             return;
         }
 
+        //The statistics of the values are accumulated by a single decode, on this background thread, and saved along with the meta data.
+        //The decoded image is not kept, it is decoded again when it is first displayed.
+        final RawImage rawImage = grib2.getRawImage();
+        if (null == rawImage) {
+            Log.e(LOG_TAG, "Failed to decode the image data returned for " + pollutant + " from Datamart.");
+            return;
+        }
+        rawImage.release();
+        grib2.evictRawImage();
+
         //The image data was successfully parsed, we can now save it.
         writeSpatialData(new SpatialData(datamartData.getModel(), grib2), pollutant);
     }
@@ -391,11 +396,12 @@ public class SpatialDataService extends DataService {
 
     /**
      * Saves image data to the file system cache.
+     * The encoded data is saved when available, since it is much smaller than the decoded image.
      *
-     * @param rawImg data
+     * @param grib2 data
      * @param pollutant
      */
-    private void writeCacheFile(RawImage rawImg, Pollutant pollutant) {
+    private void writeCacheFile(Grib2 grib2, Pollutant pollutant) {
         final File cacheFile = new File(cacheDir, pollutant.getDatamartForecastName());
         try {
             //We have valid data, so delete the existing file before writing the new one
@@ -413,12 +419,32 @@ public class SpatialDataService extends DataService {
                                      new GZIPOutputStream(
                                              new BufferedOutputStream(
                                                      new FileOutputStream(cacheFile), FILE_CACHE_BUFFER_SIZE), FILE_CACHE_BUFFER_SIZE), FILE_CACHE_BUFFER_SIZE))) {
-                dos.writeInt(rawImg.width);
-                dos.writeInt(rawImg.height);
-                dos.writeInt(rawImg.pixels.length);
-                dos.write(rawImg.pixels);
-                for (int i = 0 ; i < rawImg.values.length ; i++) {
-                    dos.writeFloat(rawImg.values[i]);
+                final byte[] encodedData = grib2.getEncodedData();
+                if (null != encodedData) {
+                    writeEncodedData(dos, encodedData, grib2.getBitmap());
+                    return;
+                }
+
+                final RawImage rawImg = grib2.getRawImage();
+                try {
+                    dos.writeInt(rawImg.width);
+                    dos.writeInt(rawImg.height);
+                    //The arrays may be pooled and longer than the image
+                    final int pointCount = rawImg.width * rawImg.height;
+                    dos.writeInt(pointCount);
+                    dos.write(rawImg.pixels, 0, pointCount);
+                    for (int i = 0 ; i < pointCount ; i++) {
+                        dos.writeFloat(rawImg.values[i]);
+                    }
+
+                    //Validity mask, 0 words when every grid point is valid
+                    final int maskLength = (null == rawImg.mask) ? 0 : rawImg.mask.length;
+                    dos.writeInt(maskLength);
+                    for (int i = 0 ; i < maskLength ; i++) {
+                        dos.writeLong(rawImg.mask[i]);
+                    }
+                } finally {
+                    rawImg.release();
                 }
             }
         } catch (Exception e) {
@@ -426,13 +452,50 @@ public class SpatialDataService extends DataService {
         }
     }
 
+    private static void writeEncodedData(DataOutputStream dos, byte[] encodedData, Grib2Bitmap bitmap) throws IOException {
+        dos.writeInt(CACHE_FORMAT_ENCODED);
+        dos.writeInt(encodedData.length);
+        dos.write(encodedData);
+
+        //Bitmap, 0 grid points when every grid point is valid
+        if (null == bitmap) {
+            dos.writeInt(0);
+            return;
+        }
+        dos.writeInt(bitmap.getPointCount());
+        final long[] words = bitmap.getWords();
+        for (int i = 0 ; i < words.length ; i++) {
+            dos.writeLong(words[i]);
+        }
+    }
+
+    private static void readEncodedData(DataInputStream dis, Grib2 grib2, Pollutant pollutant) throws IOException {
+        final int dataLength = dis.readInt();
+        if (dataLength <= 0) throw new IOException("Invalid encoded data length: " + dataLength);
+        final byte[] encodedData = new byte[dataLength];
+        dis.readFully(encodedData);
+
+        Grib2Bitmap bitmap = null;
+        final int pointCount = dis.readInt();
+        if (pointCount > 0) {
+            final long[] words = new long[(pointCount + 63) >>> 6];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = dis.readLong();
+            }
+            bitmap = Grib2Bitmap.fromWords(words, pointCount);
+        }
+        grib2.setEncodedData(encodedData, bitmap, pollutant);
+    }
+
     /**
-     * Retrieves cached image data from the file system, if present.
+     * Retrieves cached image data from the file system, if present, and attaches it to the provided GRIB2 metadata.
      *
+     * @param grib2 metadata
      * @param pollutant
-     * @return RawImage data
+     * @param includePixels only applies to older cache files that contain decoded image data
+     * @return true if the data was loaded
      */
-    private RawImage getCachedData(Pollutant pollutant, boolean includePixels) {
+    private boolean loadCachedData(Grib2 grib2, Pollutant pollutant, boolean includePixels) {
         final File cacheFile = new File(cacheDir, pollutant.getDatamartForecastName());
 
         Log.i(LOG_TAG, "Reading data from cache file " + cacheFile.getAbsolutePath() + ".");
@@ -442,7 +505,7 @@ public class SpatialDataService extends DataService {
 
             if(!cacheFile.exists()) {
                 Log.i(LOG_TAG, "Cache file does not exist: " + cacheFile.getAbsolutePath() + ".");
-                return null;
+                return false;
             }
 
             //Note: we are double-buffing to improve performance by reducing excessive calls to the ZIP library
@@ -452,13 +515,20 @@ public class SpatialDataService extends DataService {
                                     new GZIPInputStream(
                                          new BufferedInputStream(
                                                  new FileInputStream(cacheFile), FILE_CACHE_BUFFER_SIZE), FILE_CACHE_BUFFER_SIZE), FILE_CACHE_BUFFER_SIZE))) {
-                final int width = dis.readInt();
+                final int header = dis.readInt();
+                if (header == CACHE_FORMAT_ENCODED) {
+                    readEncodedData(dis, grib2, pollutant);
+                    return true;
+                }
+
+                //Older cache files contain the decoded image
+                final int width = header;
                 final int height = dis.readInt();
                 final int dataLength = dis.readInt();
 
                 if (dataLength != width * height) {
                     Log.e(LOG_TAG, "Invalid image data contained in cache file " + cacheFile.getAbsolutePath());
-                    return null;
+                    return false;
                 }
 
                 byte[] pixels = null;
@@ -478,11 +548,32 @@ public class SpatialDataService extends DataService {
                     //Backwards compatibility if raw values are not present
                     values = null;
                 }
-                return new RawImage(width, height, pixels, values);
+
+                long[] mask = null;
+                if(null != values) {
+                    try {
+                        final int maskLength = dis.readInt();
+                        if (maskLength > 0) {
+                            if (maskLength != (dataLength + 63) >>> 6) {
+                                Log.e(LOG_TAG, "Invalid mask data contained in cache file " + cacheFile.getAbsolutePath());
+                                return false;
+                            }
+                            mask = new long[maskLength];
+                            for (int i = 0; i < maskLength; i++) {
+                                mask[i] = dis.readLong();
+                            }
+                        }
+                    } catch (EOFException e) {
+                        //Backwards compatibility if the mask is not present, every grid point is considered valid
+                        mask = null;
+                    }
+                }
+                grib2.setRawImage(new RawImage(width, height, pixels, values, mask));
+                return true;
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Failed to read cache file " + cacheFile.getAbsolutePath() + ".\n" + StackTraceCompactor.getCompactStackTrace(e));
-            return null;
+            return false;
         }
     }
 
@@ -525,4 +616,28 @@ public class SpatialDataService extends DataService {
             loadedPollutants = null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Retrieves the saved palette of the map overlay.
+     *
+     * @return OverlayPalette.Mode, the absolute mode if not present.
+     */
+    public OverlayPalette.Mode getMapPaletteMode() {
+        final String mode = sharedPreferences.getString(MAP_PALETTE_MODE_KEY, null);
+        if (null != mode) {
+            for (OverlayPalette.Mode m : OverlayPalette.Mode.values()) {
+                if (m.name().equals(mode)) return m;
+            }
+        }
+        return OverlayPalette.Mode.ABSOLUTE;
+    }
+
+    /**
+     * Saves the palette of the map overlay.
+     *
+     * @param mode OverlayPalette.Mode
+     */
+    public void setMapPaletteMode(OverlayPalette.Mode mode) {
+        sharedPreferences.edit().putString(MAP_PALETTE_MODE_KEY, mode.name()).apply();
+    }
+}
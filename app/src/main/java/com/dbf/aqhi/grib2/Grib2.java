@@ -1,12 +1,68 @@
 package com.dbf.aqhi.grib2;
 
+import android.util.Log;
+
+import com.dbf.aqhi.api.datamart.Pollutant;
+import com.dbf.aqhi.jpeg.ImageStats;
 import com.dbf.aqhi.jpeg.RawImage;
+import com.dbf.aqhi.jpeg.SummedAreaTable;
+import com.dbf.utils.stacktrace.StackTraceCompactor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * A single GRIB2 field. The grid and data representation metadata are always available.
+ * The image is either provided decoded, or kept in its encoded form (the content of section 7)
+ * and only decoded on the first call to {@link #getRawImage()}. A decoded image may be evicted
+ * with {@link #evictRawImage()} and will be decoded again on the next access.
+ * <p>
+ * Smaller images, for display at low zoom levels, are available using {@link #getRawImage(int)}. When supported by
+ * the data template, they are decoded directly at a reduced resolution, otherwise they are filtered from the full resolution image.
+ * When supported, only a window of the grid can also be decoded using {@link #getRawImageWindow(int, int, int, int)}, for point lookups.
+ * Regional aggregates of the values are answered by the optional {@link SummedAreaTable} from {@link #getSummedAreaTable()}.
+ * <p>
+ * The {@link ImageStats} of the values are computed by the first full resolution decode.
+ * <p>
+ * Decodes never run while holding the monitor of this object, the accessors of the decoded images and of the metadata never wait for them.
+ * The UI thread should only use {@link #getDecodedRawImage()} and the small windows of {@link #getRawImageWindow(int, int, int, int)}.
+ * When only the full image can be decoded, the window is not available and the full image is decoded in the background instead,
+ * see {@link #decodeInBackground(Runnable)}.
+ * <p>
+ * The arrays of the decoded images are pooled, see {@link com.dbf.aqhi.jpeg.ImageArrayPool}. Every image returned by this class is retained
+ * for the caller, which must call {@link RawImage#release()} once done with it. This object holds its own reference to the images it keeps,
+ * released when they are evicted or replaced, so their arrays are only reused once no other thread is still reading them.
+ * <p>
+ * Only the metadata and the statistics are serialized, the image data is transient.
+ */
 public class Grib2 {
 
+    private static final String LOG_TAG = "Grib2";
+
+    public static final int MAX_REDUCTION = 3; //Eighth resolution
+    private static final int WINDOW_PADDING = 16; //Grid cells added around decoded windows, so nearby lookups can reuse them
+
+    //Full resolution decodes requested by the UI thread, shared by every field
+    private static final ExecutorService BACKGROUND_DECODER = Executors.newSingleThreadExecutor(r -> new Thread(r, LOG_TAG));
+
     private final Grib2GridMetaData gridMetaData;
     private final Grib2DataMetaData dataMetaData;
-    private RawImage rawImage;
+    private ImageStats stats; //Computed by the first full resolution decode
+    private transient RawImage rawImage;
+    private transient RawImage[] reducedImages; //Indexed by reduction, 1 to MAX_REDUCTION
+    private transient RawImage windowImage; //Most recently decoded window of the grid
+    private transient SummedAreaTable summedAreaTable; //Built on first use, from the full resolution image
+    private transient Grib2Index index; //Every field of the file this field was selected from
+
+    //Encoded data, for lazy decoding
+    private transient byte[] encodedData;
+    private transient Grib2Bitmap bitmap;
+    private transient Pollutant pollutant;
+    private transient int generation; //Incremented every time the encoded data is replaced
+    private transient Object[] decodeLocks; //Indexed by reduction, created on first use
+    private transient List<Runnable> backgroundCallbacks; //Only set while a background decode is pending
 
     public Grib2(Grib2GridMetaData gridMeta, Grib2DataMetaData dataMetaData, RawImage rawImage) {
         this.gridMetaData = gridMeta;
@@ -22,11 +78,395 @@ public class Grib2 {
         return dataMetaData;
     }
 
-    public void setRawImage(RawImage rawImage) {
+    /**
+     * @return the index of every field of the file this field was selected from, or null if it was not parsed from a file
+     */
+    public Grib2Index getIndex() {
+        return index;
+    }
+
+    void setIndex(Grib2Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Sets the decoded image, this object takes over the reference of the caller.
+     */
+    public synchronized void setRawImage(RawImage rawImage) {
+        release(this.rawImage);
         this.rawImage = rawImage;
+        if (null != summedAreaTable) summedAreaTable.release();
+        this.summedAreaTable = null;
+    }
+
+    /**
+     * Sets the encoded data that will be decoded on the first access to the image.
+     * Any previously decoded image is discarded. The statistics are kept, the data is expected to be the same as the one they were computed from,
+     * for example when it is reloaded from the cache.
+     *
+     * @param encodedData content of the data section (section 7), excluding the section header
+     * @param bitmap      bitmap that applies to the data, or null if every grid point holds a value
+     * @param pollutant   pollutant used to scale the decoded values
+     */
+    public synchronized void setEncodedData(byte[] encodedData, Grib2Bitmap bitmap, Pollutant pollutant) {
+        this.encodedData = encodedData;
+        this.bitmap = bitmap;
+        this.pollutant = pollutant;
+        this.generation++; //Decodes still running on the previous data are discarded
+        releaseImages();
+    }
+
+    public synchronized byte[] getEncodedData() {
+        return encodedData;
+    }
+
+    public synchronized Grib2Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @return true if the image is available, either decoded or encoded
+     */
+    public synchronized boolean hasData() {
+        return null != rawImage || null != encodedData;
+    }
+
+    /**
+     * @return true if the image has already been decoded
+     */
+    public synchronized boolean isDecoded() {
+        return null != rawImage;
+    }
+
+    /**
+     * Returns the full resolution image only if it is already decoded, it never decodes.
+     * Intended for the UI thread, which should never wait for a decode.
+     *
+     * @return the decoded image retained for the caller, or null
+     */
+    public synchronized RawImage getDecodedRawImage() {
+        return retained(rawImage);
     }
 
+    /**
+     * Returns the image, decoding it first if needed.
+     * Concurrent callers wait for a single decode, which runs without holding the monitor of this object,
+     * so the other accessors never wait for it.
+     *
+     * @return the decoded image retained for the caller, or null if there is no image data or it could not be decoded
+     */
     public RawImage getRawImage() {
-        return rawImage;
+        RawImage image = getDecodedRawImage();
+        if (null != image) return image;
+
+        synchronized (getDecodeLock(0)) {
+            //The statistics are accumulated during the decode, they only need to be computed once
+            final Decode decode;
+            synchronized (this) {
+                //Another thread may have decoded it while this one was waiting
+                if (null != rawImage || null == encodedData) return retained(rawImage);
+                decode = new Decode((null == stats && null != pollutant) ? createStats(pollutant) : null);
+            }
+
+            image = decode.run(0, null);
+            synchronized (this) {
+                if (decode.generation != generation) return image; //The data was replaced during the decode, the caller holds the only reference
+                if (null == image) {
+                    encodedData = null; //No point trying again
+                    return null;
+                }
+                rawImage = image;
+                if (null != decode.stats) stats = decode.stats;
+                release(windowImage); //Superseded by the full resolution, the reduced images remain valid
+                windowImage = null;
+                return retained(image);
+            }
+        }
+    }
+
+    /**
+     * Returns the image at a reduced resolution, decoding it first if needed.
+     * If the data can't be decoded at a reduced resolution, or the full resolution image is already decoded, the levels of a
+     * mip pyramid are built from the full resolution image instead, see {@link RawImage#downsample()}. Each level is built once.
+     * The reduction of the returned image is available from {@link RawImage#reduction}, grid indices must be divided by 2^reduction.
+     * Like {@link #getRawImage()}, the decode runs without holding the monitor of this object.
+     *
+     * @param reduction number of times the resolution is halved, from 0 to {@link #MAX_REDUCTION}
+     * @return the decoded image retained for the caller, or null if there is no image data or it could not be decoded
+     */
+    public RawImage getRawImage(int reduction) {
+        if (reduction < 0 || reduction > MAX_REDUCTION)
+            throw new IllegalArgumentException("Invalid reduction: " + reduction);
+
+        if (reduction == 0) return getRawImage();
+
+        RawImage image = getReducedImage(reduction);
+        if (null != image) return image;
+
+        //Each level has its own lock, a level may wait for the levels above it, never below, so they can't deadlock
+        synchronized (getDecodeLock(reduction)) {
+            final boolean filter;
+            final Decode decode;
+            synchronized (this) {
+                image = (null == reducedImages) ? null : reducedImages[reduction];
+                if (null != image) return retained(image);
+                filter = null != rawImage || null == encodedData || !Grib2Parser.supportsPartialDecode(dataMetaData, bitmap);
+                decode = new Decode(null);
+            }
+
+            if (filter) {
+                //Build the pyramid from the full resolution image, one level at a time
+                final RawImage previous = (reduction == 1) ? getRawImage() : getRawImage(reduction - 1);
+                if (null == previous) return null;
+                if (previous.originX != 0 || previous.originY != 0 || previous.reduction != reduction - 1) return previous; //Can't be filtered
+
+                final long start = System.currentTimeMillis();
+                try {
+                    image = previous.downsample();
+                } finally {
+                    previous.release();
+                }
+                Log.i(LOG_TAG, "Filtered " + decode.pollutant + " data at reduction " + reduction + " in " + (System.currentTimeMillis() - start) + "ms.");
+            } else {
+                image = decode.run(reduction, null);
+                if (null == image) return getRawImage(); //Try the full resolution instead
+            }
+
+            synchronized (this) {
+                if (decode.generation != generation) return image; //The data was replaced during the decode, the caller holds the only reference
+                if (null == reducedImages) reducedImages = new RawImage[MAX_REDUCTION + 1];
+                reducedImages[reduction] = image;
+                return retained(image);
+            }
+        }
+    }
+
+    private synchronized RawImage getReducedImage(int reduction) {
+        return (null == reducedImages) ? null : retained(reducedImages[reduction]);
+    }
+
+    /**
+     * Returns an image covering at least the provided window of the grid, decoding only that window if needed.
+     * The full image is returned if it is already decoded.
+     * Grid indices are unchanged, the position of a window within the grid is handled by the {@link RawImage} itself.
+     * A window only covers a few code-blocks, it is decoded by the calling thread without waiting for any other decode.
+     * This never decodes the full image on the calling thread. If the data can't be partially decoded, or the window decode fails,
+     * null is returned and the full image is decoded in the background, see {@link #decodeInBackground(Runnable)}.
+     *
+     * @param minX first column, inclusive
+     * @param minY first row, inclusive
+     * @param maxX last column, inclusive
+     * @param maxY last row, inclusive
+     * @return the decoded image retained for the caller, or null if there is no image data, or only the full image can be decoded
+     */
+    public RawImage getRawImageWindow(int minX, int minY, int maxX, int maxY) {
+        final Decode decode;
+        synchronized (this) {
+            if (null != rawImage) return retained(rawImage);
+            if (null == encodedData) return null;
+            if (!Grib2Parser.supportsPartialDecode(dataMetaData, bitmap)) decode = null;
+            else if (null != windowImage && windowImage.contains(minX, minY, maxX, maxY)) return retained(windowImage); //Re-use the last window
+            else decode = new Decode(null);
+        }
+        if (null == decode) {
+            decodeInBackground(null);
+            return null;
+        }
+
+        final int[] area = {
+                Math.max(0, minX - WINDOW_PADDING),
+                Math.max(0, minY - WINDOW_PADDING),
+                Math.min(gridMetaData.getGridWidth() - 1, maxX + WINDOW_PADDING),
+                Math.min(gridMetaData.getGridHeight() - 1, maxY + WINDOW_PADDING)};
+        if (area[2] < area[0] || area[3] < area[1])
+            throw new IllegalArgumentException("Window is outside of the grid: (" + minX + "," + minY + ")-(" + maxX + "," + maxY + ")");
+
+        final RawImage image = decode.run(0, area);
+        if (null == image) {
+            decodeInBackground(null); //Try the full image instead
+            return null;
+        }
+
+        synchronized (this) {
+            if (decode.generation != generation || null != rawImage) return image; //Not kept, the caller holds the only reference
+            release(windowImage);
+            windowImage = image;
+            return retained(image);
+        }
+    }
+
+    /**
+     * Decodes the full resolution image on a background thread, unless it is already decoded, or there is no image data.
+     * For the UI thread, which must never decode it itself, see {@link #getRawImageWindow(int, int, int, int)}.
+     * Concurrent requests share a single decode.
+     *
+     * @param onDecoded called on the background thread once the decode is done, successful or not. Null if not needed.
+     * @return true if the image is not decoded yet, and the callback will be called
+     */
+    public boolean decodeInBackground(Runnable onDecoded) {
+        synchronized (this) {
+            if (null != rawImage || null == encodedData) return false;
+            final boolean pending = null != backgroundCallbacks;
+            if (!pending) backgroundCallbacks = new ArrayList<Runnable>();
+            if (null != onDecoded) backgroundCallbacks.add(onDecoded);
+            if (pending) return true;
+        }
+
+        BACKGROUND_DECODER.execute(() -> {
+            final List<Runnable> callbacks;
+            try {
+                release(getRawImage());
+            } finally {
+                synchronized (this) {
+                    callbacks = backgroundCallbacks;
+                    backgroundCallbacks = null;
+                }
+            }
+            for (Runnable callback : callbacks) callback.run();
+        });
+        return true;
+    }
+
+    /**
+     * @return the statistics of the values, or null if the full resolution image has not been decoded yet
+     */
+    public synchronized ImageStats getStats() {
+        return stats;
+    }
+
+    private static ImageStats createStats(Pollutant pollutant) {
+        return new ImageStats(pollutant.getOverlayMinVal(), pollutant.getOverlayMaxVal(), pollutant.getLevel1(), pollutant.getLevel2(), pollutant.getLevel3());
+    }
+
+    /**
+     * Returns the tables answering aggregate queries on the values, building them from the full resolution image first if needed.
+     * Like the images, the tables are retained for the caller, which must call {@link SummedAreaTable#release()} once done with them.
+     *
+     * @return the tables, or null if there is no image data, it could not be decoded or it has no values
+     */
+    public SummedAreaTable getSummedAreaTable() {
+        synchronized (this) {
+            if (null != summedAreaTable) return retained(summedAreaTable);
+        }
+
+        synchronized (getDecodeLock(0)) {
+            final RawImage image = getRawImage();
+            if (null == image) return null;
+            try {
+                if (!image.hasValues()) return null;
+                synchronized (this) {
+                    //Another thread may have built it while this one was waiting
+                    if (null != summedAreaTable && rawImage == image) return retained(summedAreaTable);
+                }
+
+                final long start = System.currentTimeMillis();
+                final SummedAreaTable table = new SummedAreaTable(image);
+                Log.i(LOG_TAG, "Built " + pollutant + " summed-area table in " + (System.currentTimeMillis() - start) + "ms.");
+                synchronized (this) {
+                    if (rawImage != image || null != summedAreaTable) return table; //Not kept, the caller holds the only reference
+                    summedAreaTable = table;
+                    return retained(table);
+                }
+            } finally {
+                image.release();
+            }
+        }
+    }
+
+    /**
+     * @return true if decoded image will contain the raw values, not only the pixels
+     */
+    public synchronized boolean hasValues() {
+        return (null != rawImage) ? rawImage.hasValues() : null != encodedData;
+    }
+
+    /**
+     * Releases the decoded images, including the reduced resolution ones and the window, if they can be decoded again later.
+     * The summed-area table is released along with them. Decodes that are still running are not affected.
+     * The arrays of the images return to the pool once the threads still reading them release them.
+     *
+     * @return true if any image was evicted
+     */
+    public synchronized boolean evictRawImage() {
+        if (null == encodedData || (null == rawImage && null == reducedImages && null == windowImage && null == summedAreaTable)) return false;
+        releaseImages();
+        return true;
+    }
+
+    /**
+     * Releases the references held by this object on the decoded images, and drops them.
+     */
+    private synchronized void releaseImages() {
+        release(rawImage);
+        rawImage = null;
+        if (null != reducedImages) {
+            for (RawImage image : reducedImages) release(image);
+            reducedImages = null;
+        }
+        release(windowImage);
+        windowImage = null;
+        if (null != summedAreaTable) summedAreaTable.release();
+        summedAreaTable = null;
+    }
+
+    /**
+     * Retains an image kept by this object for a caller, this object's own reference guarantees it has not been released yet.
+     * Must be called while holding the monitor.
+     */
+    private static RawImage retained(RawImage image) {
+        if (null != image && !image.retain()) throw new IllegalStateException("The decoded image was already released.");
+        return image;
+    }
+
+    private static SummedAreaTable retained(SummedAreaTable table) {
+        if (!table.retain()) throw new IllegalStateException("The summed-area table was already released.");
+        return table;
+    }
+
+    private static void release(RawImage image) {
+        if (null != image) image.release();
+    }
+
+    /**
+     * Returns the lock of the decodes at a reduction, the full resolution decode and the summed-area table use the lock of reduction 0.
+     * This class is deserialized without calling its constructor, so the locks are created on first use.
+     */
+    private synchronized Object getDecodeLock(int reduction) {
+        if (null == decodeLocks) {
+            decodeLocks = new Object[MAX_REDUCTION + 1];
+            for (int i = 0; i < decodeLocks.length; i++) decodeLocks[i] = new Object();
+        }
+        return decodeLocks[reduction];
+    }
+
+    /**
+     * Snapshot of the encoded data, taken while holding the monitor, so that it can be decoded without holding it.
+     */
+    private final class Decode {
+        final byte[] data = encodedData;
+        final Grib2Bitmap bitmap = Grib2.this.bitmap;
+        final Pollutant pollutant = Grib2.this.pollutant;
+        final int generation = Grib2.this.generation;
+        final ImageStats stats;
+
+        Decode(ImageStats stats) {
+            this.stats = stats;
+        }
+
+        /**
+         * @return the decoded image, or null if it could not be decoded
+         */
+        RawImage run(int reduction, int[] area) {
+            final String what = pollutant + " data" + ((null != area) ? " window" : (reduction > 0) ? " at reduction " + reduction : "");
+            final long start = System.currentTimeMillis();
+            try {
+                final RawImage image = Grib2Parser.decode(data, gridMetaData, dataMetaData, bitmap, pollutant, reduction, area, stats);
+                Log.i(LOG_TAG, "Decoded " + what + " " + image.width + "x" + image.height + " in " + (System.currentTimeMillis() - start) + "ms.");
+                return image;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to decode " + what + ".\n" + StackTraceCompactor.getCompactStackTrace(e));
+                return null;
+            }
+        }
     }
 }
@@ -0,0 +1,73 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Big-endian bit reader used to unpack GRIB2 data sections.
+ * Bits are buffered 32 at a time in a 64-bit accumulator so that unpacking a value
+ * is a shift and a mask, rather than a loop over individual bytes.
+ */
+final class Grib2BitReader {
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    private long buffer;  //Buffered bits, right aligned
+    private int bitCount; //Number of valid bits in the buffer
+
+    Grib2BitReader(byte[] data, int offset, int length) {
+        if(offset < 0 || length < 0 || offset + length > data.length)
+            throw new IllegalArgumentException("Invalid GRIB2 data range: " + offset + "+" + length);
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Reads an unsigned value.
+     *
+     * @param bits number of bits to read, from 0 to 32
+     * @return the bit pattern, 32 bit values may be negative and must be treated as unsigned by the caller
+     */
+    int read(int bits) {
+        if (bits == 0) return 0;
+        if (bitCount < bits) refill(bits);
+        bitCount -= bits;
+        return (int) ((buffer >>> bitCount) & ((1L << bits) - 1));
+    }
+
+    /**
+     * Reads a sign-magnitude value, as used by GRIB2 for signed integers.
+     */
+    int readSigned(int bits) {
+        final int raw = read(bits);
+        final int signBit = 1 << (bits - 1);
+        return (raw & signBit) != 0 ? -(raw & (signBit - 1)) : raw;
+    }
+
+    /**
+     * Discards the remaining bits of the current octet.
+     */
+    void alignToByte() {
+        bitCount -= bitCount & 7;
+    }
+
+    private void refill(int bits) {
+        //Fast path, a full word
+        if (bitCount <= 32 && end - pos >= 4) {
+            buffer = (buffer << 32)
+                    | ((long) (data[pos] & 0xFF) << 24)
+                    | ((data[pos + 1] & 0xFF) << 16)
+                    | ((data[pos + 2] & 0xFF) << 8)
+                    | (data[pos + 3] & 0xFF);
+            pos += 4;
+            bitCount += 32;
+            return;
+        }
+
+        //Tail of the data, one byte at a time
+        while (bitCount < bits) {
+            if (pos >= end) throw new IllegalArgumentException("GRIB2 data section is truncated.");
+            buffer = (buffer << 8) | (data[pos++] & 0xFF);
+            bitCount += 8;
+        }
+    }
+}
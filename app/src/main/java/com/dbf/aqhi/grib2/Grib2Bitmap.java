@@ -0,0 +1,125 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Bitmap of a GRIB2 field (section 6), indicating which grid points hold a value.
+ * The bits are packed 64 per word, with grid point i stored in bit (i &amp; 63) of word (i &gt;&gt;&gt; 6),
+ * which is the layout expected by {@link com.dbf.aqhi.jpeg.RawImage#mask}.
+ */
+public class Grib2Bitmap {
+    private final long[] words;
+    private final int pointCount; //Number of grid points
+    private final int validCount; //Number of grid points that hold a value
+
+    private Grib2Bitmap(long[] words, int pointCount, int validCount) {
+        this.words = words;
+        this.pointCount = pointCount;
+        this.validCount = validCount;
+    }
+
+    /**
+     * Packs the GRIB2 bitmap, which stores one bit per grid point, most significant bit first.
+     *
+     * @param bytes      bitmap bytes, starting right after the bitmap indicator
+     * @param offset     offset of the first bitmap byte
+     * @param length     number of bitmap bytes available
+     * @param pointCount number of grid points
+     */
+    public static Grib2Bitmap fromBytes(byte[] bytes, int offset, int length, int pointCount) {
+        final int byteCount = (pointCount + 7) >>> 3;
+        if (length < byteCount)
+            throw new IllegalArgumentException("GRIB2 bitmap is too small, " + length + " byte(s) for " + pointCount + " grid points.");
+
+        final long[] words = new long[(pointCount + 63) >>> 6];
+        for (int i = 0; i < byteCount; i++) {
+            //Reverse the bit order so that grid point i maps to bit i
+            final long b = Integer.reverse(bytes[offset + i] & 0xFF) >>> 24;
+            words[i >>> 3] |= b << ((i & 7) << 3);
+        }
+
+        //Clear any trailing padding bits
+        final int tail = pointCount & 63;
+        if (tail != 0) words[words.length - 1] &= (1L << tail) - 1;
+
+        int validCount = 0;
+        for (long word : words) validCount += Long.bitCount(word);
+        return new Grib2Bitmap(words, pointCount, validCount);
+    }
+
+    /**
+     * Re-creates a bitmap from its packed words, as returned by {@link #getWords()}.
+     */
+    public static Grib2Bitmap fromWords(long[] words, int pointCount) {
+        if (words.length != (pointCount + 63) >>> 6)
+            throw new IllegalArgumentException("Invalid bitmap, " + words.length + " word(s) for " + pointCount + " grid points.");
+
+        int validCount = 0;
+        for (long word : words) validCount += Long.bitCount(word);
+        return new Grib2Bitmap(words, pointCount, validCount);
+    }
+
+    public long[] getWords() {
+        return words;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * Spreads the values of the valid grid points, stored contiguously at the start of the arrays, over the full grid.
+     * The expansion is done in place, from the end, so no additional memory is required.
+     * Grid points without a value are set to NaN, with a transparent pixel.
+     *
+     * @param values array of at least {@link #getPointCount()} values, the first {@link #getValidCount()} are the packed values
+     * @param pixels array of at least {@link #getPointCount()} pixels, the first {@link #getValidCount()} are the packed pixels
+     */
+    public void expand(float[] values, byte[] pixels) {
+        int src = validCount;
+        for (int w = words.length - 1; w >= 0; w--) {
+            final long word = words[w];
+            final int base = w << 6;
+            final int end = Math.min(base + 64, pointCount);
+            if (word == 0) {
+                //Whole word is empty
+                for (int i = end - 1; i >= base; i--) {
+                    values[i] = Float.NaN;
+                    pixels[i] = 0;
+                }
+                continue;
+            }
+            for (int i = end - 1; i >= base; i--) {
+                if ((word & (1L << i)) != 0) {
+                    src--;
+                    values[i] = values[src];
+                    pixels[i] = pixels[src];
+                } else {
+                    values[i] = Float.NaN;
+                    pixels[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Spreads the integer codes of the valid grid points, stored contiguously at the start of the array, over the full grid.
+     * The expansion is done in place, from the end. Grid points without a value are set to code 0, their validity
+     * is only known from the bitmap.
+     *
+     * @param codes array of at least {@link #getPointCount()} codes, the first {@link #getValidCount()} are the packed codes
+     */
+    public void expand(short[] codes) {
+        int src = validCount;
+        for (int w = words.length - 1; w >= 0; w--) {
+            final long word = words[w];
+            final int base = w << 6;
+            final int end = Math.min(base + 64, pointCount);
+            for (int i = end - 1; i >= base; i--) {
+                codes[i] = ((word & (1L << i)) != 0) ? codes[--src] : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Decoder for grid point data using complex packing (template 5.2 / 7.2),
+ * and complex packing with spatial differencing (template 5.3 / 7.3).
+ * <p>
+ * Values are split into groups, each with its own reference and bit width. The group references,
+ * widths and lengths are stored first, followed by the packed values of every group.
+ * With spatial differencing, the unpacked values are first or second order differences that are
+ * integrated back while decoding, so that no intermediate array of differences is needed.
+ */
+final class Grib2ComplexDecoder {
+
+    private Grib2ComplexDecoder() {}
+
+    static void decode(byte[] data, int offset, int length, Grib2DataMetaData scaleMeta, Grib2ValueWriter out, int pointCount) {
+        final Grib2ComplexPacking packing = scaleMeta.getComplexPacking();
+        if (null == packing) throw new IllegalArgumentException("Missing GRIB2 complex packing parameters.");
+
+        final Grib2BitReader reader = new Grib2BitReader(data, offset, length);
+
+        //Extra descriptors of the spatial differencing, stored as sign-magnitude values of the same size
+        final int order = packing.getSpatialDiffOrder();
+        final int descriptorBits = packing.getSpatialDiffOctets() * 8;
+        if (order > 2) throw new IllegalArgumentException("Unsupported GRIB2 spatial differencing order: " + order);
+        if (descriptorBits > 32) throw new IllegalArgumentException("Invalid GRIB2 spatial differencing descriptor size: " + descriptorBits);
+
+        long first = 0;
+        long second = 0;
+        long minDiff = 0;
+        final boolean differencing = order > 0 && descriptorBits > 0;
+        if (differencing) {
+            first = reader.readSigned(descriptorBits);
+            if (order == 2) second = reader.readSigned(descriptorBits);
+            minDiff = reader.readSigned(descriptorBits);
+        }
+
+        //Group descriptors, each list starts on an octet boundary
+        final int groupCount = packing.getNumberOfGroups();
+        if (groupCount <= 0 || groupCount > pointCount)
+            throw new IllegalArgumentException("Invalid GRIB2 number of groups: " + groupCount);
+
+        final int refBits = scaleMeta.getBitsPerValue();
+        final int[] groupRefs = new int[groupCount];
+        for (int g = 0; g < groupCount; g++) groupRefs[g] = reader.read(refBits);
+        reader.alignToByte();
+
+        final int widthRef = packing.getGroupWidthReference();
+        final int widthBits = packing.getGroupWidthBits();
+        final int[] groupWidths = new int[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            final int width = widthRef + reader.read(widthBits);
+            if (width > 31) throw new IllegalArgumentException("Invalid GRIB2 group width: " + width);
+            groupWidths[g] = width;
+        }
+        reader.alignToByte();
+
+        final long lengthRef = packing.getGroupLengthReference();
+        final int lengthIncrement = packing.getGroupLengthIncrement();
+        final int lengthBits = packing.getGroupLengthBits();
+        final int[] groupLengths = new int[groupCount];
+        long total = 0;
+        for (int g = 0; g < groupCount; g++) {
+            //Every scaled length is stored, including the last one, which is then replaced by its true length
+            final long scaledLength = lengthRef + (long) lengthIncrement * reader.read(lengthBits);
+            final long groupLength = (g == groupCount - 1) ? packing.getLastGroupLength() : scaledLength;
+            groupLengths[g] = (int) groupLength;
+            total += groupLength;
+        }
+        reader.alignToByte();
+        if (total != pointCount)
+            throw new IllegalArgumentException("Invalid GRIB2 group lengths, expected " + pointCount + " values but found " + total);
+
+        //Missing values are flagged by the all ones pattern (primary) or all ones minus one (secondary)
+        final int missingManagement = packing.getMissingValueManagement();
+        final int refPrimaryMissing = refBits == 0 ? -1 : (int) ((1L << refBits) - 1);
+        final int refSecondaryMissing = refPrimaryMissing - 1;
+
+        long prev1 = 0; //Last decoded value, for the integration of the differences
+        long prev2 = 0; //Second last decoded value
+        int decoded = 0; //Number of non-missing values so far
+        int index = 0;
+        for (int g = 0; g < groupCount; g++) {
+            final int ref = groupRefs[g];
+            final int width = groupWidths[g];
+            final int groupLength = groupLengths[g];
+            final int primaryMissing = (1 << width) - 1;
+            final int secondaryMissing = primaryMissing - 1;
+
+            for (int j = 0; j < groupLength; j++, index++) {
+                final long x;
+                if (width == 0) {
+                    if (missingManagement != 0 && (ref == refPrimaryMissing || (missingManagement == 2 && ref == refSecondaryMissing))) {
+                        out.writeMissing(index);
+                        continue;
+                    }
+                    x = ref;
+                } else {
+                    final int packed = reader.read(width);
+                    if (missingManagement != 0 && (packed == primaryMissing || (missingManagement == 2 && packed == secondaryMissing))) {
+                        out.writeMissing(index);
+                        continue;
+                    }
+                    x = (ref & 0xFFFFFFFFL) + packed;
+                }
+
+                if (!differencing) {
+                    out.write(index, x);
+                    continue;
+                }
+
+                //Integrate the differences back into values
+                final long value;
+                if (decoded == 0) {
+                    value = first;
+                } else if (order == 2 && decoded == 1) {
+                    value = second;
+                } else if (order == 1) {
+                    value = x + minDiff + prev1;
+                } else {
+                    value = x + minDiff + 2 * prev1 - prev2;
+                }
+                prev2 = prev1;
+                prev1 = value;
+                decoded++;
+                out.write(index, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Additional data representation parameters for complex packing,
+ * with or without spatial differencing (templates 5.2 & 5.3).
+ */
+public class Grib2ComplexPacking {
+    private final int groupSplittingMethod;     //Table 5.4
+    private final int missingValueManagement;   //Table 5.5, 0 = none, 1 = primary, 2 = primary & secondary
+    private final int numberOfGroups;           //NG
+    private final int groupWidthReference;
+    private final int groupWidthBits;
+    private final long groupLengthReference;
+    private final int groupLengthIncrement;
+    private final long lastGroupLength;         //True length of the last group
+    private final int groupLengthBits;
+    private final int spatialDiffOrder;         //0 for template 5.2, 1 or 2 for template 5.3
+    private final int spatialDiffOctets;        //Number of octets of the extra descriptors
+
+    public Grib2ComplexPacking(int groupSplittingMethod, int missingValueManagement, int numberOfGroups,
+                               int groupWidthReference, int groupWidthBits,
+                               long groupLengthReference, int groupLengthIncrement, long lastGroupLength, int groupLengthBits,
+                               int spatialDiffOrder, int spatialDiffOctets) {
+        this.groupSplittingMethod = groupSplittingMethod;
+        this.missingValueManagement = missingValueManagement;
+        this.numberOfGroups = numberOfGroups;
+        this.groupWidthReference = groupWidthReference;
+        this.groupWidthBits = groupWidthBits;
+        this.groupLengthReference = groupLengthReference;
+        this.groupLengthIncrement = groupLengthIncrement;
+        this.lastGroupLength = lastGroupLength;
+        this.groupLengthBits = groupLengthBits;
+        this.spatialDiffOrder = spatialDiffOrder;
+        this.spatialDiffOctets = spatialDiffOctets;
+    }
+
+    public int getGroupSplittingMethod() {
+        return groupSplittingMethod;
+    }
+
+    public int getMissingValueManagement() {
+        return missingValueManagement;
+    }
+
+    public int getNumberOfGroups() {
+        return numberOfGroups;
+    }
+
+    public int getGroupWidthReference() {
+        return groupWidthReference;
+    }
+
+    public int getGroupWidthBits() {
+        return groupWidthBits;
+    }
+
+    public long getGroupLengthReference() {
+        return groupLengthReference;
+    }
+
+    public int getGroupLengthIncrement() {
+        return groupLengthIncrement;
+    }
+
+    public long getLastGroupLength() {
+        return lastGroupLength;
+    }
+
+    public int getGroupLengthBits() {
+        return groupLengthBits;
+    }
+
+    public int getSpatialDiffOrder() {
+        return spatialDiffOrder;
+    }
+
+    public int getSpatialDiffOctets() {
+        return spatialDiffOctets;
+    }
+}
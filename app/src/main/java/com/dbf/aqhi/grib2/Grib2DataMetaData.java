@@ -6,11 +6,16 @@ public class Grib2DataMetaData {
     private final int decimalScaleD;     //D (signed)
     private final int bitsPerValue;        //Nb
     private final int originalType;        //Type of original field values
-    private final int dataTemplateNumber;  //40 for JPEG2000
+    private final int dataTemplateNumber;  //0 for simple packing, 2 & 3 for complex packing, 40 for JPEG2000, 41 for PNG
     private final long dataPoints;
+    private final Grib2ComplexPacking complexPacking; //Only for templates 2 & 3
 
 
     public Grib2DataMetaData(float referenceValueR, int binaryScaleE, int decimalScaleD, int bitsPerValue, int originalType, int dataTemplateNumber, long dataPoints) {
+        this(referenceValueR, binaryScaleE, decimalScaleD, bitsPerValue, originalType, dataTemplateNumber, dataPoints, null);
+    }
+
+    public Grib2DataMetaData(float referenceValueR, int binaryScaleE, int decimalScaleD, int bitsPerValue, int originalType, int dataTemplateNumber, long dataPoints, Grib2ComplexPacking complexPacking) {
         this.referenceValueR    = referenceValueR;
         this.binaryScaleE       = binaryScaleE;
         this.decimalScaleD      = decimalScaleD;
@@ -18,6 +23,7 @@ public class Grib2DataMetaData {
         this.dataTemplateNumber = dataTemplateNumber;
         this.dataPoints         = dataPoints;
         this.originalType       = originalType;
+        this.complexPacking     = complexPacking;
     }
 
     public float getReferenceValueR() {
@@ -47,4 +53,8 @@ public class Grib2DataMetaData {
     public int getOriginalType() {
         return originalType;
     }
+
+    public Grib2ComplexPacking getComplexPacking() {
+        return complexPacking;
+    }
 }
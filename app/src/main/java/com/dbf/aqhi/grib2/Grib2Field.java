@@ -0,0 +1,124 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Lightweight description of a single field (data section) within a GRIB2 file.
+ * Only the byte offsets of the sections within the file and a few identifying values are kept,
+ * so that the field can be selected while the file is streamed, see {@link Grib2Parser}.
+ */
+public class Grib2Field {
+
+    public static final int MISSING = -1;
+
+    private final int messageIndex;       //Zero-based index of the GRIB2 message within the file
+    private final int discipline;         //Table 0.0
+    private final int gridDefOffset;      //Start of section 3
+    private final int productDefOffset;   //Start of section 4
+    private final int dataRepOffset;      //Start of section 5
+    private final int bitmapOffset;       //Start of section 6
+    private final int dataOffset;         //Start of section 7
+    private final int dataLength;         //Total length of section 7, including the section header
+    private final int productTemplate;    //Table 4.0
+    private final int parameterCategory;  //Table 4.1
+    private final int parameterNumber;    //Table 4.2
+    private final int constituentType;    //Table 4.230, only for chemical constituent templates
+    private final int forecastTimeUnit;   //Table 4.4
+    private final int forecastTime;       //In units of forecastTimeUnit
+    private final int levelType;          //Table 4.5, type of first fixed surface
+    private final double levelValue;      //Value of the first fixed surface, NaN if missing
+
+    public Grib2Field(int messageIndex, int discipline,
+                      int gridDefOffset, int productDefOffset, int dataRepOffset, int bitmapOffset, int dataOffset, int dataLength,
+                      int productTemplate, int parameterCategory, int parameterNumber, int constituentType,
+                      int forecastTimeUnit, int forecastTime, int levelType, double levelValue) {
+        this.messageIndex = messageIndex;
+        this.discipline = discipline;
+        this.gridDefOffset = gridDefOffset;
+        this.productDefOffset = productDefOffset;
+        this.dataRepOffset = dataRepOffset;
+        this.bitmapOffset = bitmapOffset;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        this.productTemplate = productTemplate;
+        this.parameterCategory = parameterCategory;
+        this.parameterNumber = parameterNumber;
+        this.constituentType = constituentType;
+        this.forecastTimeUnit = forecastTimeUnit;
+        this.forecastTime = forecastTime;
+        this.levelType = levelType;
+        this.levelValue = levelValue;
+    }
+
+    public int getMessageIndex() {
+        return messageIndex;
+    }
+
+    public int getDiscipline() {
+        return discipline;
+    }
+
+    public int getGridDefOffset() {
+        return gridDefOffset;
+    }
+
+    public int getProductDefOffset() {
+        return productDefOffset;
+    }
+
+    public int getDataRepOffset() {
+        return dataRepOffset;
+    }
+
+    public int getBitmapOffset() {
+        return bitmapOffset;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public int getProductTemplate() {
+        return productTemplate;
+    }
+
+    public int getParameterCategory() {
+        return parameterCategory;
+    }
+
+    public int getParameterNumber() {
+        return parameterNumber;
+    }
+
+    public int getConstituentType() {
+        return constituentType;
+    }
+
+    public int getForecastTimeUnit() {
+        return forecastTimeUnit;
+    }
+
+    public int getForecastTime() {
+        return forecastTime;
+    }
+
+    public int getLevelType() {
+        return levelType;
+    }
+
+    public double getLevelValue() {
+        return levelValue;
+    }
+
+    @Override
+    public String toString() {
+        return "Grib2Field{message=" + messageIndex
+                + ", discipline=" + discipline
+                + ", parameter=" + parameterCategory + "." + parameterNumber
+                + ", constituent=" + constituentType
+                + ", forecastTime=" + forecastTime + " (unit " + forecastTimeUnit + ")"
+                + ", level=" + levelType + ":" + levelValue + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package com.dbf.aqhi.grib2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of all the fields contained within a GRIB2 file, across all of its messages.
+ * Built while the file is streamed by {@link Grib2Parser#parse(okio.BufferedSource, com.dbf.aqhi.api.datamart.Pollutant, java.util.function.Predicate)},
+ * which keeps the data of a single selected field, see {@link Grib2#getIndex()}.
+ */
+public class Grib2Index {
+
+    private final int messageCount;
+    private final List<Grib2Field> fields;
+
+    public Grib2Index(int messageCount, List<Grib2Field> fields) {
+        this.messageCount = messageCount;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public List<Grib2Field> getFields() {
+        return fields;
+    }
+
+    public int size() {
+        return fields.size();
+    }
+
+    /**
+     * Finds all the fields for a given parameter.
+     *
+     * @param discipline        Table 0.0
+     * @param parameterCategory Table 4.1
+     * @param parameterNumber   Table 4.2
+     * @param constituentType   Table 4.230, or {@link Grib2Field#MISSING} for the templates without a chemical constituent.
+     *                          The chemistry fields share their parameter, mass density for example, and only differ by their constituent.
+     * @return matching fields, in file order, possibly empty
+     */
+    public List<Grib2Field> findFields(int discipline, int parameterCategory, int parameterNumber, int constituentType) {
+        final List<Grib2Field> matches = new ArrayList<Grib2Field>();
+        for (Grib2Field field : fields) {
+            if (field.getDiscipline() == discipline
+                    && field.getParameterCategory() == parameterCategory
+                    && field.getParameterNumber() == parameterNumber
+                    && field.getConstituentType() == constituentType) {
+                matches.add(field);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the first field for a given parameter, constituent, forecast time and level type.
+     *
+     * @return the matching field, or null if none were found
+     */
+    public Grib2Field findField(int discipline, int parameterCategory, int parameterNumber, int constituentType, int forecastTime, int levelType) {
+        for (Grib2Field field : findFields(discipline, parameterCategory, parameterNumber, constituentType)) {
+            if (field.getForecastTime() == forecastTime && field.getLevelType() == levelType) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
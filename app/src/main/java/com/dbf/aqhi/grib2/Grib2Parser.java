@@ -6,61 +6,543 @@ import android.util.Log;
 
 import com.dbf.aqhi.Utils;
 import com.dbf.aqhi.api.datamart.Pollutant;
+import com.dbf.aqhi.jpeg.DecodeThreadBudget;
+import com.dbf.aqhi.jpeg.ImageArrayPool;
+import com.dbf.aqhi.jpeg.ImageStats;
 import com.dbf.aqhi.jpeg.Jpeg2000Decoder;
 import com.dbf.aqhi.jpeg.RawImage;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
 
 public class Grib2Parser {
 
     private static final String LOG_TAG = "Grib2Parser";
 
     private static final long   MAX_BYTES = 100*1024*1024; //100mb, reasonable upper limit
+    private static final int    MAX_SECTION_BYTES = 64*1024; //64kb, for the metadata sections that are fully read into memory
     private static final byte[] GRIB_HEADER = {71, 82, 73, 66}; //"GRIB"
+    private static final ByteString GRIB_HEADER_BYTES = ByteString.of(GRIB_HEADER);
+    private static final long   END_MARKER = 0x37373737; //"7777"
+    private static final int    INDICATOR_LENGTH = 16;
+    private static final int    SECTION_HEADER_LENGTH = 5; //4 bytes for the length + 1 byte for the section number
+
+    //Data representation templates (Table 5.0)
+    static final int DATA_TEMPLATE_SIMPLE = 0;
+    static final int DATA_TEMPLATE_COMPLEX = 2;
+    static final int DATA_TEMPLATE_COMPLEX_SPATIAL = 3;
+    static final int DATA_TEMPLATE_JPEG2000 = 40;
+    static final int DATA_TEMPLATE_PNG = 41;
 
     public static Grib2 parse(byte[] bytes, Pollutant pollutant) throws IOException {
         if(null == bytes || bytes.length == 0) return null;
+        return parse(new Buffer().write(bytes), pollutant);
+    }
 
-        checkHeader(bytes);
-        int byteOffset = 16;
+    /**
+     * Same as {@link #parse(BufferedSource, Pollutant, Predicate)}, keeping the data of the first field of the file.
+     */
+    public static Grib2 parse(BufferedSource source, Pollutant pollutant) throws IOException {
+        return parse(source, pollutant, null);
+    }
 
-        Grib2GridMetaData gridMeta = null;
-        Grib2DataMetaData scaleMeta = null;
-        RawImage rawImage = null;
+    /**
+     * Parses a GRIB2 file directly from a stream, without buffering the whole file in memory.
+     * Files may contain several concatenated messages, and each message may contain several fields (repeated sections 3 to 7).
+     * Every field is indexed, see {@link Grib2#getIndex()}, but only the data of the selected field is kept, the others are skipped.
+     * Only the grid definition (section 3), the product definition (section 4), the data representation (section 5)
+     * and the bitmap (section 6) are read, all other sections are skipped. The data section (section 7) is kept encoded,
+     * it is only decoded on the first access to {@link Grib2#getRawImage()}.
+     *
+     * @param source    Stream positioned at the start of the GRIB2 file.
+     * @param pollutant Pollutant used to scale the decoded values.
+     * @param selector  Selects the field to keep, the first matching field is kept. Null to keep the first field.
+     * @return the parsed {@link Grib2} data, with the image still encoded, or null if no field was selected
+     * @throws IOException if the stream ends prematurely or cannot be read
+     */
+    public static Grib2 parse(BufferedSource source, Pollutant pollutant, Predicate<Grib2Field> selector) throws IOException {
+        final List<Grib2Field> fields = new ArrayList<Grib2Field>();
+        Grib2 grib2 = null;
+        long messageStart = 0; //Offset of the message within the file
+        int messageCount = 0;
+        do {
+            final byte[] indicator = readIndicator(source);
+            final long messageLength = checkIndicator(indicator, 0);
+            if(messageStart + messageLength > MAX_BYTES)
+                throw new IllegalArgumentException("GRIB file too big.");
+
+            final Grib2 selected = parseMessage(source, messageStart, messageLength, messageCount++, readUByte8(indicator, 6),
+                    pollutant, (null == grib2) ? selector : (f -> false), fields);
+            if(null == grib2) grib2 = selected;
+            messageStart += messageLength;
+
+            //Messages may be separated by padding
+            if(source.exhausted()) break;
+            final long next = indexOfNextMessage(source, MAX_BYTES - messageStart);
+            if(next < 0) break;
+            source.skip(next);
+            messageStart += next;
+        } while (true);
+
+        Log.i(LOG_TAG, "Indexed " + fields.size() + " field(s) in " + messageCount + " GRIB2 message(s).");
+        if(null == grib2) {
+            Log.w(LOG_TAG, "No GRIB2 field was selected, out of " + fields.size() + " field(s).");
+            return null;
+        }
+        grib2.setIndex(new Grib2Index(messageCount, fields));
+        return grib2;
+    }
 
-        //Move through the byte array until we reach the end
+    /**
+     * Finds the start of the next message, skipping the padding after the current one.
+     * The search never buffers more than the remaining size allowed for the file, a long tail that isn't GRIB is rejected.
+     *
+     * @param limit number of bytes that may be searched
+     * @return offset of the next message, or -1 if the stream ends first
+     */
+    private static long indexOfNextMessage(BufferedSource source, long limit) throws IOException {
+        long from = 0;
         while (true) {
-            final int sectionStart = byteOffset;
-            final long sectionLength = readUInt32(bytes, sectionStart);
-            if(bytes.length - byteOffset <= 5) break; //End of file
-            switch (Grib2Section.fromCode(bytes[sectionStart + 4])) { //Section number
+            final long index = source.indexOf(GRIB_HEADER[0], from, limit);
+            if(index < 0) {
+                if(source.request(limit)) throw new IllegalArgumentException("GRIB file too big.");
+                return -1;
+            }
+            if(source.rangeEquals(index, GRIB_HEADER_BYTES)) return index;
+            from = index + 1;
+        }
+    }
+
+    /**
+     * Parses a single GRIB2 message, after its indicator section. Every field of the message is added to the index.
+     *
+     * @return the first field that was selected, or null
+     */
+    private static Grib2 parseMessage(BufferedSource source, long messageStart, long messageLength, int messageIndex, int discipline,
+                                      Pollutant pollutant, Predicate<Grib2Field> selector, List<Grib2Field> fields) throws IOException {
+        //Sections 3 to 7 may repeat within a message. Each data section uses the most recent of the preceding sections.
+        //They are only parsed for the selected field, the other fields may use templates that are not supported.
+        byte[] gridDef = null;
+        byte[] productDef = null;
+        byte[] dataRep = null;
+        byte[] bitmapBytes = null;
+        int gridDefOffset = Grib2Field.MISSING;
+        int productDefOffset = Grib2Field.MISSING;
+        int dataRepOffset = Grib2Field.MISSING;
+        int bitmapOffset = Grib2Field.MISSING;
+        Grib2 selected = null;
+
+        //Move through the stream, one section at a time, until we reach the end
+        long bytesRead = INDICATOR_LENGTH;
+        while (bytesRead < messageLength) {
+            final int sectionHeader = source.readInt(); //Section length, or the end marker
+            if(sectionHeader == END_MARKER) break; //End of message
+
+            final long sectionLength = sectionHeader & 0xFFFFFFFFL;
+            if(sectionLength <= SECTION_HEADER_LENGTH || bytesRead + sectionLength > messageLength)
+                throw new IllegalArgumentException("Invalid GRIB2 section length: " + sectionLength + " in message " + messageIndex);
+
+            final int sectionOffset = (int) (messageStart + bytesRead);
+            final int sectionCode = source.readByte() & 0xFF; //Section number
+            final int bodyLength = (int) (sectionLength - SECTION_HEADER_LENGTH);
+            final Grib2Section section = Grib2Section.fromCodeOrNull(sectionCode);
+            if(null == section) {
+                Log.w(LOG_TAG, "Skipping unknown GRIB2 section " + sectionCode + " in message " + messageIndex);
+                source.skip(bodyLength);
+                bytesRead += sectionLength;
+                continue;
+            }
+            switch (section) {
                 case GRID_DEF: //Spec section 3
-                    gridMeta = parseGridDef(bytes, sectionStart);
+                    gridDef = readSection(source, sectionCode, bodyLength);
+                    gridDefOffset = sectionOffset;
+                    break;
+                case PROD_DEF: //Spec section 4
+                    productDef = readSection(source, sectionCode, bodyLength);
+                    productDefOffset = sectionOffset;
                     break;
                 case DATA_REP: //Spec section 5
-                    scaleMeta = parseDataRep(bytes, sectionStart);
+                    dataRep = readSection(source, sectionCode, bodyLength);
+                    dataRepOffset = sectionOffset;
+                    break;
+                case BITMAP: //Spec section 6
+                    //Bitmap indicator: 0 = bitmap follows, 254 = previously defined bitmap applies, 255 = no bitmap
+                    final int bitmapIndicator = source.readByte() & 0xFF;
+                    final int bitmapLength = bodyLength - 1;
+                    if(bitmapIndicator == 0) {
+                        bitmapBytes = source.readByteArray(bitmapLength);
+                        bitmapOffset = sectionOffset;
+                    } else if(bitmapIndicator == 254) {
+                        source.skip(bitmapLength);
+                        if(null == bitmapBytes)
+                            throw new IllegalArgumentException("Invalid GRIB2 bitmap, no previously defined bitmap.");
+                    } else if(bitmapIndicator == 255) {
+                        source.skip(bitmapLength);
+                        bitmapBytes = null;
+                        bitmapOffset = Grib2Field.MISSING;
+                    } else {
+                        throw new IllegalArgumentException("Unsupported GRIB2 predefined bitmap: " + bitmapIndicator);
+                    }
                     break;
                 case DATA: //Spec section 7
-                    rawImage = parseData(bytes, sectionStart, sectionLength, scaleMeta, pollutant);
+                    final Grib2Field field = indexField(productDef, messageIndex, discipline, gridDefOffset, productDefOffset,
+                            dataRepOffset, bitmapOffset, sectionOffset, (int) sectionLength);
+                    fields.add(field);
+                    if(null == selected && (null == selector || selector.test(field))) {
+                        selected = parseField(gridDef, dataRep, bitmapBytes, source.readByteArray(bodyLength), pollutant);
+                    } else {
+                        source.skip(bodyLength);
+                    }
+                    break;
                 default:
+                    //Sections 1 & 2 are not needed
+                    source.skip(bodyLength);
                     break;
             }
-            byteOffset += sectionLength;
-            if(byteOffset >= bytes.length) break; //End of file
+            bytesRead += sectionLength;
         }
+        return selected;
+    }
+
+    /**
+     * Parses the metadata of the selected field, along with its encoded data.
+     *
+     * @param encodedData content of the data section, excluding the section header
+     */
+    private static Grib2 parseField(byte[] gridDef, byte[] dataRep, byte[] bitmapBytes, byte[] encodedData, Pollutant pollutant) {
+        if(null == gridDef || null == dataRep)
+            throw new IllegalArgumentException("Invalid GRIB2 fill, metadata was not parsed correctly.");
+
+        final Grib2GridMetaData gridMeta = parseGridDef(gridDef, 0);
+        final Grib2DataMetaData scaleMeta = parseDataRep(dataRep, 0);
+        final Grib2Bitmap bitmap = (null == bitmapBytes) ? null : Grib2Bitmap.fromBytes(bitmapBytes, 0, bitmapBytes.length, getGridPointCount(gridMeta));
 
-        return new Grib2(gridMeta, scaleMeta, rawImage);
+        final Grib2 grib2 = new Grib2(gridMeta, scaleMeta, null);
+        grib2.setEncodedData(encodedData, bitmap, pollutant);
+        return grib2;
     }
 
-    private static RawImage parseData(byte[] bytes, int sectionStart, long sectionLength, Grib2DataMetaData scaleMeta, Pollutant pollutant) {
+    /**
+     * Decodes the content of a data section (section 7).
+     *
+     * @param data      content of the data section, excluding the section header
+     * @param gridMeta  grid definition of the field
+     * @param scaleMeta data representation of the field
+     * @param bitmap    bitmap of the field, or null if every grid point holds a value
+     * @param pollutant Pollutant used to scale the decoded values.
+     * @param reduction number of times the resolution should be halved, only applies when {@link #supportsPartialDecode} is true
+     * @param area      window of the grid to decode {minX, minY, maxX, maxY} inclusive, or null for the whole grid.
+     *                  Only applies when {@link #supportsPartialDecode} is true.
+     * @param stats     receives the statistics of the decoded values, or null. Should only be provided for complete, full resolution decodes.
+     * @return the decoded image
+     */
+    static RawImage decode(byte[] data, Grib2GridMetaData gridMeta, Grib2DataMetaData scaleMeta, Grib2Bitmap bitmap, Pollutant pollutant, int reduction, int[] area, ImageStats stats) {
         if(null == scaleMeta)
             throw new IllegalArgumentException("Invalid GRIB2 fill, metadata was not parsed correctly.");
 
-        //TODO:Support Reference value R
-        //scale = (R + Y*2^E)*(10^-D)*unit_conversion_scale
-        float scale = (float) (Math.pow(2,scaleMeta.getBinaryScaleE()) * Math.pow(10,-scaleMeta.getDecimalScaleD()) * pollutant.getUnitScale());
-        return Jpeg2000Decoder.decodeJpeg2000(bytes, sectionStart + 5, (int) (sectionLength-4), scale, pollutant.getOverlayMinVal(), pollutant.getOverlayMaxVal(), MAX_PIXEL_VALUE);
+        if(scaleMeta.getDataTemplateNumber() != DATA_TEMPLATE_JPEG2000) {
+            //The Java decoders work directly on the encoded bytes, on the calling thread.
+            //They still count against the decode thread budget.
+            final int threads = DecodeThreadBudget.acquire(1);
+            try {
+                return decodeData(data, 0, data.length, gridMeta, scaleMeta, bitmap, pollutant, stats);
+            } finally {
+                DecodeThreadBudget.release(threads);
+            }
+        }
+
+        //The native decoder requires a direct buffer
+        final ByteBuffer buf = Jpeg2000Decoder.getByteBuffer(data.length);
+        buf.put(data, 0, data.length);
+        final boolean compact = Grib2ValueWriter.supportsCompactCodes(scaleMeta);
+        if(!supportsPartialDecode(scaleMeta, bitmap)) {
+            //With a bitmap, the codestream only holds the valid grid points
+            final int packedCount = (null == bitmap) ? getGridPointCount(gridMeta) : bitmap.getValidCount();
+            final int maxThreads = DecodeThreadBudget.getRequestedThreads();
+            final RawImage packed = compact
+                    ? decodeCodes(buf, data.length, 0, null, packedCount, maxThreads, scaleMeta, pollutant, stats)
+                    : decodeData(buf, data.length, 0, null, packedCount, maxThreads, scaleMeta, pollutant, stats); //Only the valid grid points
+            return applyBitmap(packed, gridMeta, bitmap);
+        }
+
+        //A window only covers a few code-blocks, it's not worth spreading over multiple threads, and it never waits for the thread budget
+        final int maxThreads = (null == area) ? DecodeThreadBudget.getRequestedThreads() : 1;
+        final int pointCount = getDecodedPointCount(gridMeta, reduction, area);
+        return compact
+                ? decodeCodes(buf, data.length, reduction, area, pointCount, maxThreads, scaleMeta, pollutant, stats)
+                : decodeData(buf, data.length, reduction, area, pointCount, maxThreads, scaleMeta, pollutant, stats);
+    }
+
+    /**
+     * Determines if a field can be decoded directly at a reduced resolution, or partially for a window of the grid.
+     * Only JPEG 2000 codestreams of complete grids can, since with a bitmap the codestream only holds the valid grid points.
+     */
+    static boolean supportsPartialDecode(Grib2DataMetaData scaleMeta, Grib2Bitmap bitmap) {
+        return null != scaleMeta && scaleMeta.getDataTemplateNumber() == DATA_TEMPLATE_JPEG2000 && null == bitmap;
+    }
+
+    /**
+     * Describes a field from its product definition section.
+     *
+     * @param productDef product definition section (section 4), including the section header, or null if the message has none
+     */
+    private static Grib2Field indexField(byte[] productDef, int messageIndex, int discipline, int gridDefOffset, int productDefOffset,
+                                         int dataRepOffset, int bitmapOffset, int dataOffset, int dataLength) {
+        int productTemplate   = Grib2Field.MISSING;
+        int parameterCategory = Grib2Field.MISSING;
+        int parameterNumber   = Grib2Field.MISSING;
+        int constituentType   = Grib2Field.MISSING;
+        int forecastTimeUnit  = Grib2Field.MISSING;
+        int forecastTime      = Grib2Field.MISSING;
+        int levelType         = Grib2Field.MISSING;
+        double levelValue     = Double.NaN;
+
+        if(null != productDef) {
+            final int productDefLength = productDef.length;
+            productTemplate   = readUInt16(productDef, 7);
+            parameterCategory = readUByte8(productDef, 9);
+            parameterNumber   = readUByte8(productDef, 10);
+
+            if(hasConstituentType(productTemplate) && productDefLength >= 13) {
+                constituentType = readUInt16(productDef, 11);
+            }
+
+            //The forecast time and the first fixed surface are stored in 11 consecutive octets,
+            //but their location depends on the product template.
+            final int timeOffset = getForecastTimeOffset(productTemplate);
+            if(timeOffset != Grib2Field.MISSING && timeOffset + 11 <= productDefLength) {
+                forecastTimeUnit = readUByte8(productDef, timeOffset);
+                forecastTime     = readInt32(productDef, timeOffset + 1);
+                levelType        = readUByte8(productDef, timeOffset + 5);
+                levelValue       = readScaledValue(productDef, timeOffset + 6);
+            }
+        }
+
+        return new Grib2Field(messageIndex, discipline, gridDefOffset, productDefOffset, dataRepOffset, bitmapOffset,
+                dataOffset, dataLength, productTemplate, parameterCategory, parameterNumber, constituentType,
+                forecastTimeUnit, forecastTime, levelType, levelValue);
+    }
+
+    /**
+     * Determines if a product definition template holds the type of its atmospheric chemical or aerosol constituent,
+     * Table 4.230 or 4.233. It is always in octets 12 and 13.
+     *
+     * @param productTemplate Table 4.0
+     */
+    private static boolean hasConstituentType(int productTemplate) {
+        switch (productTemplate) {
+            case 40: case 41: case 42: case 43: //Atmospheric chemical constituents
+            case 44: case 45: case 46: case 47: //Aerosols, deprecated
+            case 48: case 49:                   //Optical properties of aerosols
+            case 57: case 58:                   //Chemical constituents based on a distribution function
+            case 67: case 68:                   //Same, with a distribution function type
+            case 76: case 77: case 78: case 79: //Chemical constituents with source or sink
+            case 80: case 81: case 82: case 83: //Optical properties of aerosols with source or sink
+            case 84: case 85:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines the position of the "Indicator of unit of time range" octet for a product definition template.
+     * The forecast time and the first fixed surface immediately follow it.
+     * The deprecated aerosol templates 4.44 to 4.47 are not supported, 4.44 stores the forecast time in 2 octets.
+     *
+     * @param productTemplate Table 4.0
+     * @return zero-based offset from the start of section 4, or {@link Grib2Field#MISSING} if the template is not supported
+     */
+    private static int getForecastTimeOffset(int productTemplate) {
+        if(productTemplate >= 0 && productTemplate <= 15) return 17;  //Octet 18 of templates 4.0 to 4.15
+        if(productTemplate >= 40 && productTemplate <= 43) return 19; //Octet 20, after the 2 octet constituent type
+        if(productTemplate == 48 || productTemplate == 49) return 41; //Octet 42, after the aerosol size & wavelength intervals
+        return Grib2Field.MISSING;
+    }
+
+    private static double readScaledValue(byte[] bytes, int offset) {
+        final int rawScale = readUByte8(bytes, offset);
+        final long rawValue = readUInt32(bytes, offset + 1);
+        if(rawScale == 0xFF && rawValue == 0xFFFFFFFFL) return Double.NaN; //Missing
+
+        //Scale factor is a sign-magnitude octet
+        final int scale = (rawScale & 0x80) != 0 ? -(rawScale & 0x7F) : rawScale;
+        return rawValue * Math.pow(10, -scale);
+    }
+
+    /**
+     * Computes the number of grid points the JPEG 2000 decoder will output for a reduction and a decode area,
+     * following the OpenJPEG rounding: each bound is divided by 2^reduction, rounding up.
+     */
+    private static int getDecodedPointCount(Grib2GridMetaData gridMeta, int reduction, int[] area) {
+        final int x0 = (null == area) ? 0 : area[0];
+        final int y0 = (null == area) ? 0 : area[1];
+        final int x1 = (null == area) ? gridMeta.getGridWidth() : area[2] + 1; //Exclusive
+        final int y1 = (null == area) ? gridMeta.getGridHeight() : area[3] + 1;
+        final int div = 1 << reduction;
+        final int width = (x1 + div - 1) / div - (x0 + div - 1) / div;
+        final int height = (y1 + div - 1) / div - (y0 + div - 1) / div;
+        return width * height;
+    }
+
+    private static int getGridPointCount(Grib2GridMetaData gridMeta) {
+        if(null == gridMeta)
+            throw new IllegalArgumentException("Invalid GRIB2 bitmap, the grid definition was not parsed.");
+        return gridMeta.getGridWidth() * gridMeta.getGridHeight();
+    }
+
+    /**
+     * Spreads the values decoded by the native decoder over the full grid, according to the bitmap.
+     * The decoded image only contains the grid points that hold a value.
+     */
+    private static RawImage applyBitmap(RawImage packed, Grib2GridMetaData gridMeta, Grib2Bitmap bitmap) {
+        if(null == bitmap || null == packed) return packed;
+
+        final int packedCount = packed.width * packed.height;
+        if(packedCount != bitmap.getValidCount())
+            throw new IllegalArgumentException("Invalid GRIB2 data, " + packedCount + " value(s) decoded for " + bitmap.getValidCount() + " valid grid point(s).");
+
+        final int pointCount = bitmap.getPointCount();
+        if(null != packed.codes) {
+            final short[] codes = ImageArrayPool.acquireCodes(pointCount);
+            System.arraycopy(packed.codes, 0, codes, 0, packedCount);
+            ImageArrayPool.release(packed); //Only used internally, re-used by the next decode
+            bitmap.expand(codes);
+            return new RawImage(gridMeta.getGridWidth(), gridMeta.getGridHeight(), codes, packed.codeOffset, packed.codeScale,
+                    packed.getPixelLut(), bitmap.getWords(), 0, 0, 0);
+        }
+
+        final float[] values = ImageArrayPool.acquireValues(pointCount);
+        final byte[] pixels = ImageArrayPool.acquirePixels(pointCount);
+        System.arraycopy(packed.values, 0, values, 0, packedCount);
+        System.arraycopy(packed.pixels, 0, pixels, 0, packedCount);
+        ImageArrayPool.release(packed); //Only used internally, re-used by the next decode
+        bitmap.expand(values, pixels);
+        return new RawImage(gridMeta.getGridWidth(), gridMeta.getGridHeight(), pixels, values, bitmap.getWords());
+    }
+
+    /**
+     * Decodes a JPEG 2000 codestream with the native decoder, the statistics of the values are accumulated by its decode loop.
+     *
+     * @param stats receives the statistics of the decoded values, or null
+     */
+    private static RawImage decodeData(ByteBuffer buf, int length, int reduction, int[] area, int pointCount, int maxThreads, Grib2DataMetaData scaleMeta, Pollutant pollutant, ImageStats stats) {
+        if(null == scaleMeta)
+            throw new IllegalArgumentException("Invalid GRIB2 fill, metadata was not parsed correctly.");
+
+        //The native decoder writes directly into pooled arrays of the expected size
+        final byte[] pixels = ImageArrayPool.acquirePixels(pointCount);
+        final float[] values = ImageArrayPool.acquireValues(pointCount);
+
+        //Y = (R + X*2^E)*(10^-D)*unit_conversion_scale = offset + X*scale, the same as the Java decoders
+        final float offset = Grib2ValueWriter.getCodeOffset(scaleMeta, pollutant);
+        final float scale = Grib2ValueWriter.getCodeScale(scaleMeta, pollutant);
+        final RawImage rawImage = Jpeg2000Decoder.decodeJpeg2000(buf, length, reduction, area, maxThreads, pixels, values, offset, scale, pollutant.getOverlayMinVal(), pollutant.getOverlayMaxVal(), MAX_PIXEL_VALUE, stats);
+
+        //Return any unused arrays to the pool
+        if(null == rawImage || rawImage.pixels != pixels) ImageArrayPool.releasePixels(pixels);
+        if(null == rawImage || rawImage.values != values) ImageArrayPool.releaseValues(values);
+        if(null == rawImage)
+            throw new IllegalArgumentException("Failed to decode the JPEG 2000 codestream.");
+        return rawImage;
+    }
+
+    /**
+     * Decodes a JPEG 2000 codestream to its integer codes, the compact representation of the image.
+     * Like {@link #decodeData(ByteBuffer, int, int, int[], int, int, Grib2DataMetaData, Pollutant, ImageStats)}, the reference value R is fully applied.
+     * The decode loop counts the codes, their statistics are then accumulated one distinct code at a time.
+     *
+     * @param stats receives the statistics of the decoded values, or null
+     */
+    private static RawImage decodeCodes(ByteBuffer buf, int length, int reduction, int[] area, int pointCount, int maxThreads, Grib2DataMetaData scaleMeta, Pollutant pollutant, ImageStats stats) {
+        //The native decoder writes directly into a pooled array of the expected size
+        final short[] codes = ImageArrayPool.acquireCodes(pointCount);
+        final int[] codeCounts = (null == stats) ? null : new int[Jpeg2000Decoder.MAX_CODE_COUNT];
+        final int[] info = new int[6];
+        final short[] decoded = Jpeg2000Decoder.decodeJpeg2000Codes(buf, length, reduction, area, maxThreads, codes, codeCounts, info);
+        if(decoded != codes) ImageArrayPool.releaseCodes(codes);
+        if(null == decoded)
+            throw new IllegalArgumentException("Failed to decode the JPEG 2000 codestream.");
+        if(null != stats) stats.addCodeCounts(codeCounts, Grib2ValueWriter.getCodeOffset(scaleMeta, pollutant), Grib2ValueWriter.getCodeScale(scaleMeta, pollutant));
+
+        //Width, height, reduction, origin x, origin y, precision
+        return Grib2ValueWriter.toCodeImage(info[0], info[1], decoded, info[5], null, info[2], info[3], info[4], scaleMeta, pollutant, MAX_PIXEL_VALUE);
+    }
+
+    /**
+     * Decodes the data section of the templates that do not require the native decoder.
+     * Unlike the JPEG 2000 path, the reference value R is fully applied.
+     */
+    private static RawImage decodeData(byte[] data, int offset, int length, Grib2GridMetaData gridMeta, Grib2DataMetaData scaleMeta, Grib2Bitmap bitmap, Pollutant pollutant, ImageStats stats) {
+        if(null == gridMeta || null == scaleMeta)
+            throw new IllegalArgumentException("Invalid GRIB2 fill, metadata was not parsed correctly.");
+
+        final int width = gridMeta.getGridWidth();
+        final int height = gridMeta.getGridHeight();
+        final long pointCount = scaleMeta.getDataPoints(); //Only the grid points that hold a value are packed
+        final long expectedCount = (null == bitmap) ? (long) width * height : bitmap.getValidCount();
+        if(pointCount != expectedCount)
+            throw new IllegalArgumentException("Invalid GRIB2 data, " + pointCount + " data point(s) for " + expectedCount + " valid grid point(s).");
+
+        //The values are decoded at the start of full grid sized arrays, then spread according to the bitmap
+        final Grib2ValueWriter out = new Grib2ValueWriter(width * height, scaleMeta, pollutant, MAX_PIXEL_VALUE, Grib2ValueWriter.supportsCompactCodes(scaleMeta), stats);
+        switch (scaleMeta.getDataTemplateNumber()) {
+            case DATA_TEMPLATE_SIMPLE:
+                Grib2SimpleDecoder.decode(data, offset, length, scaleMeta, out, (int) pointCount);
+                break;
+            case DATA_TEMPLATE_COMPLEX:
+            case DATA_TEMPLATE_COMPLEX_SPATIAL:
+                Grib2ComplexDecoder.decode(data, offset, length, scaleMeta, out, (int) pointCount);
+                break;
+            case DATA_TEMPLATE_PNG:
+                Grib2PngDecoder.decode(data, offset, length, scaleMeta, out, (int) pointCount);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported data template: " + scaleMeta.getDataTemplateNumber());
+        }
+
+        if(null == bitmap) return out.toRawImage(width, height, null);
+        if(null != out.codes) {
+            bitmap.expand(out.codes);
+        } else {
+            bitmap.expand(out.values, out.pixels);
+        }
+        return out.toRawImage(width, height, bitmap.getWords());
+    }
+
+    /**
+     * Reads a complete section into memory. Intended for small sections only.
+     * The returned array includes the 5 byte section header so the section can be parsed
+     * using the same octet offsets as the specification.
+     */
+    private static byte[] readSection(BufferedSource source, int sectionCode, int bodyLength) throws IOException {
+        if(bodyLength > MAX_SECTION_BYTES)
+            throw new IllegalArgumentException("GRIB2 section " + sectionCode + " is too big: " + bodyLength);
+
+        final byte[] section = new byte[SECTION_HEADER_LENGTH + bodyLength];
+        final int sectionLength = section.length;
+        section[0] = (byte) (sectionLength >>> 24);
+        section[1] = (byte) (sectionLength >>> 16);
+        section[2] = (byte) (sectionLength >>> 8);
+        section[3] = (byte) sectionLength;
+        section[4] = (byte) sectionCode;
+
+        int offset = SECTION_HEADER_LENGTH;
+        while (offset < sectionLength) {
+            final int read = source.read(section, offset, sectionLength - offset);
+            if(read < 0) throw new EOFException("GRIB2 section " + sectionCode + " is truncated.");
+            offset += read;
+        }
+        return section;
     }
 
     private static Grib2GridMetaData parseGridDef(byte[] bytes, int sectionStart) {
@@ -72,8 +554,9 @@ public class Grib2Parser {
         final long dataPoints = readUInt32(bytes, sectionStart + 5);
         final int dataTemplateNumber = readUInt16(bytes, sectionStart + 9);
 
-        if(dataTemplateNumber != 40) //Grid Point Data - JPEG2000 Compression
-            throw new IllegalArgumentException("Invalid data type. Only JPEG 2000 codestream is supported.");
+        if(dataTemplateNumber != DATA_TEMPLATE_SIMPLE && dataTemplateNumber != DATA_TEMPLATE_COMPLEX && dataTemplateNumber != DATA_TEMPLATE_COMPLEX_SPATIAL
+                && dataTemplateNumber != DATA_TEMPLATE_JPEG2000 && dataTemplateNumber != DATA_TEMPLATE_PNG)
+            throw new IllegalArgumentException("Unsupported data template: " + dataTemplateNumber + ". Only simple, complex, JPEG 2000 and PNG packing are supported.");
 
         Log.i(LOG_TAG, "Grib2 file contains " + dataPoints + " data point(s) of type " + dataTemplateNumber);
         //As per 92.9.4: Data shall be coded in the form of non-negative scaled differences from a reference value of the whole field plus, if applicable, a local reference value.
@@ -83,26 +566,59 @@ public class Grib2Parser {
         final int nb    = readUByte8(bytes, sectionStart + 19); //Number of bits required to hold the resulting scaled and referenced data values. (i.e. The depth of the grayscale image.)
         final int originalType = readUByte8(bytes, sectionStart + 20); //Type of original field values
 
-        return new Grib2DataMetaData(R, E, D, nb, originalType, dataTemplateNumber, dataPoints);
-    }
-
-    private static void checkHeader(byte[] bytes) {
-        if (bytes.length < 100 ) //sanity check
-            throw new IllegalArgumentException("Invalid GRIB file, too small.");
+        Grib2ComplexPacking complexPacking = null;
+        if(dataTemplateNumber == DATA_TEMPLATE_COMPLEX || dataTemplateNumber == DATA_TEMPLATE_COMPLEX_SPATIAL) {
+            final boolean spatial = dataTemplateNumber == DATA_TEMPLATE_COMPLEX_SPATIAL;
+            complexPacking = new Grib2ComplexPacking(
+                    readUByte8(bytes, sectionStart + 21),  //Group splitting method
+                    readUByte8(bytes, sectionStart + 22),  //Missing value management
+                    (int) readUInt32(bytes, sectionStart + 31), //Number of groups (NG)
+                    readUByte8(bytes, sectionStart + 35),  //Reference for group widths
+                    readUByte8(bytes, sectionStart + 36),  //Number of bits used for the group widths
+                    readUInt32(bytes, sectionStart + 37),  //Reference for group lengths
+                    readUByte8(bytes, sectionStart + 41),  //Length increment for the group lengths
+                    readUInt32(bytes, sectionStart + 42),  //True length of last group
+                    readUByte8(bytes, sectionStart + 46),  //Number of bits used for the scaled group lengths
+                    spatial ? readUByte8(bytes, sectionStart + 47) : 0,  //Order of spatial differencing
+                    spatial ? readUByte8(bytes, sectionStart + 48) : 0); //Number of octets required in the data section to specify extra descriptors
+        }
 
-        if (bytes.length > MAX_BYTES )
-            throw new IllegalArgumentException("GRIB file too big.");
+        return new Grib2DataMetaData(R, E, D, nb, originalType, dataTemplateNumber, dataPoints, complexPacking);
+    }
 
+    /**
+     * Reads the indicator section (section 0), see {@link #checkIndicator(byte[], int)}.
+     */
+    private static byte[] readIndicator(BufferedSource source) throws IOException {
         try {
-            if(!Arrays.equals(bytes, 0, 3, GRIB_HEADER, 0, 3))
-                throw new IllegalArgumentException("Invalid GRIB header, missing \"GRIB\" magic bytes.");
-        } catch(Exception e) {
-            throw new IllegalArgumentException("Invalid GRIB file.", e);
+            return source.readByteArray(INDICATOR_LENGTH);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Invalid GRIB file, too small.", e);
         }
+    }
 
-        final byte gribVersion = bytes[7];
+    /**
+     * Validates the indicator section (section 0) of a message starting at the given offset.
+     *
+     * @return the total length of the GRIB2 message, in bytes
+     */
+    private static long checkIndicator(byte[] bytes, int offset) {
+        if(!Arrays.equals(bytes, offset, offset + GRIB_HEADER.length, GRIB_HEADER, 0, GRIB_HEADER.length))
+            throw new IllegalArgumentException("Invalid GRIB header, missing \"GRIB\" magic bytes.");
+
+        final byte gribVersion = bytes[offset + 7];
         if(gribVersion != 2)
             throw new IllegalArgumentException("Unsupported GRIB version: " + gribVersion);
+
+        //Total length of the message is a 64-bit unsigned value
+        final long messageLength = (readUInt32(bytes, offset + 8) << 32) | readUInt32(bytes, offset + 12);
+        if (messageLength < 100) //sanity check
+            throw new IllegalArgumentException("Invalid GRIB file, too small.");
+
+        if (messageLength > MAX_BYTES || messageLength < 0)
+            throw new IllegalArgumentException("GRIB file too big.");
+
+        return messageLength;
     }
 
     private static Grib2GridMetaData parseGridTemplateLatLon(byte[] bytes, int offset, int gridTemplate) {
@@ -214,6 +730,7 @@ public class Grib2Parser {
     }
 
     private static float readFloat32(byte[] bytes, int offset) {
-        return Float.intBitsToFloat(readInt32(bytes, offset));
+        //IEEE 754, the raw bits must not be read as sign-magnitude
+        return Float.intBitsToFloat((int) readUInt32(bytes, offset));
     }
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package com.dbf.aqhi.grib2;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for grid point data using PNG compression (template 5.41 / 7.41).
+ * <p>
+ * The data section holds a complete PNG image. Each pixel is one packed value, of 1 to 16 bits for grayscale,
+ * 24 bits for RGB and 32 bits for RGBA images. Only the chunks needed to recover the raw samples are
+ * read (IHDR & IDAT), the image is inflated and unfiltered in a single buffer, and the samples are
+ * unpacked with the same bit reader as simple packing.
+ */
+final class Grib2PngDecoder {
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int CHUNK_IHDR = 0x49484452;
+    private static final int CHUNK_IDAT = 0x49444154;
+    private static final int CHUNK_IEND = 0x49454E44;
+
+    private Grib2PngDecoder() {}
+
+    /**
+     * Decodes the packed values of the image into the writer. The image must hold exactly one pixel per data point.
+     */
+    static void decode(byte[] data, int offset, int length, Grib2DataMetaData scaleMeta, Grib2ValueWriter out, int pointCount) {
+        final int end = offset + length;
+        if (length < 8 + 25 || readLong(data, offset) != PNG_SIGNATURE)
+            throw new IllegalArgumentException("Invalid GRIB2 PNG data, missing PNG signature.");
+
+        int width = 0;
+        int height = 0;
+        int bitsPerPixel = 0;
+        int rowBytes = 0;
+        byte[] image = null;
+        int imageLength = 0;
+
+        final Inflater inflater = new Inflater();
+        try {
+            int idx = offset + 8;
+            while (end - idx >= 12) {
+                final int chunkLength = readInt(data, idx);
+                final int chunkType = readInt(data, idx + 4);
+                final int chunkStart = idx + 8;
+                if (chunkLength < 0 || chunkLength > end - chunkStart - 4)
+                    throw new IllegalArgumentException("Invalid GRIB2 PNG chunk length: " + chunkLength);
+
+                if (chunkType == CHUNK_IHDR) {
+                    width = readInt(data, chunkStart);
+                    height = readInt(data, chunkStart + 4);
+                    final int bitDepth = data[chunkStart + 8] & 0xFF;
+                    final int colourType = data[chunkStart + 9] & 0xFF;
+                    final int interlace = data[chunkStart + 12] & 0xFF;
+                    if (interlace != 0)
+                        throw new IllegalArgumentException("Unsupported GRIB2 PNG data, interlaced images are not supported.");
+                    if ((long) width * height != pointCount)
+                        throw new IllegalArgumentException("Invalid GRIB2 PNG data, " + width + "x" + height + " image for " + pointCount + " data points.");
+
+                    bitsPerPixel = bitDepth * getChannels(colourType);
+                    rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+                    image = new byte[height * (rowBytes + 1)]; //Each row is prefixed by its filter type
+                } else if (chunkType == CHUNK_IDAT) {
+                    if (null == image) throw new IllegalArgumentException("Invalid GRIB2 PNG data, IDAT before IHDR.");
+                    inflater.setInput(data, chunkStart, chunkLength);
+                    while (!inflater.needsInput() && !inflater.finished() && imageLength < image.length) {
+                        final int inflated = inflater.inflate(image, imageLength, image.length - imageLength);
+                        if (inflated == 0 && inflater.needsDictionary())
+                            throw new IllegalArgumentException("Invalid GRIB2 PNG data, preset dictionaries are not supported.");
+                        imageLength += inflated;
+                    }
+                } else if (chunkType == CHUNK_IEND) {
+                    break;
+                }
+                idx = chunkStart + chunkLength + 4; //Skip the CRC
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid GRIB2 PNG data, corrupt image stream.", e);
+        } finally {
+            inflater.end();
+        }
+
+        if (null == image || imageLength != image.length)
+            throw new IllegalArgumentException("Invalid GRIB2 PNG data, image is truncated.");
+
+        unfilter(image, height, rowBytes, Math.max(1, bitsPerPixel / 8));
+
+        //Rows are padded to the next octet
+        for (int row = 0, i = 0; row < height; row++) {
+            final Grib2BitReader reader = new Grib2BitReader(image, row * (rowBytes + 1) + 1, rowBytes);
+            for (int col = 0; col < width; col++, i++) {
+                out.write(i, reader.read(bitsPerPixel) & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    private static int getChannels(int colourType) {
+        switch (colourType) {
+            case 0: return 1; //Grayscale
+            case 2: return 3; //RGB
+            case 4: return 2; //Grayscale & alpha
+            case 6: return 4; //RGBA
+            default:
+                throw new IllegalArgumentException("Unsupported GRIB2 PNG colour type: " + colourType);
+        }
+    }
+
+    /**
+     * Reverses the PNG filters in place. The filter type octet of each row is left untouched.
+     */
+    private static void unfilter(byte[] image, int height, int rowBytes, int bpp) {
+        final int stride = rowBytes + 1;
+        for (int row = 0; row < height; row++) {
+            final int start = row * stride + 1;
+            final int prev = start - stride; //Start of the previous row, only valid when row > 0
+            final int filter = image[start - 1];
+            switch (filter) {
+                case 0: //None
+                    break;
+                case 1: //Sub
+                    for (int i = bpp; i < rowBytes; i++) {
+                        image[start + i] += image[start + i - bpp];
+                    }
+                    break;
+                case 2: //Up
+                    if (row == 0) break;
+                    for (int i = 0; i < rowBytes; i++) {
+                        image[start + i] += image[prev + i];
+                    }
+                    break;
+                case 3: //Average
+                    for (int i = 0; i < rowBytes; i++) {
+                        final int left = i >= bpp ? image[start + i - bpp] & 0xFF : 0;
+                        final int up = row > 0 ? image[prev + i] & 0xFF : 0;
+                        image[start + i] += (byte) ((left + up) >>> 1);
+                    }
+                    break;
+                case 4: //Paeth
+                    for (int i = 0; i < rowBytes; i++) {
+                        final int left = i >= bpp ? image[start + i - bpp] & 0xFF : 0;
+                        final int up = row > 0 ? image[prev + i] & 0xFF : 0;
+                        final int upLeft = (row > 0 && i >= bpp) ? image[prev + i - bpp] & 0xFF : 0;
+                        image[start + i] += (byte) paeth(left, up, upLeft);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid GRIB2 PNG filter type: " + filter);
+            }
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        //PNG is big-endian, two's-complement
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -11,6 +11,14 @@ public enum Grib2Section {
     DATA(7),
     END(8);
 
+    private static final Grib2Section[] BY_CODE = new Grib2Section[9];
+
+    static {
+        for (Grib2Section section : values()) {
+            BY_CODE[section.code] = section;
+        }
+    }
+
     private final int code;
 
     Grib2Section(int code) {
@@ -22,11 +30,16 @@ public enum Grib2Section {
     }
 
     public static Grib2Section fromCode(int code) {
-        for (Grib2Section section : values()) {
-            if (section.code == code) {
-                return section;
-            }
-        }
-        throw new IllegalArgumentException("Bad GRIB2 Section code: " + code);
+        final Grib2Section section = fromCodeOrNull(code);
+        if (null == section) throw new IllegalArgumentException("Bad GRIB2 Section code: " + code);
+        return section;
+    }
+
+    /**
+     * Same as {@link #fromCode(int)}, but returns null instead of throwing for unknown codes.
+     * Useful for walking files that may contain sections we don't care about.
+     */
+    public static Grib2Section fromCodeOrNull(int code) {
+        return (code < 0 || code >= BY_CODE.length) ? null : BY_CODE[code];
     }
 }
@@ -0,0 +1,26 @@
+package com.dbf.aqhi.grib2;
+
+/**
+ * Decoder for grid point data using simple packing (template 5.0 / 7.0).
+ * Each value is stored as an unsigned Nb bit integer, without any padding between values.
+ */
+final class Grib2SimpleDecoder {
+
+    private Grib2SimpleDecoder() {}
+
+    static void decode(byte[] data, int offset, int length, Grib2DataMetaData scaleMeta, Grib2ValueWriter out, int pointCount) {
+        final int nb = scaleMeta.getBitsPerValue();
+        if (nb > 32) throw new IllegalArgumentException("Invalid GRIB2 simple packing, " + nb + " bits per value.");
+
+        if (nb == 0) {
+            //Constant field, all values are equal to the reference value
+            for (int i = 0; i < pointCount; i++) out.write(i, 0);
+            return;
+        }
+
+        final Grib2BitReader reader = new Grib2BitReader(data, offset, length);
+        for (int i = 0; i < pointCount; i++) {
+            out.write(i, reader.read(nb) & 0xFFFFFFFFL);
+        }
+    }
+}
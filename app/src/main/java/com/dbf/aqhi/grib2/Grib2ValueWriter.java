@@ -0,0 +1,164 @@
+package com.dbf.aqhi.grib2;
+
+import com.dbf.aqhi.api.datamart.Pollutant;
+import com.dbf.aqhi.jpeg.ImageArrayPool;
+import com.dbf.aqhi.jpeg.ImageStats;
+import com.dbf.aqhi.jpeg.RawImage;
+
+/**
+ * Converts packed GRIB2 integers into scaled values and overlay pixels,
+ * writing directly into the arrays of a {@link RawImage}.
+ * <p>
+ * In compact mode, only the integers are stored, as unsigned 16 bit codes. The values are computed from the codes
+ * when sampled, and the pixels are looked up from a table indexed by code.
+ * <p>
+ * Optionally, the statistics of the values are accumulated in the same pass.
+ */
+final class Grib2ValueWriter {
+    final float[] values;
+    final byte[] pixels;
+    final short[] codes; //Compact mode only
+    private final int codeCount; //Number of possible codes, in compact mode
+    private final ImageStats stats; //Optional
+
+    //Y = (R + X*2^E)*(10^-D)*unit_conversion_scale, pre-computed as Y = offset + X*factor
+    private final float offset;
+    private final float factor;
+
+    private final float minVal;
+    private final float maxVal;
+    private final float alphaScaleFactor;
+    private final byte maxAlpha;
+
+    Grib2ValueWriter(int arraySize, Grib2DataMetaData scaleMeta, Pollutant pollutant, int maxAlpha) {
+        this(arraySize, scaleMeta, pollutant, maxAlpha, false);
+    }
+
+    /**
+     * @param compact true to only store the integer codes, see {@link #supportsCompactCodes(Grib2DataMetaData)}
+     */
+    Grib2ValueWriter(int arraySize, Grib2DataMetaData scaleMeta, Pollutant pollutant, int maxAlpha, boolean compact) {
+        this(arraySize, scaleMeta, pollutant, maxAlpha, compact, null);
+    }
+
+    /**
+     * @param compact true to only store the integer codes, see {@link #supportsCompactCodes(Grib2DataMetaData)}
+     * @param stats   receives the statistics of the written values, or null
+     */
+    Grib2ValueWriter(int arraySize, Grib2DataMetaData scaleMeta, Pollutant pollutant, int maxAlpha, boolean compact, ImageStats stats) {
+        this.stats = stats;
+        if (compact) {
+            this.codes = ImageArrayPool.acquireCodes(arraySize);
+            this.codeCount = 1 << scaleMeta.getBitsPerValue();
+            this.values = null;
+            this.pixels = null;
+        } else {
+            this.codes = null;
+            this.codeCount = 0;
+            this.values = ImageArrayPool.acquireValues(arraySize);
+            this.pixels = ImageArrayPool.acquirePixels(arraySize);
+        }
+
+        this.offset = getCodeOffset(scaleMeta, pollutant);
+        this.factor = getCodeScale(scaleMeta, pollutant);
+
+        this.minVal = pollutant.getOverlayMinVal();
+        this.maxVal = pollutant.getOverlayMaxVal();
+        this.alphaScaleFactor = maxAlpha / (maxVal - minVal);
+        this.maxAlpha = (byte) maxAlpha;
+    }
+
+    /**
+     * @param index position in the grid
+     * @param x     packed integer value, after any spatial differencing
+     */
+    void write(int index, long x) {
+        if (null != codes) {
+            if (x >= codeCount)
+                throw new IllegalArgumentException("Invalid GRIB2 data, value " + x + " exceeds the bits per value.");
+            codes[index] = (short) x;
+            if (null != stats) stats.add(offset + x * factor);
+            return;
+        }
+
+        final float value = offset + x * factor;
+        values[index] = value;
+        if (null != stats) stats.add(value);
+        if (value < minVal) {
+            pixels[index] = 0;
+        } else if (value > maxVal) {
+            pixels[index] = maxAlpha;
+        } else {
+            pixels[index] = (byte) ((value - minVal) * alphaScaleFactor);
+        }
+    }
+
+    void writeMissing(int index) {
+        if (null != codes)
+            throw new IllegalStateException("Missing values can't be represented by integer codes.");
+        values[index] = Float.NaN;
+        pixels[index] = 0;
+    }
+
+    RawImage toRawImage(int width, int height, long[] mask) {
+        if (null != codes) return new RawImage(width, height, codes, offset, factor, buildPixelLut(codeCount, offset, factor, minVal, maxVal, maxAlpha), mask, 0, 0, 0);
+        return new RawImage(width, height, pixels, values, mask);
+    }
+
+    /**
+     * Determines if the data of a field can be stored as integer codes.
+     * The packed integers must fit in 16 bits, and can't include missing values.
+     */
+    static boolean supportsCompactCodes(Grib2DataMetaData scaleMeta) {
+        switch (scaleMeta.getDataTemplateNumber()) {
+            case Grib2Parser.DATA_TEMPLATE_SIMPLE:
+            case Grib2Parser.DATA_TEMPLATE_JPEG2000:
+            case Grib2Parser.DATA_TEMPLATE_PNG:
+                return scaleMeta.getBitsPerValue() >= 0 && scaleMeta.getBitsPerValue() <= 16;
+            default:
+                return false; //Complex packing can have missing values, and spatial differencing can exceed the bits per value
+        }
+    }
+
+    /**
+     * Creates an image from the integer codes of a field.
+     *
+     * @param bits number of bits of the codes
+     */
+    static RawImage toCodeImage(int width, int height, short[] codes, int bits, long[] mask, int reduction, int originX, int originY,
+                                Grib2DataMetaData scaleMeta, Pollutant pollutant, int maxAlpha) {
+        final float offset = getCodeOffset(scaleMeta, pollutant);
+        final float factor = getCodeScale(scaleMeta, pollutant);
+        final byte[] lut = buildPixelLut(1 << bits, offset, factor, pollutant.getOverlayMinVal(), pollutant.getOverlayMaxVal(), (byte) maxAlpha);
+        return new RawImage(width, height, codes, offset, factor, lut, mask, reduction, originX, originY);
+    }
+
+    /**
+     * @return the pixel of every code, [0, codeCount)
+     */
+    private static byte[] buildPixelLut(int codeCount, float offset, float factor, float minVal, float maxVal, byte maxAlpha) {
+        final float alphaScaleFactor = (maxAlpha & 0xFF) / (maxVal - minVal);
+        final byte[] lut = new byte[codeCount];
+        for (int x = 0; x < codeCount; x++) {
+            final float value = offset + x * factor;
+            if (value < minVal) {
+                lut[x] = 0;
+            } else if (value > maxVal) {
+                lut[x] = maxAlpha;
+            } else {
+                lut[x] = (byte) ((value - minVal) * alphaScaleFactor);
+            }
+        }
+        return lut;
+    }
+
+    //Y = (R + X*2^E)*(10^-D)*unit_conversion_scale = offset + X*scale
+
+    static float getCodeOffset(Grib2DataMetaData scaleMeta, Pollutant pollutant) {
+        return (float) (scaleMeta.getReferenceValueR() * Math.pow(10, -scaleMeta.getDecimalScaleD()) * pollutant.getUnitScale());
+    }
+
+    static float getCodeScale(Grib2DataMetaData scaleMeta, Pollutant pollutant) {
+        return (float) (Math.pow(2, scaleMeta.getBinaryScaleE()) * Math.pow(10, -scaleMeta.getDecimalScaleD()) * pollutant.getUnitScale());
+    }
+}
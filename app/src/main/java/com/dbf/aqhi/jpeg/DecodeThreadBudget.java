@@ -0,0 +1,95 @@
+package com.dbf.aqhi.jpeg;
+
+import android.util.Log;
+
+/**
+ * Global budget of the threads used for image decoding, shared by every concurrent decode.
+ * Each decode acquires between 1 and the number of threads it would like, and releases them once complete.
+ * A single decode may use every core, while many concurrent decodes get one thread each.
+ * The total never exceeds the number of cores, except for the single thread windows, which never wait, see {@link #tryAcquire(int)}.
+ */
+public final class DecodeThreadBudget {
+
+    private static final String LOG_TAG = "DecodeThreadBudget";
+
+    //Decodes started from background threads are limited to a single thread, they are not time sensitive
+    public static final int BACKGROUND_THREADS = 1;
+    public static final int ON_DEMAND_THREADS = Integer.MAX_VALUE; //As many as available
+
+    private static final int MAX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final Object LOCK = new Object();
+    private static int available = MAX_THREADS;
+
+    private DecodeThreadBudget() {}
+
+    /**
+     * Reserves threads for a decode, waiting until at least one thread is available.
+     * Every call must be followed by a call to {@link #release(int)} with the returned count.
+     *
+     * @param requested maximum number of threads wanted
+     * @return the number of threads granted, at least 1
+     */
+    public static int acquire(int requested) {
+        synchronized (LOCK) {
+            boolean interrupted = false;
+            while (available < 1) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; //Restore it after, the decode still needs to happen
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+
+            final int granted = Math.max(1, Math.min(requested, available));
+            available -= granted;
+            return granted;
+        }
+    }
+
+    /**
+     * Reserves threads for a decode, without waiting. For the small decodes that may run on the UI thread, such as windows,
+     * which must not wait behind a decode holding every thread. They run with a single thread, even if none was granted.
+     * Every call must be followed by a call to {@link #release(int)} with the returned count.
+     *
+     * @param requested maximum number of threads wanted
+     * @return the number of threads granted, 0 if none is available
+     */
+    public static int tryAcquire(int requested) {
+        synchronized (LOCK) {
+            final int granted = Math.max(0, Math.min(requested, available));
+            available -= granted;
+            return granted;
+        }
+    }
+
+    /**
+     * Returns threads to the budget.
+     *
+     * @param count value returned by {@link #acquire(int)} or {@link #tryAcquire(int)}
+     */
+    public static void release(int count) {
+        if (count == 0) return;
+        synchronized (LOCK) {
+            available += count;
+            if (available > MAX_THREADS) {
+                Log.w(LOG_TAG, "More decode threads released than acquired.");
+                available = MAX_THREADS;
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Determines how many threads a decode started from the current thread should request.
+     * Background work, such as the spatial data updates, runs at minimum priority.
+     */
+    public static int getRequestedThreads() {
+        return Thread.currentThread().getPriority() <= Thread.MIN_PRIORITY ? BACKGROUND_THREADS : ON_DEMAND_THREADS;
+    }
+
+    public static int getMaxThreads() {
+        return MAX_THREADS;
+    }
+}
@@ -0,0 +1,111 @@
+package com.dbf.aqhi.jpeg;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool of the pixel and value arrays backing decoded images, keyed by their exact length.
+ * Every refresh of a field decodes an image of the same size, so its arrays can be reused instead of
+ * allocating about 5 bytes per grid point each time.
+ * <p>
+ * The pooled arrays are only softly referenced, the garbage collector may reclaim them under memory pressure.
+ * Acquired arrays are not cleared, the decoder must write every element.
+ */
+public final class ImageArrayPool {
+
+    private static final int MAX_ARRAYS_PER_SIZE = 2;
+
+    private static final Map<Integer, ArrayDeque<SoftReference<byte[]>>> PIXELS = new HashMap<Integer, ArrayDeque<SoftReference<byte[]>>>();
+    private static final Map<Integer, ArrayDeque<SoftReference<float[]>>> VALUES = new HashMap<Integer, ArrayDeque<SoftReference<float[]>>>();
+    private static final Map<Integer, ArrayDeque<SoftReference<short[]>>> CODES = new HashMap<Integer, ArrayDeque<SoftReference<short[]>>>();
+
+    private ImageArrayPool() {}
+
+    /**
+     * @param length exact length of the array
+     * @return a pooled array of the requested length, or a newly allocated one if none is available
+     */
+    public static byte[] acquirePixels(int length) {
+        final byte[] pooled = poll(PIXELS, length);
+        return (null == pooled) ? new byte[length] : pooled;
+    }
+
+    /**
+     * @param length exact length of the array
+     * @return a pooled array of the requested length, or a newly allocated one if none is available
+     */
+    public static float[] acquireValues(int length) {
+        final float[] pooled = poll(VALUES, length);
+        return (null == pooled) ? new float[length] : pooled;
+    }
+
+    /**
+     * @param length exact length of the array
+     * @return a pooled array of the requested length, or a newly allocated one if none is available
+     */
+    public static short[] acquireCodes(int length) {
+        final short[] pooled = poll(CODES, length);
+        return (null == pooled) ? new short[length] : pooled;
+    }
+
+    public static void releasePixels(byte[] pixels) {
+        if (null != pixels) offer(PIXELS, pixels.length, pixels);
+    }
+
+    public static void releaseValues(float[] values) {
+        if (null != values) offer(VALUES, values.length, values);
+    }
+
+    public static void releaseCodes(short[] codes) {
+        if (null != codes) offer(CODES, codes.length, codes);
+    }
+
+    /**
+     * Returns the arrays of an image to the pool.
+     * The image must no longer be used, by any thread, since its arrays will be overwritten by the next decode.
+     * Images shared between threads are released with {@link RawImage#release()} instead, once their last holder is done.
+     */
+    public static void release(RawImage image) {
+        if (null == image) return;
+        releasePixels(image.pixels);
+        releaseValues(image.values);
+        releaseCodes(image.codes);
+    }
+
+    private static <T> T poll(Map<Integer, ArrayDeque<SoftReference<T>>> pool, int length) {
+        synchronized (pool) {
+            final ArrayDeque<SoftReference<T>> arrays = pool.get(length);
+            if (null == arrays) return null;
+            while (!arrays.isEmpty()) {
+                final T array = arrays.poll().get();
+                if (null != array) return array;
+            }
+            pool.remove(length);
+            return null;
+        }
+    }
+
+    private static <T> void offer(Map<Integer, ArrayDeque<SoftReference<T>>> pool, int length, T array) {
+        synchronized (pool) {
+            ArrayDeque<SoftReference<T>> arrays = pool.get(length);
+            if (null == arrays) {
+                arrays = new ArrayDeque<SoftReference<T>>(MAX_ARRAYS_PER_SIZE);
+                pool.put(length, arrays);
+            }
+
+            //Drop the references that have already been cleared
+            for (Iterator<SoftReference<T>> it = arrays.iterator(); it.hasNext(); ) {
+                final T pooled = it.next().get();
+                if (null == pooled) {
+                    it.remove();
+                } else if (pooled == array) {
+                    return; //Already released
+                }
+            }
+            if (arrays.size() < MAX_ARRAYS_PER_SIZE) arrays.offer(new SoftReference<T>(array));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.dbf.aqhi.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the values of an image, accumulated by the decoders while the values are produced,
+ * so that the range or the distribution of the data can be read without scanning the image again.
+ * <p>
+ * The histogram has {@link #HISTOGRAM_BINS} bins of equal width between a fixed minimum and maximum,
+ * typically the overlay range of the pollutant. Values outside the range are counted in the first or last bin.
+ * The number of values strictly above each of up to 3 levels is also counted, levels below 0 are not defined.
+ * <p>
+ * Only the valid values are accumulated, NaN values are ignored.
+ * Instances are small and are serialized along with the GRIB2 metadata.
+ */
+public class ImageStats {
+
+    public static final int HISTOGRAM_BINS = 32;
+    static final int MAX_LEVELS = 3;
+
+    private final float histogramMin;
+    private final float histogramMax;
+    private final float[] levels;
+
+    private int validCount;
+    private double sum;
+    private float min; //Only meaningful if there are valid values, never infinite so it can be serialized as JSON
+    private float max;
+    private final int[] levelCounts;
+    private final int[] histogram;
+
+    /**
+     * @param histogramMin start of the first bin
+     * @param histogramMax end of the last bin
+     * @param levels       up to 3 levels, a level below 0 is not defined
+     */
+    public ImageStats(float histogramMin, float histogramMax, float... levels) {
+        if (!(histogramMax > histogramMin))
+            throw new IllegalArgumentException("Invalid histogram range: " + histogramMin + " to " + histogramMax);
+        if (levels.length > MAX_LEVELS)
+            throw new IllegalArgumentException("Too many levels: " + levels.length);
+
+        this.histogramMin = histogramMin;
+        this.histogramMax = histogramMax;
+        this.levels = levels.clone();
+        this.levelCounts = new int[levels.length];
+        this.histogram = new int[HISTOGRAM_BINS];
+    }
+
+    /**
+     * Accumulates a single value. This method is called for every grid point by the decoders, it is kept as cheap as possible.
+     */
+    public void add(float value) {
+        if (Float.isNaN(value)) return;
+
+        if (validCount == 0) {
+            min = value;
+            max = value;
+        } else if (value < min) {
+            min = value;
+        } else if (value > max) {
+            max = value;
+        }
+        validCount++;
+        sum += value;
+
+        for (int l = 0; l < levels.length; l++) {
+            if (levels[l] >= 0 && value > levels[l]) levelCounts[l]++;
+        }
+        histogram[getBin(value)]++;
+    }
+
+    /**
+     * Accumulates the first {@code count} values of an array.
+     */
+    public void add(float[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Accumulates the integer codes of a compact image, whose values are {@code offset + code * scale}.
+     * The codes are counted by the decoder, then each distinct code is accumulated once, which is much cheaper than converting every code.
+     *
+     * @param codeCounts number of occurrences of each code
+     */
+    public void addCodeCounts(int[] codeCounts, float offset, float scale) {
+        for (int code = 0; code < codeCounts.length; code++) {
+            final int n = codeCounts[code];
+            if (n == 0) continue;
+
+            final float value = offset + code * scale;
+            if (validCount == 0) {
+                min = value;
+                max = value;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            validCount += n;
+            sum += (double) value * n;
+            for (int l = 0; l < levels.length; l++) {
+                if (levels[l] >= 0 && value > levels[l]) levelCounts[l] += n;
+            }
+            histogram[getBin(value)] += n;
+        }
+    }
+
+    /**
+     * For the native decoder, which accumulates the values itself, see {@link #addNative(int[], double[])}.
+     *
+     * @return {histogram min, histogram max, level 1, level 2, level 3}, undefined levels are -1
+     */
+    float[] getNativeParams() {
+        final float[] params = new float[2 + MAX_LEVELS];
+        params[0] = histogramMin;
+        params[1] = histogramMax;
+        for (int l = 0; l < MAX_LEVELS; l++) {
+            params[2 + l] = (l < levels.length) ? levels[l] : -1;
+        }
+        return params;
+    }
+
+    /**
+     * Accumulates the values counted by the native decoder, with the parameters of {@link #getNativeParams()}.
+     *
+     * @param counts  number of values in each bin of the histogram, followed by the number of values above each level
+     * @param summary {sum, min, max} of the values
+     */
+    void addNative(int[] counts, double[] summary) {
+        int count = 0;
+        for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+            count += counts[bin];
+            histogram[bin] += counts[bin];
+        }
+        if (count == 0) return;
+
+        if (validCount == 0) {
+            min = (float) summary[1];
+            max = (float) summary[2];
+        } else {
+            min = Math.min(min, (float) summary[1]);
+            max = Math.max(max, (float) summary[2]);
+        }
+        validCount += count;
+        sum += summary[0];
+        for (int l = 0; l < levels.length; l++) {
+            levelCounts[l] += counts[HISTOGRAM_BINS + l];
+        }
+    }
+
+    private int getBin(float value) {
+        final int bin = (int) ((value - histogramMin) * HISTOGRAM_BINS / (histogramMax - histogramMin));
+        return Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin));
+    }
+
+    public int getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * @return the smallest value, NaN if there are no valid values
+     */
+    public float getMin() {
+        return validCount == 0 ? Float.NaN : min;
+    }
+
+    /**
+     * @return the largest value, NaN if there are no valid values
+     */
+    public float getMax() {
+        return validCount == 0 ? Float.NaN : max;
+    }
+
+    /**
+     * @return the mean value, NaN if there are no valid values
+     */
+    public float getMean() {
+        return validCount == 0 ? Float.NaN : (float) (sum / validCount);
+    }
+
+    /**
+     * @return {min, max}, or null if there are no valid values
+     */
+    public float[] getValueRange() {
+        return validCount == 0 ? null : new float[]{min, max};
+    }
+
+    /**
+     * @param level level number, starting at 1
+     * @return the number of values strictly above the level, -1 if the level is not defined
+     */
+    public int getLevelCount(int level) {
+        if (level < 1 || level > levels.length || levels[level - 1] < 0) return -1;
+        return levelCounts[level - 1];
+    }
+
+    /**
+     * @return the number of values in each bin, see {@link #getBinStart(int)}
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * @return the start value of a bin of the histogram, the end of the last bin for {@link #HISTOGRAM_BINS}
+     */
+    public float getBinStart(int bin) {
+        return histogramMin + bin * (histogramMax - histogramMin) / HISTOGRAM_BINS;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageStats{valid=" + validCount + ", min=" + getMin() + ", max=" + getMax() + ", mean=" + getMean()
+                + ", levelCounts=" + Arrays.toString(levelCounts) + "}";
+    }
+}
@@ -1,6 +1,7 @@
 package com.dbf.aqhi.jpeg;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Jpeg2000Decoder {
 
@@ -8,6 +9,9 @@ public class Jpeg2000Decoder {
     //Expected to be about 600kb each, and there are 4 threads
     private static final ThreadLocal<ByteBuffer> BYTE_BUFFER = new ThreadLocal<ByteBuffer>();
 
+    //Number of possible integer codes, they are at most 16 bits
+    public static final int MAX_CODE_COUNT = 1 << 16;
+
     static {
         System.loadLibrary("jpeg2000decoder");
     }
@@ -26,6 +30,7 @@ public class Jpeg2000Decoder {
      * @param offset       The offset (in bytes) from the start of {@code jpeg2000Data}
      *                     where the JPEG 2000 image begins.
      * @param length       The length (in bytes) of the JPEG 2000 image within {@code jpeg2000Data}.
+     * @param valueOffset  Offset added to each scaled pixel, the value is {@code valueOffset + pixel * scale}.
      * @param scale        A linear scaling factor applied to each pixel.
      * @param minVal       The minimum post-scaled value that represents 0 alpha
      * @param maxVal       The maximum post-scaled value that represents max_alpha
@@ -33,13 +38,147 @@ public class Jpeg2000Decoder {
      * @return A {@link RawImage} object containing the image dimensions and grayscale pixel data,
      *         or {@code null} if decoding fails.
      */
-    public static RawImage decodeJpeg2000(byte[] jpeg2000Data, int offset, int length, float scale, float minVal, float maxVal, int maxAlpha) {
+    public static RawImage decodeJpeg2000(byte[] jpeg2000Data, int offset, int length, float valueOffset, float scale, float minVal, float maxVal, int maxAlpha) {
         final ByteBuffer buf = getByteBuffer(length);
         buf.put(jpeg2000Data, offset, length);
-        return decodeJpeg2000(buf, 0, length, scale, minVal, maxVal, maxAlpha);
+        return decodeJpeg2000(buf, length, 0, null, DecodeThreadBudget.getRequestedThreads(), valueOffset, scale, minVal, maxVal, maxAlpha);
+    }
+
+    /**
+     * Decodes a single channel JPEG 2000 image that has already been copied into a direct {@link ByteBuffer},
+     * typically one obtained from {@link #getByteBuffer(int)}. The image must start at position 0.
+     *
+     * @param jpeg2000Data Direct byte buffer containing the JPEG 2000 image.
+     * @param length       The length (in bytes) of the JPEG 2000 image within {@code jpeg2000Data}.
+     * @see #decodeJpeg2000(byte[], int, int, float, float, float, float, int)
+     */
+    public static RawImage decodeJpeg2000(ByteBuffer jpeg2000Data, int length, float valueOffset, float scale, float minVal, float maxVal, int maxAlpha) {
+        return decodeJpeg2000(jpeg2000Data, length, 0, null, DecodeThreadBudget.getRequestedThreads(), valueOffset, scale, minVal, maxVal, maxAlpha);
+    }
+
+    /**
+     * Decodes a single channel JPEG 2000 image at a reduced resolution, directly from the lower levels of the wavelet transform.
+     * Each level of reduction halves the width and the height of the image, rounding up. The pixel at (x, y) of the reduced
+     * image corresponds to the pixel at (x * 2^reduction, y * 2^reduction) of the full resolution image.
+     * If the codestream has fewer levels than requested, the resolution is reduced as much as possible.
+     * The reduction that was applied is available from {@link RawImage#reduction}.
+     * <p>
+     * Optionally, only a window of the image can be decoded. Only the code-blocks covering the window are decoded,
+     * which is much faster than decoding the whole image when the window is small. The returned image may be slightly
+     * larger than the window, and its position within the full image is available from {@link RawImage#originX} and {@link RawImage#originY}.
+     * <p>
+     * The code-blocks are decoded in parallel by up to {@code maxThreads} threads, as granted by the {@link DecodeThreadBudget}.
+     * This call may block until at least one decode thread is available. A window never blocks, it is decoded by a single thread.
+     *
+     * @param jpeg2000Data Direct byte buffer containing the JPEG 2000 image.
+     * @param length       The length (in bytes) of the JPEG 2000 image within {@code jpeg2000Data}.
+     * @param reduction    Number of resolution levels to discard, 0 for full resolution.
+     * @param area         Window to decode, in full resolution pixel indices {minX, minY, maxX, maxY} inclusive, or null for the whole image.
+     * @param maxThreads   Maximum number of threads to use, typically {@link DecodeThreadBudget#getRequestedThreads()}.
+     * @see #decodeJpeg2000(byte[], int, int, float, float, float, float, int)
+     */
+    public static RawImage decodeJpeg2000(ByteBuffer jpeg2000Data, int length, int reduction, int[] area, int maxThreads, float valueOffset, float scale, float minVal, float maxVal, int maxAlpha) {
+        return decodeJpeg2000(jpeg2000Data, length, reduction, area, maxThreads, null, null, valueOffset, scale, minVal, maxVal, maxAlpha, null);
+    }
+
+    /**
+     * Decodes a single channel JPEG 2000 image directly into caller provided arrays, typically obtained from the {@link ImageArrayPool}.
+     * The native decoder writes straight into the arrays without any copy. If they are too small for the decoded image,
+     * for example because the resolution could not be reduced as requested, new arrays are allocated instead.
+     * The caller can tell which arrays were used by comparing them with {@link RawImage#pixels} and {@link RawImage#values}.
+     *
+     * The statistics of the values are accumulated by the same loop that writes them.
+     *
+     * @param pixels Output pixel array, or null to allocate one.
+     * @param values Output value array, or null to allocate one.
+     * @param stats  Receives the statistics of the decoded values, or null.
+     * @see #decodeJpeg2000(ByteBuffer, int, int, int[], int, float, float, float, float, int)
+     */
+    public static RawImage decodeJpeg2000(ByteBuffer jpeg2000Data, int length, int reduction, int[] area, int maxThreads, byte[] pixels, float[] values, float valueOffset, float scale, float minVal, float maxVal, int maxAlpha, ImageStats stats) {
+        if (!jpeg2000Data.isDirect())
+            throw new IllegalArgumentException("JPEG 2000 data must be contained in a direct byte buffer.");
+        if (length > jpeg2000Data.capacity())
+            throw new IllegalArgumentException("Invalid JPEG 2000 data length: " + length);
+        if (reduction < 0)
+            throw new IllegalArgumentException("Invalid JPEG 2000 resolution reduction: " + reduction);
+        if (null != area && (area.length != 4 || area[0] < 0 || area[1] < 0 || area[2] < area[0] || area[3] < area[1]))
+            throw new IllegalArgumentException("Invalid JPEG 2000 decode area: " + Arrays.toString(area));
+
+        final float[] statsParams = (null == stats) ? null : stats.getNativeParams();
+        final int[] statsCounts = (null == stats) ? null : new int[ImageStats.HISTOGRAM_BINS + ImageStats.MAX_LEVELS];
+        final double[] statsSummary = (null == stats) ? null : new double[3];
+
+        //A window is decoded by the calling thread alone, it may be the UI thread, so it never waits for the budget
+        final int granted = (null == area) ? DecodeThreadBudget.acquire(maxThreads) : DecodeThreadBudget.tryAcquire(1);
+        final int threads = Math.max(1, granted);
+        final RawImage rawImage;
+        try {
+            if (null == area) {
+                rawImage = decodeJpeg2000(jpeg2000Data, 0, length, reduction, 0, 0, 0, 0, threads, valueOffset, scale, minVal, maxVal, maxAlpha,
+                        pixels, values, statsParams, statsCounts, statsSummary);
+            } else {
+                //OpenJPEG uses exclusive upper bounds
+                rawImage = decodeJpeg2000(jpeg2000Data, 0, length, reduction, area[0], area[1], area[2] + 1, area[3] + 1, threads, valueOffset, scale, minVal, maxVal, maxAlpha,
+                        pixels, values, statsParams, statsCounts, statsSummary);
+            }
+        } finally {
+            DecodeThreadBudget.release(granted);
+        }
+        if (null != rawImage && null != stats) stats.addNative(statsCounts, statsSummary);
+        return rawImage;
     }
 
-    private static ByteBuffer getByteBuffer(int length) {
+    /**
+     * Decodes a single channel JPEG 2000 image to its unsigned integer codes, without any scaling.
+     * This is the most compact form of the image, 2 bytes per pixel, and no precision is lost.
+     * Only images with a precision of up to 16 bits are supported.
+     * <p>
+     * The codes are written directly into the provided array, typically obtained from the {@link ImageArrayPool}.
+     * If it is too small for the decoded image, a new array is allocated instead.
+     *
+     * @param codes      Output code array, or null to allocate one.
+     * @param codeCounts Receives the number of occurrences of each code, counted by the same loop that writes them, see {@link ImageStats#addCodeCounts(int[], float, float)}.
+     *                   Must hold at least {@link #MAX_CODE_COUNT} elements, or null if not needed.
+     * @param info       Receives the width, height, applied reduction, origin X, origin Y and bit precision of the decoded image.
+     * @return the array holding the codes, or {@code null} if decoding fails
+     * @see #decodeJpeg2000(ByteBuffer, int, int, int[], int, float, float, float, float, int)
+     */
+    public static short[] decodeJpeg2000Codes(ByteBuffer jpeg2000Data, int length, int reduction, int[] area, int maxThreads, short[] codes, int[] codeCounts, int[] info) {
+        if (!jpeg2000Data.isDirect())
+            throw new IllegalArgumentException("JPEG 2000 data must be contained in a direct byte buffer.");
+        if (length > jpeg2000Data.capacity())
+            throw new IllegalArgumentException("Invalid JPEG 2000 data length: " + length);
+        if (reduction < 0)
+            throw new IllegalArgumentException("Invalid JPEG 2000 resolution reduction: " + reduction);
+        if (null != area && (area.length != 4 || area[0] < 0 || area[1] < 0 || area[2] < area[0] || area[3] < area[1]))
+            throw new IllegalArgumentException("Invalid JPEG 2000 decode area: " + Arrays.toString(area));
+        if (null == info || info.length < 6)
+            throw new IllegalArgumentException("Invalid JPEG 2000 image info array.");
+        if (null != codeCounts && codeCounts.length < MAX_CODE_COUNT)
+            throw new IllegalArgumentException("Invalid JPEG 2000 code count array.");
+
+        //A window is decoded by the calling thread alone, it may be the UI thread, so it never waits for the budget
+        final int granted = (null == area) ? DecodeThreadBudget.acquire(maxThreads) : DecodeThreadBudget.tryAcquire(1);
+        final int threads = Math.max(1, granted);
+        try {
+            if (null == area) return decodeJpeg2000Codes(jpeg2000Data, 0, length, reduction, 0, 0, 0, 0, threads, codes, codeCounts, info);
+
+            //OpenJPEG uses exclusive upper bounds
+            return decodeJpeg2000Codes(jpeg2000Data, 0, length, reduction, area[0], area[1], area[2] + 1, area[3] + 1, threads, codes, codeCounts, info);
+        } finally {
+            DecodeThreadBudget.release(granted);
+        }
+    }
+
+    /**
+     * Returns a direct byte buffer with at least {@code length} bytes of capacity.
+     * The buffer is reused by the calling thread for subsequent decodes, so it must not be held
+     * onto after the decode is complete.
+     *
+     * @param length minimum capacity in bytes
+     * @return a cleared direct {@link ByteBuffer}
+     */
+    public static ByteBuffer getByteBuffer(int length) {
         if (length > 10000000) {
             //Set some reasonable upper bound so we don't hold too much memory
             //Just return it, don't set it to thread local
@@ -59,5 +198,13 @@ public class Jpeg2000Decoder {
         return buf;
     }
 
-    private static native RawImage decodeJpeg2000(ByteBuffer jpeg2000Data, int offset, int length, float scale, float minVal, float maxVal, int maxAlpha);
+    private static native RawImage decodeJpeg2000(ByteBuffer jpeg2000Data, int offset, int length, int reduction,
+                                                  int areaX0, int areaY0, int areaX1, int areaY1, int threads,
+                                                  float valueOffset, float scale, float minVal, float maxVal, int maxAlpha,
+                                                  byte[] outPixels, float[] outValues,
+                                                  float[] statsParams, int[] outStatsCounts, double[] outStatsSummary);
+
+    private static native short[] decodeJpeg2000Codes(ByteBuffer jpeg2000Data, int offset, int length, int reduction,
+                                                      int areaX0, int areaY0, int areaX1, int areaY1, int threads,
+                                                      short[] outCodes, int[] outCodeCounts, int[] outInfo);
 }
@@ -0,0 +1,163 @@
+package com.dbf.aqhi.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical minimum and maximum of the values of a {@link RawImage}, or of its pixels if it has no values,
+ * so that the range of a region can be found without visiting its grid points.
+ * <p>
+ * The leaves are blocks of {@link #LEAF_SIZE} x {@link #LEAF_SIZE} grid points, and each level above holds the range of 2x2 nodes
+ * of the level below, up to a single node covering the whole image. Queries are conservative: the leaves partially covered by
+ * the region contribute their whole range, which is all that is needed to skip regions that are entirely below or above a threshold.
+ * Each node also records whether every one of its grid points holds a value.
+ */
+public class RangeQuadtree {
+
+    public static final int LEAF_SIZE = 8;
+    private static final int LEAF_SHIFT = 3;
+
+    private final int width;
+    private final int height;
+    private final int originX;
+    private final int originY;
+
+    private final float[][] mins; //POSITIVE_INFINITY for nodes without any value
+    private final float[][] maxs; //NEGATIVE_INFINITY for nodes without any value
+    private final boolean[][] complete; //True if every grid point of the node holds a value
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+
+    RangeQuadtree(RawImage image) {
+        this.width = image.width;
+        this.height = image.height;
+        this.originX = image.originX;
+        this.originY = image.originY;
+
+        int levels = 1;
+        while ((LEAF_SIZE << (levels - 1)) < Math.max(width, height)) levels++;
+        mins = new float[levels][];
+        maxs = new float[levels][];
+        complete = new boolean[levels][];
+        levelWidths = new int[levels];
+        levelHeights = new int[levels];
+
+        //Leaves
+        final int leafWidth = (width + LEAF_SIZE - 1) >> LEAF_SHIFT;
+        final int leafHeight = (height + LEAF_SIZE - 1) >> LEAF_SHIFT;
+        final float[] leafMins = newFilled(leafWidth * leafHeight, Float.POSITIVE_INFINITY);
+        final float[] leafMaxs = newFilled(leafWidth * leafHeight, Float.NEGATIVE_INFINITY);
+        final boolean[] leafComplete = new boolean[leafWidth * leafHeight];
+        Arrays.fill(leafComplete, true);
+
+        final boolean useValues = image.hasValues();
+        final long[] mask = image.mask;
+        for (int y = 0, index = 0; y < height; y++) {
+            final int leafRow = (y >> LEAF_SHIFT) * leafWidth;
+            for (int x = 0; x < width; x++, index++) {
+                final int leaf = leafRow + (x >> LEAF_SHIFT);
+                final float v = (null != mask && (mask[index >>> 6] & (1L << index)) == 0) ? Float.NaN
+                        : useValues ? image.valueAt(index) : image.pixelAt(index);
+                if (Float.isNaN(v)) {
+                    leafComplete[leaf] = false;
+                    continue;
+                }
+                if (v < leafMins[leaf]) leafMins[leaf] = v;
+                if (v > leafMaxs[leaf]) leafMaxs[leaf] = v;
+            }
+        }
+        mins[0] = leafMins;
+        maxs[0] = leafMaxs;
+        complete[0] = leafComplete;
+        levelWidths[0] = leafWidth;
+        levelHeights[0] = leafHeight;
+
+        for (int l = 1; l < levels; l++) {
+            final int bw = levelWidths[l - 1];
+            final int bh = levelHeights[l - 1];
+            final int w = (bw + 1) >> 1;
+            final int h = (bh + 1) >> 1;
+            final float[] levelMins = newFilled(w * h, Float.POSITIVE_INFINITY);
+            final float[] levelMaxs = newFilled(w * h, Float.NEGATIVE_INFINITY);
+            final boolean[] levelComplete = new boolean[w * h];
+            for (int y = 0, node = 0; y < h; y++) {
+                for (int x = 0; x < w; x++, node++) {
+                    boolean nodeComplete = true;
+                    for (int cy = 2 * y; cy <= 2 * y + 1 && cy < bh; cy++) {
+                        for (int cx = 2 * x; cx <= 2 * x + 1 && cx < bw; cx++) {
+                            final int child = cy * bw + cx;
+                            levelMins[node] = Math.min(levelMins[node], mins[l - 1][child]);
+                            levelMaxs[node] = Math.max(levelMaxs[node], maxs[l - 1][child]);
+                            nodeComplete &= complete[l - 1][child];
+                        }
+                    }
+                    levelComplete[node] = nodeComplete;
+                }
+            }
+            mins[l] = levelMins;
+            maxs[l] = levelMaxs;
+            complete[l] = levelComplete;
+            levelWidths[l] = w;
+            levelHeights[l] = h;
+        }
+    }
+
+    private static float[] newFilled(int length, float value) {
+        final float[] array = new float[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    /**
+     * Finds the range of the values within a rectangle of grid indices. The rectangle is clamped to the image.
+     * The range may be wider than the exact range of the rectangle, but never narrower.
+     *
+     * @param minX  first column, inclusive
+     * @param minY  first row, inclusive
+     * @param maxX  last column, inclusive
+     * @param maxY  last row, inclusive
+     * @param range receives {min, max}, min is larger than max if no grid point of the rectangle holds a value
+     * @return true if every grid point of the rectangle holds a value
+     */
+    public boolean getRange(int minX, int minY, int maxX, int maxY, float[] range) {
+        range[0] = Float.POSITIVE_INFINITY;
+        range[1] = Float.NEGATIVE_INFINITY;
+
+        //Relative to the image, then to the leaves
+        minX = Math.max(0, minX - originX) >> LEAF_SHIFT;
+        minY = Math.max(0, minY - originY) >> LEAF_SHIFT;
+        maxX = Math.min(width - 1, maxX - originX);
+        maxY = Math.min(height - 1, maxY - originY);
+        if (maxX < 0 || maxY < 0) return true;
+        maxX >>= LEAF_SHIFT;
+        maxY >>= LEAF_SHIFT;
+        if (maxX < minX || maxY < minY) return true;
+
+        return getRange(mins.length - 1, 0, 0, minX, minY, maxX, maxY, range);
+    }
+
+    private boolean getRange(int level, int nodeX, int nodeY, int minX, int minY, int maxX, int maxY, float[] range) {
+        //Leaves covered by the node
+        final int x0 = nodeX << level;
+        final int y0 = nodeY << level;
+        final int x1 = Math.min(((nodeX + 1) << level) - 1, levelWidths[0] - 1);
+        final int y1 = Math.min(((nodeY + 1) << level) - 1, levelHeights[0] - 1);
+        if (x0 > maxX || y0 > maxY || x1 < minX || y1 < minY) return true; //Disjoint
+
+        if (x0 >= minX && y0 >= minY && x1 <= maxX && y1 <= maxY) {
+            //Inside
+            final int node = nodeY * levelWidths[level] + nodeX;
+            range[0] = Math.min(range[0], mins[level][node]);
+            range[1] = Math.max(range[1], maxs[level][node]);
+            return complete[level][node];
+        }
+
+        //Partially covered, leaves are never partially covered
+        boolean allComplete = true;
+        for (int cy = 2 * nodeY; cy <= 2 * nodeY + 1 && cy < levelHeights[level - 1]; cy++) {
+            for (int cx = 2 * nodeX; cx <= 2 * nodeX + 1 && cx < levelWidths[level - 1]; cx++) {
+                allComplete &= getRange(level - 1, cx, cy, minX, minY, maxX, maxY, range);
+            }
+        }
+        return allComplete;
+    }
+}
@@ -1,16 +1,320 @@
 package com.dbf.aqhi.jpeg;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class RawImage {
+
+    //Fixed-point grid indices used by the span samplers, 16.16
+    public static final int FIXED_SHIFT = 16;
+    public static final int FIXED_ONE = 1 << FIXED_SHIFT;
+    public static final int FIXED_NONE = Integer.MIN_VALUE; //No position, always outside the grid
+
     public final int width;
     public final int height;
+    //The arrays may be pooled, and longer than width * height
+    //Either the pixels and the values are stored, or only the compact codes.
     public final byte[] pixels; //1 byte per pixel, grayscale 0-255
     public final float[] values; //Scaled values prior to conversion to pixel data
 
+    //Compact representation, the original unsigned integer codes of the data, up to 16 bits each.
+    //The value is codeOffset + code * codeScale, and the pixel is looked up from pixelLut, indexed by code.
+    public final short[] codes;
+    public final float codeOffset;
+    public final float codeScale;
+    private final byte[] pixelLut;
+    public final long[] mask; //Packed validity bits, 1 bit per grid point, 64 per word. Null if every point is valid.
+    public final int reduction; //Number of times the resolution was halved, 0 for full resolution
+
+    //Position of this image within the full grid, when only a window of the grid was decoded.
+    //All the grid indices used by this class are relative to the full grid, at the resolution of this image.
+    public final int originX;
+    public final int originY;
+
+    private volatile RangeQuadtree rangeTree; //Built on first use
+
+    //Holders of this image, the creator holds the first reference. See retain() and release().
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
     public RawImage(int width, int height, byte[] pixels, float[] values) {
+        this(width, height, pixels, values, null, 0, 0, 0);
+    }
+
+    public RawImage(int width, int height, byte[] pixels, float[] values, long[] mask) {
+        this(width, height, pixels, values, mask, 0, 0, 0);
+    }
+
+    //Used by the native decoder
+    public RawImage(int width, int height, byte[] pixels, float[] values, int reduction, int originX, int originY) {
+        this(width, height, pixels, values, null, reduction, originX, originY);
+    }
+
+    public RawImage(int width, int height, byte[] pixels, float[] values, long[] mask, int reduction, int originX, int originY) {
+        this(width, height, pixels, values, null, 0, 0, null, mask, reduction, originX, originY);
+    }
+
+    /**
+     * Creates an image using the compact representation, 2 bytes per grid point instead of 5.
+     *
+     * @param codes      unsigned integer codes, up to 16 bits each
+     * @param codeOffset value of code 0
+     * @param codeScale  value increment of each code
+     * @param pixelLut   pixel of each code, must cover every code present in the image
+     */
+    public RawImage(int width, int height, short[] codes, float codeOffset, float codeScale, byte[] pixelLut, long[] mask, int reduction, int originX, int originY) {
+        this(width, height, null, null, codes, codeOffset, codeScale, pixelLut, mask, reduction, originX, originY);
+    }
+
+    private RawImage(int width, int height, byte[] pixels, float[] values, short[] codes, float codeOffset, float codeScale, byte[] pixelLut,
+                     long[] mask, int reduction, int originX, int originY) {
         this.width = width;
         this.height = height;
         this.pixels = pixels;
         this.values = values;
+        this.codes = codes;
+        this.codeOffset = codeOffset;
+        this.codeScale = codeScale;
+        this.pixelLut = pixelLut;
+        this.mask = mask;
+        this.reduction = reduction;
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    /**
+     * Adds a holder of this image, which must call {@link #release()} once it no longer reads it.
+     *
+     * @return false if every holder has already released this image, its arrays may have been reused
+     */
+    public boolean retain() {
+        while (true) {
+            final int count = refCount.get();
+            if (count <= 0) return false;
+            if (refCount.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Removes a holder of this image. Once the last holder is gone, the arrays are returned to the {@link ImageArrayPool},
+     * the image must no longer be read.
+     */
+    public void release() {
+        final int count = refCount.decrementAndGet();
+        if (count == 0) ImageArrayPool.release(this);
+        else if (count < 0) throw new IllegalStateException("The image was released more times than it was retained.");
+    }
+
+    /**
+     * Returns the min/max quadtree of this image, building it on first use.
+     * Building it visits every grid point once, concurrent first calls may each build one.
+     */
+    public RangeQuadtree getRangeTree() {
+        RangeQuadtree tree = rangeTree;
+        if (null == tree) {
+            tree = new RangeQuadtree(this);
+            rangeTree = tree;
+        }
+        return tree;
+    }
+
+    /**
+     * @return the pixel of each code, or null if this image doesn't use the compact representation
+     */
+    public byte[] getPixelLut() {
+        return pixelLut;
+    }
+
+    /**
+     * @return true if the scaled values are available, either stored or computed from the codes
+     */
+    public boolean hasValues() {
+        return null != values || null != codes;
+    }
+
+    /**
+     * @return the pixel at the provided index of this image, [0..255]
+     */
+    int pixelAt(int index) {
+        //Java bytes and shorts are signed, need to convert to int
+        return (null == codes ? pixels[index] : pixelLut[codes[index] & 0xFFFF]) & 0xFF;
+    }
+
+    /**
+     * @return the scaled value at the provided index of this image
+     */
+    float valueAt(int index) {
+        return null == codes ? values[index] : valueAtCode(codes[index] & 0xFFFF);
+    }
+
+    /**
+     * Determines if the provided rectangle of grid indices is entirely covered by this image.
+     *
+     * @return true if every grid point in the rectangle, inclusive, is part of this image
+     */
+    public boolean contains(int minX, int minY, int maxX, int maxY) {
+        return minX >= originX && minY >= originY && maxX < originX + width && maxY < originY + height;
+    }
+
+    /**
+     * @return true if the grid point at (x, y) holds a value
+     */
+    public boolean isValid(int x, int y) {
+        if (null == mask) return true;
+        final int index = (y - originY) * width + (x - originX);
+        return (mask[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return the scaled value of the grid point at (x, y), NaN if it holds no value or this image has no values
+     */
+    public float getValue(int x, int y) {
+        if (!hasValues() || !isValid(x, y)) return Float.NaN;
+        return valueAt((y - originY) * width + (x - originX));
+    }
+
+    /**
+     * Determines if any grid point within the provided rectangle holds a value.
+     * The mask is tested a word at a time, so large empty regions are rejected quickly.
+     *
+     * @param minX first column, inclusive
+     * @param minY first row, inclusive
+     * @param maxX last column, inclusive
+     * @param maxY last row, inclusive
+     * @return true if at least one grid point in the rectangle is valid
+     */
+    public boolean hasValidData(int minX, int minY, int maxX, int maxY) {
+        //Relative to this image
+        minX -= originX;
+        maxX -= originX;
+        minY -= originY;
+        maxY -= originY;
+
+        //Clamp to the grid
+        if (minX < 0) minX = 0;
+        if (minY < 0) minY = 0;
+        if (maxX > width - 1) maxX = width - 1;
+        if (maxY > height - 1) maxY = height - 1;
+        if (minX > maxX || minY > maxY) return false;
+        if (null == mask) return true;
+
+        for (int y = minY; y <= maxY; y++) {
+            final int start = y * width + minX;
+            final int end = y * width + maxX; //Inclusive
+            final int startWord = start >>> 6;
+            final int endWord = end >>> 6;
+            final long startMask = -1L << start;        //Bits from start to the end of the word
+            final long endMask = -1L >>> (63 - (end & 63)); //Bits from the start of the word to end
+
+            if (startWord == endWord) {
+                if ((mask[startWord] & startMask & endMask) != 0) return true;
+                continue;
+            }
+            if ((mask[startWord] & startMask) != 0) return true;
+            for (int w = startWord + 1; w < endWord; w++) {
+                if (mask[w] != 0) return true;
+            }
+            if ((mask[endWord] & endMask) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the next level of a mip pyramid, at half the resolution, rounding up.
+     * Like the reduced resolution JPEG 2000 images, the pixel at (x, y) of the new image corresponds to the pixel at (2x, 2y) of this image.
+     * To stay centred on those points, each point is filtered with the 3x3 [1, 2, 1] kernel, which is a 2x2 box filter applied twice.
+     * Only the valid points are filtered, and a point of the new image is valid if any of its filtered points is valid.
+     *
+     * @return the downsampled image, with its reduction incremented
+     */
+    public RawImage downsample() {
+        if (originX != 0 || originY != 0)
+            throw new IllegalStateException("Only complete images can be downsampled.");
+
+        final int w = (width + 1) >> 1;
+        final int h = (height + 1) >> 1;
+        final int count = w * h;
+        final long[] newMask = (null == mask) ? null : new long[(count + 63) >>> 6];
+        final short[] newCodes = (null == codes) ? null : new short[count];
+        final float[] newValues = (null == values) ? null : new float[count];
+        final byte[] newPixels = (null == pixels) ? null : new byte[count];
+
+        for (int y = 0, index = 0; y < h; y++) {
+            for (int x = 0; x < w; x++, index++) {
+                int weight = 0;
+                long codeSum = 0;
+                int pixelSum = 0;
+                double valueSum = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    final int sy = 2 * y + dy;
+                    if (sy < 0 || sy >= height) continue;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        final int sx = 2 * x + dx;
+                        if (sx < 0 || sx >= width) continue;
+                        final int src = sy * width + sx;
+                        if (null != mask && (mask[src >>> 6] & (1L << src)) == 0) continue;
+                        final float v = (null != values) ? values[src] : 0;
+                        if (Float.isNaN(v)) continue; //Missing value
+                        final int k = (2 - Math.abs(dx)) * (2 - Math.abs(dy)); //1, 2 or 4
+                        weight += k;
+                        if (null != codes) codeSum += k * (codes[src] & 0xFFFF);
+                        if (null != values) valueSum += k * v;
+                        if (null != pixels) pixelSum += k * (pixels[src] & 0xFF);
+                    }
+                }
+
+                if (weight == 0) {
+                    //No valid point
+                    if (null != newValues) newValues[index] = Float.NaN;
+                    continue; //The codes and pixels are already 0
+                }
+                if (null != newMask) newMask[index >>> 6] |= 1L << index;
+                if (null != newCodes) newCodes[index] = (short) ((codeSum + (weight >> 1)) / weight);
+                if (null != newValues) newValues[index] = (float) (valueSum / weight);
+                if (null != newPixels) newPixels[index] = (byte) ((pixelSum + (weight >> 1)) / weight);
+            }
+        }
+
+        if (null != codes) return new RawImage(w, h, newCodes, codeOffset, codeScale, pixelLut, newMask, reduction + 1, 0, 0);
+        return new RawImage(w, h, newPixels, newValues, newMask, reduction + 1, 0, 0);
+    }
+
+    /**
+     * Computes the range of the values of the valid grid points.
+     * Every grid point is visited, it's best used on reduced resolution images.
+     *
+     * @return {min, max}, or null if the image has no values or no valid grid point
+     */
+    public float[] getValueRange() {
+        if (!hasValues()) return null;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        final int count = width * height;
+        if (null != codes && null == mask) {
+            //Only compare the codes, the values are a linear function of them
+            int minCode = Integer.MAX_VALUE;
+            int maxCode = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                final int code = codes[i] & 0xFFFF;
+                if (code < minCode) minCode = code;
+                if (code > maxCode) maxCode = code;
+            }
+            if (count > 0) {
+                min = Math.min(valueAtCode(minCode), valueAtCode(maxCode));
+                max = Math.max(valueAtCode(minCode), valueAtCode(maxCode));
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (null != mask && (mask[i >>> 6] & (1L << i)) == 0) continue;
+                final float v = valueAt(i);
+                if (v < min) min = v; //NaN is never smaller or larger
+                if (v > max) max = v;
+            }
+        }
+        return (min <= max) ? new float[]{min, max} : null;
+    }
+
+    private float valueAtCode(int code) {
+        return codeOffset + code * codeScale;
     }
 
     /**
@@ -19,9 +323,12 @@ public class RawImage {
      *
      * @param fractionalX X position to sample
      * @param fractionalY Y position to sample
-     * @return [0..255]
+     * @return [0..255], -1 if the X, Y position is outside the grid or has no valid data
      */
     public int samplePixelsBilinear(double fractionalX, double fractionalY) {
+        fractionalX -= originX;
+        fractionalY -= originY;
+
         //Outside grid
         if (fractionalX < 0 || fractionalY < 0 || fractionalX > width - 1 || fractionalY > height - 1) return -1;
 
@@ -33,11 +340,23 @@ public class RawImage {
         final int row0 = j0 * width;
         final int row1 = j1 * width;
 
-        //Java bytes are signed, need to convert to int
-        final int a00 = pixels[row0 + i0] & 0xFF;
-        final int a10 = pixels[row0 + i1] & 0xFF;
-        final int a01 = pixels[row1 + i0] & 0xFF;
-        final int a11 = pixels[row1 + i1] & 0xFF;
+        if (null != mask) {
+            final int valid = cornerMask(row0 + i0, row0 + i1, row1 + i0, row1 + i1);
+            if (valid == 0) return -1; //No data
+            if (valid != 0xF) {
+                //Partially masked, only interpolate the valid corners
+                final double v = sampleMasked(valid, pixelAt(row0 + i0), pixelAt(row0 + i1),
+                        pixelAt(row1 + i0), pixelAt(row1 + i1), fractionalX - i0, fractionalY - j0);
+                if (Double.isNaN(v)) return -1;
+                final int a = (int) (v + 0.5f);
+                return (a < 0) ? 0 : (a > 255 ? 255 : a);
+            }
+        }
+
+        final int a00 = pixelAt(row0 + i0);
+        final int a10 = pixelAt(row0 + i1);
+        final int a01 = pixelAt(row1 + i0);
+        final int a11 = pixelAt(row1 + i1);
 
         final double dx = (fractionalX - i0);
         final double a0 = a00 + dx * (a10 - a00);
@@ -56,6 +375,9 @@ public class RawImage {
      * @return the sampled value as a float, NaN if the provided X, Y position was out of bounds
      */
     public float sampleValuesBilinear(float fractionalX, float fractionalY) {
+        fractionalX -= originX;
+        fractionalY -= originY;
+
         //Outside grid
         if (fractionalX < 0 || fractionalY < 0 || fractionalX > width - 1 || fractionalY > height - 1) return Float.NaN;
 
@@ -66,14 +388,220 @@ public class RawImage {
 
         final int row0 = j0 * width;
         final int row1 = j1 * width;
-        final float a00 = values[row0 + i0];
-        final float a10 = values[row0 + i1];
-        final float a01 = values[row1 + i0];
-        final float a11 = values[row1 + i1];
+
+        if (null != mask) {
+            final int valid = cornerMask(row0 + i0, row0 + i1, row1 + i0, row1 + i1);
+            if (valid == 0) return Float.NaN; //No data
+            if (valid != 0xF) {
+                //Partially masked, only interpolate the valid corners
+                return (float) sampleMasked(valid, valueAt(row0 + i0), valueAt(row0 + i1),
+                        valueAt(row1 + i0), valueAt(row1 + i1), fractionalX - i0, fractionalY - j0);
+            }
+        }
+
+        final float a00 = valueAt(row0 + i0);
+        final float a10 = valueAt(row0 + i1);
+        final float a01 = valueAt(row1 + i0);
+        final float a11 = valueAt(row1 + i1);
 
         final float dx = (fractionalX - i0);
         final float a0 = a00 + dx * (a10 - a00);
         final float a1 = a01 + dx * (a11 - a01);
         return a0 + (fractionalY - j0) * (a1 - a0);
     }
+
+    /**
+     * Batch version of {@link #sampleValuesBilinear(float, float)}, for fractional grid indices in separate arrays.
+     *
+     * @param out receives the sampled values, NaN for the positions out of bounds
+     */
+    public void sampleValuesBilinear(double[] fractionalX, double[] fractionalY, float[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = sampleValuesBilinear((float) fractionalX[i], (float) fractionalY[i]);
+        }
+    }
+
+    /**
+     * Batch version of {@link #samplePixelsBilinear(double, double)}, for fractional grid indices in separate arrays.
+     *
+     * @param out receives the sampled pixels, -1 for the positions out of bounds or without valid data
+     */
+    public void samplePixelsBilinear(double[] fractionalX, double[] fractionalY, int[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            out[i] = samplePixelsBilinear(fractionalX[i], fractionalY[i]);
+        }
+    }
+
+    /**
+     * Converts a fractional grid index to the 16.16 fixed-point format of the span samplers.
+     *
+     * @return the fixed-point index, {@link #FIXED_NONE} for NaN
+     */
+    public static int toFixed(double fractional) {
+        if (Double.isNaN(fractional)) return FIXED_NONE;
+        return (int) (fractional * FIXED_ONE); //Saturates for large values, which are outside the grid anyway
+    }
+
+    /**
+     * Fixed-point bilinear sampling of the 8-bit pixel grid, for a span of positions such as a scanline of a tile.
+     * The interpolation uses 8-bit weights, the result is within 1 of {@link #samplePixelsBilinear(double, double)}.
+     * When every position of the span is inside the grid, the bounds checks are done once for the whole span.
+     *
+     * @param fixedX 16.16 fixed-point X positions, see {@link #toFixed(double)}
+     * @param fixedY 16.16 fixed-point Y positions
+     * @param out    receives the pixels, [0..255], -1 if the position is outside the grid or has no valid data
+     */
+    public void samplePixelsSpan(int[] fixedX, int[] fixedY, int[] out, int count) {
+        if (null != mask) {
+            //Masked corners need the re-normalized weights, not worth a fixed-point version
+            for (int i = 0; i < count; i++) {
+                out[i] = (fixedX[i] == FIXED_NONE || fixedY[i] == FIXED_NONE) ? -1
+                        : samplePixelsBilinear((double) fixedX[i] / FIXED_ONE, (double) fixedY[i] / FIXED_ONE);
+            }
+            return;
+        }
+
+        if (isSpanInside(fixedX, fixedY, count)) {
+            //Fast path, the right and bottom neighbours always exist
+            for (int i = 0; i < count; i++) {
+                final int fx = fixedX[i] - (originX << FIXED_SHIFT);
+                final int fy = fixedY[i] - (originY << FIXED_SHIFT);
+                final int index = (fy >> FIXED_SHIFT) * width + (fx >> FIXED_SHIFT);
+                out[i] = interpolateFixed(pixelAt(index), pixelAt(index + 1), pixelAt(index + width), pixelAt(index + width + 1), fx, fy);
+            }
+            return;
+        }
+
+        final int maxX = (width - 1) << FIXED_SHIFT;
+        final int maxY = (height - 1) << FIXED_SHIFT;
+        for (int i = 0; i < count; i++) {
+            if (fixedX[i] == FIXED_NONE || fixedY[i] == FIXED_NONE) {
+                out[i] = -1;
+                continue;
+            }
+            final int fx = fixedX[i] - (originX << FIXED_SHIFT);
+            final int fy = fixedY[i] - (originY << FIXED_SHIFT);
+            if (fx < 0 || fy < 0 || fx > maxX || fy > maxY) {
+                out[i] = -1; //Outside grid
+                continue;
+            }
+            final int i0 = fx >> FIXED_SHIFT;
+            final int j0 = fy >> FIXED_SHIFT;
+            final int i1 = Math.min(i0 + 1, width - 1);
+            final int row0 = j0 * width;
+            final int row1 = Math.min(j0 + 1, height - 1) * width;
+            out[i] = interpolateFixed(pixelAt(row0 + i0), pixelAt(row0 + i1), pixelAt(row1 + i0), pixelAt(row1 + i1), fx, fy);
+        }
+    }
+
+    /**
+     * Bilinear sampling of the values, for a span of fixed-point positions.
+     *
+     * @param out receives the values, NaN if the position is outside the grid or has no valid data
+     * @see #samplePixelsSpan(int[], int[], int[], int)
+     */
+    public void sampleValuesSpan(int[] fixedX, int[] fixedY, float[] out, int count) {
+        if (null != mask) {
+            for (int i = 0; i < count; i++) {
+                out[i] = (fixedX[i] == FIXED_NONE || fixedY[i] == FIXED_NONE) ? Float.NaN
+                        : sampleValuesBilinear((float) fixedX[i] / FIXED_ONE, (float) fixedY[i] / FIXED_ONE);
+            }
+            return;
+        }
+
+        if (isSpanInside(fixedX, fixedY, count)) {
+            //Fast path, the right and bottom neighbours always exist
+            for (int i = 0; i < count; i++) {
+                final int fx = fixedX[i] - (originX << FIXED_SHIFT);
+                final int fy = fixedY[i] - (originY << FIXED_SHIFT);
+                final int index = (fy >> FIXED_SHIFT) * width + (fx >> FIXED_SHIFT);
+                out[i] = interpolate(valueAt(index), valueAt(index + 1), valueAt(index + width), valueAt(index + width + 1), fx, fy);
+            }
+            return;
+        }
+
+        final int maxX = (width - 1) << FIXED_SHIFT;
+        final int maxY = (height - 1) << FIXED_SHIFT;
+        for (int i = 0; i < count; i++) {
+            if (fixedX[i] == FIXED_NONE || fixedY[i] == FIXED_NONE) {
+                out[i] = Float.NaN;
+                continue;
+            }
+            final int fx = fixedX[i] - (originX << FIXED_SHIFT);
+            final int fy = fixedY[i] - (originY << FIXED_SHIFT);
+            if (fx < 0 || fy < 0 || fx > maxX || fy > maxY) {
+                out[i] = Float.NaN; //Outside grid
+                continue;
+            }
+            final int i0 = fx >> FIXED_SHIFT;
+            final int j0 = fy >> FIXED_SHIFT;
+            final int i1 = Math.min(i0 + 1, width - 1);
+            final int row0 = j0 * width;
+            final int row1 = Math.min(j0 + 1, height - 1) * width;
+            out[i] = interpolate(valueAt(row0 + i0), valueAt(row0 + i1), valueAt(row1 + i0), valueAt(row1 + i1), fx, fy);
+        }
+    }
+
+    /**
+     * @return true if every position of the span has its 4 corners inside this image
+     */
+    private boolean isSpanInside(int[] fixedX, int[] fixedY, int count) {
+        //Strictly below the last row and column, so the right and bottom neighbours exist.
+        //FIXED_NONE is negative so it's always outside.
+        final int limitX = (originX + width - 1) << FIXED_SHIFT;
+        final int limitY = (originY + height - 1) << FIXED_SHIFT;
+        final int minX = originX << FIXED_SHIFT;
+        final int minY = originY << FIXED_SHIFT;
+        for (int i = 0; i < count; i++) {
+            final int fx = fixedX[i];
+            final int fy = fixedY[i];
+            if (fx < minX || fy < minY || fx >= limitX || fy >= limitY) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Integer bilinear interpolation with 8-bit weights, taken from the 8 most significant bits of the fractions.
+     */
+    private static int interpolateFixed(int a00, int a10, int a01, int a11, int fx, int fy) {
+        final int wx = (fx >> (FIXED_SHIFT - 8)) & 0xFF;
+        final int wy = (fy >> (FIXED_SHIFT - 8)) & 0xFF;
+        final int a0 = (a00 << 8) + wx * (a10 - a00);
+        final int a1 = (a01 << 8) + wx * (a11 - a01);
+        return ((a0 << 8) + wy * (a1 - a0) + (1 << 15)) >> 16; //+ (1 << 15) is for rounding
+    }
+
+    private static float interpolate(float a00, float a10, float a01, float a11, int fx, int fy) {
+        final float dx = (fx & (FIXED_ONE - 1)) * (1f / FIXED_ONE);
+        final float dy = (fy & (FIXED_ONE - 1)) * (1f / FIXED_ONE);
+        final float a0 = a00 + dx * (a10 - a00);
+        final float a1 = a01 + dx * (a11 - a01);
+        return a0 + dy * (a1 - a0);
+    }
+
+    /**
+     * @return the validity of the 4 corners, as bits 0 (a00), 1 (a10), 2 (a01) and 3 (a11)
+     */
+    private int cornerMask(int i00, int i10, int i01, int i11) {
+        //The two corners of a row are usually in the same word
+        final long w0 = mask[i00 >>> 6];
+        final long w1 = mask[i01 >>> 6];
+        return (int) ((w0 >>> i00) & 1)
+                | (int) (((i10 >>> 6 == i00 >>> 6 ? w0 : mask[i10 >>> 6]) >>> i10) & 1) << 1
+                | (int) ((w1 >>> i01) & 1) << 2
+                | (int) (((i11 >>> 6 == i01 >>> 6 ? w1 : mask[i11 >>> 6]) >>> i11) & 1) << 3;
+    }
+
+    /**
+     * Bilinear interpolation restricted to the valid corners, the weights are re-normalized so they sum to 1.
+     */
+    private static double sampleMasked(int valid, double a00, double a10, double a01, double a11, double dx, double dy) {
+        final double w00 = (valid & 1) != 0 ? (1 - dx) * (1 - dy) : 0;
+        final double w10 = (valid & 2) != 0 ? dx * (1 - dy) : 0;
+        final double w01 = (valid & 4) != 0 ? (1 - dx) * dy : 0;
+        final double w11 = (valid & 8) != 0 ? dx * dy : 0;
+        final double weight = w00 + w10 + w01 + w11;
+        if (weight <= 0) return Double.NaN; //The sample position is exactly on an invalid grid point
+        return (w00 * a00 + w10 * a10 + w01 * a01 + w11 * a11) / weight;
+    }
 }
@@ -0,0 +1,69 @@
+package com.dbf.aqhi.jpeg;
+
+/**
+ * Aggregate of the values of a region of the grid, as computed by a {@link SummedAreaTable}.
+ * A region can be accumulated from several rectangles, for example the rows of a disc.
+ */
+public class RegionStats {
+    private final float threshold;
+
+    private int cellCount; //Number of grid points in the region
+    private int validCount; //Number of grid points that hold a value
+    private int exceedanceCount; //Number of valid grid points above the threshold
+    private double sum;
+    private float max = Float.NEGATIVE_INFINITY;
+
+    /**
+     * @param threshold value above which a grid point counts as an exceedance, NaN if not needed
+     */
+    public RegionStats(float threshold) {
+        this.threshold = threshold;
+    }
+
+    void add(int cellCount, int validCount, double sum, float max, int exceedanceCount) {
+        this.cellCount += cellCount;
+        this.validCount += validCount;
+        this.sum += sum;
+        this.exceedanceCount += exceedanceCount;
+        if (max > this.max) this.max = max;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public int getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * @return the mean value of the valid grid points, NaN if there are none
+     */
+    public float getMean() {
+        return validCount == 0 ? Float.NaN : (float) (sum / validCount);
+    }
+
+    /**
+     * @return the maximum value of the valid grid points, NaN if there are none
+     */
+    public float getMax() {
+        return validCount == 0 ? Float.NaN : max;
+    }
+
+    /**
+     * @return the fraction of the valid grid points above the threshold, [0..1], NaN if there are none or there is no threshold
+     */
+    public float getExceedanceFraction() {
+        return (validCount == 0 || Float.isNaN(threshold)) ? Float.NaN : (float) exceedanceCount / validCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RegionStats{cells=" + cellCount + ", valid=" + validCount + ", mean=" + getMean()
+                + ", max=" + getMax() + ", exceedance=" + getExceedanceFraction() + "}";
+    }
+}
@@ -0,0 +1,253 @@
+package com.dbf.aqhi.jpeg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Answers aggregate queries on rectangles of the values of a {@link RawImage}, without visiting each grid point.
+ * <p>
+ * The sum and the number of valid grid points of any rectangle are computed in constant time from a summed-area table,
+ * where each entry holds the total of the rectangle from the origin of the grid. The maximum is computed from a quadtree of
+ * maximums, stored as a pyramid of levels where each node is the maximum of 2x2 nodes of the level below,
+ * so only the nodes along the edges of the rectangle are visited. The bottom level is the image itself, it is not copied.
+ * <p>
+ * To keep the table at 4 bytes per grid point, the values are quantized to {@link #getQuantizationStep()} before they are summed,
+ * into ints that are allowed to overflow: the total of any rectangle fits in 32 unsigned bits, so the differences of the table are exact.
+ * The mean of a region is exact to within half a step, about 1/12000 of the range of the values for a 700k point grid.
+ * <p>
+ * The fraction of the grid points above a threshold uses a summed-area table of exceedance counts, built on first use
+ * for each threshold. Only the tables of the most recently used thresholds are kept.
+ * <p>
+ * The table holds a reference to its image, see {@link RawImage#retain()}. Like the image, it is released by its last holder with {@link #release()}.
+ * Building the tables visits every grid point twice, it should be done once per image, off the UI thread.
+ * Grid points without a value, masked or NaN, are excluded from every aggregate.
+ */
+public class SummedAreaTable {
+
+    private static final int MAX_THRESHOLDS = 2;
+    private static final long MAX_QUANTIZED = 0xFFFF; //Finer steps than 16 bits wouldn't be any more exact than the data
+
+    public final int width;
+    public final int height;
+
+    private final RawImage image;
+    private final int[] sums; //(width + 1) * (height + 1), the first row and column are 0. Quantized, wraps around.
+    private final int[] counts; //Same layout as the sums, null if every grid point holds a value
+    private final double offset; //Value of quantized 0
+    private final double step; //Value increment of each quantized unit
+    private final float[][] maxLevels; //Level 0 is the image itself and is null, NEGATIVE_INFINITY without a value
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+
+    //Most recently used thresholds first
+    private final Map<Float, int[]> exceedanceTables = new LinkedHashMap<Float, int[]>(MAX_THRESHOLDS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Float, int[]> eldest) {
+            return size() > MAX_THRESHOLDS;
+        }
+    };
+
+    /**
+     * Builds the tables from the values of a complete image. The image is retained until the table is released.
+     *
+     * @param image image with values, not a window
+     */
+    public SummedAreaTable(RawImage image) {
+        if (null == image || !image.hasValues())
+            throw new IllegalArgumentException("Image must have values.");
+        if (image.originX != 0 || image.originY != 0)
+            throw new IllegalArgumentException("Image must not be a window.");
+        if (!image.retain())
+            throw new IllegalArgumentException("Image was already released.");
+
+        this.image = image;
+        this.width = image.width;
+        this.height = image.height;
+
+        //The range of the values sets the quantization step
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        boolean allValid = true;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final float v = image.getValue(x, y);
+                if (Float.isNaN(v)) {
+                    allValid = false;
+                } else {
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+            }
+        }
+        final long maxQuantized = Math.min(MAX_QUANTIZED, 0xFFFFFFFFL / Math.max(1L, (long) width * height));
+        offset = (min <= max) ? min : 0;
+        step = (max > min) ? ((double) max - min) / maxQuantized : 1;
+
+        final int stride = width + 1;
+        final double invStep = 1.0 / step;
+        sums = new int[stride * (height + 1)];
+        counts = allValid ? null : new int[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            int rowSum = 0;
+            int rowCount = 0;
+            final int row = (y + 1) * stride;
+            for (int x = 0; x < width; x++) {
+                final float v = image.getValue(x, y);
+                if (!Float.isNaN(v)) {
+                    rowSum += (int) Math.round((v - offset) * invStep);
+                    rowCount++;
+                }
+                sums[row + x + 1] = sums[row - stride + x + 1] + rowSum; //May overflow, only the differences are used
+                if (null != counts) counts[row + x + 1] = counts[row - stride + x + 1] + rowCount;
+            }
+        }
+
+        //Build the quadtree, until a single node covers the whole grid
+        int levels = 1;
+        while ((1 << (levels - 1)) < Math.max(width, height)) levels++;
+        maxLevels = new float[levels][];
+        levelWidths = new int[levels];
+        levelHeights = new int[levels];
+        levelWidths[0] = width;
+        levelHeights[0] = height;
+        for (int l = 1; l < levels; l++) {
+            final float[] below = maxLevels[l - 1];
+            final int bw = levelWidths[l - 1];
+            final int bh = levelHeights[l - 1];
+            final int w = (bw + 1) >> 1;
+            final int h = (bh + 1) >> 1;
+            final float[] level = new float[w * h];
+            for (int y = 0; y < h; y++) {
+                final int y0 = 2 * y;
+                final int y1 = Math.min(y0 + 1, bh - 1);
+                for (int x = 0; x < w; x++) {
+                    final int x0 = 2 * x;
+                    final int x1 = Math.min(x0 + 1, bw - 1);
+                    level[y * w + x] = (null == below)
+                            ? Math.max(Math.max(getMax(x0, y0), getMax(x1, y0)), Math.max(getMax(x0, y1), getMax(x1, y1)))
+                            : Math.max(Math.max(below[y0 * bw + x0], below[y0 * bw + x1]), Math.max(below[y1 * bw + x0], below[y1 * bw + x1]));
+                }
+            }
+            maxLevels[l] = level;
+            levelWidths[l] = w;
+            levelHeights[l] = h;
+        }
+    }
+
+    /**
+     * @return the value of a grid point for the maximums, NEGATIVE_INFINITY without a value
+     */
+    private float getMax(int x, int y) {
+        final float v = image.getValue(x, y);
+        return Float.isNaN(v) ? Float.NEGATIVE_INFINITY : v;
+    }
+
+    /**
+     * @return the value of a quantized unit of the sums
+     */
+    public double getQuantizationStep() {
+        return step;
+    }
+
+    /**
+     * Adds a holder of this table, which must call {@link #release()} once it no longer uses it.
+     *
+     * @return false if the table was already released
+     */
+    public boolean retain() {
+        return image.retain();
+    }
+
+    /**
+     * Removes a holder of this table. The image is released along with the last holder, the table must no longer be used.
+     */
+    public void release() {
+        image.release();
+    }
+
+    /**
+     * Accumulates the aggregates of a rectangle of grid points. The rectangle is clamped to the grid.
+     *
+     * @param minX  first column, inclusive
+     * @param minY  first row, inclusive
+     * @param maxX  last column, inclusive
+     * @param maxY  last row, inclusive
+     * @param stats receives the aggregates, it may already hold other rectangles of the same region
+     */
+    public void aggregate(int minX, int minY, int maxX, int maxY, RegionStats stats) {
+        minX = Math.max(0, minX);
+        minY = Math.max(0, minY);
+        maxX = Math.min(width - 1, maxX);
+        maxY = Math.min(height - 1, maxY);
+        if (maxX < minX || maxY < minY) return;
+
+        final int cellCount = (maxX - minX + 1) * (maxY - minY + 1);
+        final int validCount = (null == counts) ? cellCount : rectangle(counts, minX, minY, maxX, maxY);
+        if (validCount == 0) {
+            stats.add(cellCount, 0, 0, Float.NEGATIVE_INFINITY, 0);
+            return;
+        }
+
+        final double sum = validCount * offset + (rectangle(sums, minX, minY, maxX, maxY) & 0xFFFFFFFFL) * step;
+        final float max = max(maxLevels.length - 1, 0, 0, minX, minY, maxX, maxY);
+        final int exceedanceCount = Float.isNaN(stats.getThreshold()) ? 0
+                : rectangle(getExceedanceTable(stats.getThreshold()), minX, minY, maxX, maxY);
+        stats.add(cellCount, validCount, sum, max, exceedanceCount);
+    }
+
+    private int index(int x, int y) {
+        return y * (width + 1) + x;
+    }
+
+    private int rectangle(int[] table, int minX, int minY, int maxX, int maxY) {
+        return table[index(maxX + 1, maxY + 1)] - table[index(minX, maxY + 1)]
+                - table[index(maxX + 1, minY)] + table[index(minX, minY)];
+    }
+
+    /**
+     * Maximum of the part of a quadtree node within the rectangle.
+     */
+    private float max(int level, int nodeX, int nodeY, int minX, int minY, int maxX, int maxY) {
+        //Grid points covered by the node, clamped to the grid
+        final int x0 = nodeX << level;
+        final int y0 = nodeY << level;
+        final int x1 = Math.min(((nodeX + 1) << level) - 1, width - 1);
+        final int y1 = Math.min(((nodeY + 1) << level) - 1, height - 1);
+        if (x0 > maxX || y0 > maxY || x1 < minX || y1 < minY) return Float.NEGATIVE_INFINITY; //Disjoint
+        if (x0 >= minX && y0 >= minY && x1 <= maxX && y1 <= maxY) { //Inside
+            return (level == 0) ? getMax(nodeX, nodeY) : maxLevels[level][nodeY * levelWidths[level] + nodeX];
+        }
+
+        //Partially covered, level 0 nodes are a single grid point so they are never partially covered
+        float max = Float.NEGATIVE_INFINITY;
+        final int childWidth = levelWidths[level - 1];
+        final int childHeight = levelHeights[level - 1];
+        for (int cy = 2 * nodeY; cy <= 2 * nodeY + 1 && cy < childHeight; cy++) {
+            for (int cx = 2 * nodeX; cx <= 2 * nodeX + 1 && cx < childWidth; cx++) {
+                max = Math.max(max, max(level - 1, cx, cy, minX, minY, maxX, maxY));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the summed-area table of the number of grid points strictly above the threshold, building it if needed.
+     */
+    private synchronized int[] getExceedanceTable(float threshold) {
+        int[] table = exceedanceTables.get(threshold);
+        if (null != table) return table;
+
+        final int stride = width + 1;
+        table = new int[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            int rowCount = 0;
+            final int row = (y + 1) * stride;
+            for (int x = 0; x < width; x++) {
+                if (image.getValue(x, y) > threshold) rowCount++; //Never true without a value
+                table[row + x + 1] = table[row - stride + x + 1] + rowCount;
+            }
+        }
+        exceedanceTables.put(threshold, table);
+        return table;
+    }
+}
@@ -7,6 +7,7 @@ import static android.view.View.VISIBLE;
 import android.Manifest;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -37,6 +38,7 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.constraintlayout.widget.ConstraintLayout;
@@ -50,9 +52,11 @@ import com.dbf.aqhi.api.weather.alert.Alert;
 import com.dbf.aqhi.data.spatial.ModelMetaData;
 import com.dbf.aqhi.data.spatial.SpatialData;
 import com.dbf.aqhi.data.spatial.SpatialDataService;
-import com.dbf.aqhi.map.CompositeTileProvider;
 import com.dbf.aqhi.map.MapTransformer;
+import com.dbf.aqhi.map.OverlayPalette;
 import com.dbf.aqhi.map.OverlayTileProvider;
+import com.dbf.aqhi.map.OverlayTileStreamProvider;
+import com.dbf.aqhi.map.WarpCache;
 import com.dbf.aqhi.permissions.PermissionService;
 import com.dbf.aqhi.data.BackgroundDataWorker;
 import com.dbf.aqhi.data.aqhi.AQHIDataService;
@@ -64,6 +68,7 @@ import com.dbf.heatmaps.axis.StringAxis;
 import com.dbf.heatmaps.data.BasicDataRecord;
 import com.dbf.heatmaps.data.DataRecord;
 
+import java.io.File;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -77,7 +82,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import ovh.plrapps.mapview.MapView;
-import ovh.plrapps.mapview.MapViewConfiguration;
 import ovh.plrapps.mapview.api.MarkerApiKt;
 
 public class AQHIMainActivity extends AQHIActivity {
@@ -95,7 +99,8 @@ public class AQHIMainActivity extends AQHIActivity {
     //Pollution Map attributes
     private Pollutant selectedMapPollutant;
     private int mapScaleIndex = 1;
-    private CompositeTileProvider tileProvider;
+    private OverlayPalette.Mode mapPaletteMode = OverlayPalette.Mode.ABSOLUTE;
+    private OverlayTileStreamProvider tileProvider;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -113,6 +118,9 @@ public class AQHIMainActivity extends AQHIActivity {
             runOnUiThread(this::updateUI);
         });
 
+        //The palette of the map overlay is kept across restarts
+        mapPaletteMode = getSpatialDataService().getMapPaletteMode();
+
         //Don't wait for the data to be fetched to update the UI.
         //We can still show the old values if the data is not too stale.
         updateUI();
@@ -151,9 +159,25 @@ public class AQHIMainActivity extends AQHIActivity {
         Log.i(LOG_TAG, "AQHI Main Activity paused.");
         forceWidgetUpdate();
         backgroundWorker.stop();
+        if(null != tileProvider) {
+            tileProvider.logCacheStats();
+        }
         super.onPause();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if(null == tileProvider) return;
+        tileProvider.trimMemory(level);
+
+        //The decoded overlay images can be decoded again from the encoded data, if the map is shown again
+        OverlayTileProvider overlay = tileProvider.getOverlayTileProvider();
+        if(level >= TRIM_MEMORY_BACKGROUND && null != overlay && overlay.getOverlay().getGrib2().evictRawImage()) {
+            Log.i(LOG_TAG, "Evicted the decoded " + overlay.getPollutant() + " overlay images.");
+        }
+    }
+
     private boolean requestPermissions() {
         if (!PermissionService.checkLocationPermission(this)) { //Has the location permission already been granted?
             Log.i(LOG_TAG, "Requesting location permission for AQHI Main Activity.");
@@ -255,12 +279,26 @@ public class AQHIMainActivity extends AQHIActivity {
             mapContainer.setLayoutParams(layoutParams);
         });
 
+        //The warp of the overlay tiles is persisted across restarts
+        WarpCache.init(new File(getCacheDir(), "map_warp"));
+
         //Create the map, regardless if we have overlay data or not.
+        //The base map is its own layer, streamed straight from the assets, under the transparent overlay layer.
+        //The overlay layer handles the gestures and the markers, the base layer follows it as soon as it scrolls or scales,
+        //so both layers are drawn at the same position in the same frame, even during a fling.
         //Overlays will be applied in the updateUI() method.
-        tileProvider = new CompositeTileProvider(getMapTileProvider());
+        final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        tileProvider = new OverlayTileStreamProvider(activityManager.getMemoryClass(), new File(getCacheDir(), "map_tiles"));
         MapView mapView = findViewById(R.id.mapView);
-        MapViewConfiguration config = getMapConfiguration(tileProvider);
-        mapView.configure(config);
+        MapView mapBaseView = findViewById(R.id.mapBaseView);
+        mapBaseView.configure(getMapConfiguration());
+        mapView.configure(getMapConfiguration(tileProvider));
+        mapView.addReferentialListener(referentialData -> {
+            if (mapBaseView.getScale() != mapView.getScale()) mapBaseView.setScale(mapView.getScale());
+            if (mapBaseView.getScrollX() != mapView.getScrollX() || mapBaseView.getScrollY() != mapView.getScrollY()) {
+                mapBaseView.scrollTo(mapView.getScrollX(), mapView.getScrollY());
+            }
+        });
 
         final GestureDetector tapDetector = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
             @Override public boolean onSingleTapUp(@NonNull MotionEvent e) {
@@ -327,10 +365,24 @@ public class AQHIMainActivity extends AQHIActivity {
             view.setBackground(getDrawable(mapScaleGradient));
             OverlayTileProvider overlay = tileProvider.getOverlayTileProvider();
             if(null != overlay) {
-                tileProvider.setOverlayTileProvider(new OverlayTileProvider(overlay.getOverlay(), getColor(mapOverlayColour)));
+                setOverlay(new OverlayTileProvider(overlay.getOverlay(), overlay.getPollutant(), getColor(mapOverlayColour), mapPaletteMode));
                 mapView.redrawTiles();
             }
         });
+
+        //Add a long click listener to change the palette of the overlay, no decoding is needed
+        imgScale.setOnLongClickListener(view -> {
+            mapPaletteMode = mapPaletteMode.next();
+            getSpatialDataService().setMapPaletteMode(mapPaletteMode);
+            OverlayTileProvider overlay = tileProvider.getOverlayTileProvider();
+            if(null != overlay) {
+                setOverlay(new OverlayTileProvider(overlay.getOverlay(), overlay.getPollutant(), overlay.getOverlayColour(), mapPaletteMode));
+                mapView.redrawTiles();
+            }
+            int paletteName = getResources().getIdentifier("overlay_palette_" + mapPaletteMode.name().toLowerCase(Locale.ROOT), "string", getPackageName());
+            Toast.makeText(this, paletteName, Toast.LENGTH_SHORT).show();
+            return true;
+        });
     }
 
     private void updateUI() {
@@ -478,7 +530,7 @@ public class AQHIMainActivity extends AQHIActivity {
             final SpatialData data = sds.getSpatialData(pollutant, false);
             if(null == data) continue; //avoid race condition
 
-            if(null == data.getGrib2() || null == data.getGrib2().getRawImage() || null == data.getGrib2().getRawImage().values) continue; //backwards compatibility
+            if(null == data.getGrib2() || !data.getGrib2().hasValues()) continue; //backwards compatibility
 
             View itemView = LayoutInflater.from(this).inflate(R.layout.pollution_layout, pollutantList, false);
             final TextView txtPollutant = itemView.findViewById(R.id.txtPollutant);
@@ -491,7 +543,13 @@ public class AQHIMainActivity extends AQHIActivity {
             txtPollutantUnit.setText(pollutant.getUnits()); //ppb
 
             final float val = data.overlayValueLookup(latLon.first, latLon.second);
-            txtPollutantValue.setText((new DecimalFormat("0.0")).format(val)); //Value
+            if(Float.isNaN(val)) {
+                //The lookup never decodes the full image on the UI thread, update the list once it is decoded in the background
+                data.getGrib2().decodeInBackground(() -> runOnUiThread(this::updateUI));
+                txtPollutantValue.setText("--");
+            } else {
+                txtPollutantValue.setText((new DecimalFormat("0.0")).format(val)); //Value
+            }
 
             if(pollutant == Pollutant.NO && val >= 100.0) {
                 //Special case for NO
@@ -499,8 +557,8 @@ public class AQHIMainActivity extends AQHIActivity {
                 imgPollutantIcon.setImageResource(R.drawable.alert_statement);
                 txtPollutantWarn.setText("");
             }
-            else if(pollutant.getLevel1() <= 0 || val <= 0.0) {
-                //We don't have a scale for this pollutant
+            else if(pollutant.getLevel1() <= 0 || !(val > 0.0)) {
+                //We don't have a scale for this pollutant, or the value isn't available yet
                 imgPollutantIcon.setVisibility(GONE);
                 txtPollutantWarn.setText("");
             } else if (val <= pollutant.getLevel1()) {
@@ -533,6 +591,7 @@ public class AQHIMainActivity extends AQHIActivity {
     private void updateOverlayMapUI() {
         View mapLegend = findViewById(R.id.mapLegendContainer);
         MapView mapView = findViewById(R.id.mapView);
+        MapView mapBaseView = findViewById(R.id.mapBaseView);
         ImageView mapPlaceholder = findViewById(R.id.imgMapPlaceholder);
         View stationMarker = mapView.getMarkerLayout().getMarkerByTag(MAP_STATION_MARKER_TAG);
         View touchMarker   = mapView.getMarkerLayout().getMarkerByTag(MAP_TOUCH_MARKER_TAG);
@@ -551,6 +610,7 @@ public class AQHIMainActivity extends AQHIActivity {
             //No spatial data is available, hide the map
             mapPlaceholder.setVisibility(VISIBLE);
             mapView.setVisibility(GONE);
+            mapBaseView.setVisibility(GONE);
             pollutantList.setVisibility(GONE);
             mapLegend.setVisibility(GONE);
 
@@ -572,6 +632,7 @@ public class AQHIMainActivity extends AQHIActivity {
 
         //We have spatial data, show the map
         mapView.setVisibility(VISIBLE);
+        mapBaseView.setVisibility(VISIBLE);
         mapLegend.setVisibility(VISIBLE);
         pollutantList.setVisibility(VISIBLE);
         mapPlaceholder.setVisibility(GONE);
@@ -631,17 +692,32 @@ public class AQHIMainActivity extends AQHIActivity {
                 mapTsText.setVisibility(VISIBLE);
                 minTxt.setVisibility(VISIBLE);
                 maxTxt.setVisibility(VISIBLE);
-                minTxt.setText(""+ ((int) selectedMapPollutant.getOverlayMinVal()));
-                maxTxt.setText(((int) selectedMapPollutant.getOverlayMaxVal()) + " " + selectedMapPollutant.getUnits());
                 mapTsText.setText(getResources().getString(R.string.observations_at) + " " + utcDateToFriendly(newSpatialData.getModel().getModelRunDate(), newSpatialData.getModel().getModelRunHour()));
                 int mapOverlayColour = getResources().getIdentifier("map_overlay_colour_" + mapScaleIndex, "color", getPackageName());
-                tileProvider.setOverlayTileProvider(new OverlayTileProvider(newSpatialData, getColor(mapOverlayColour)));
+                setOverlay(new OverlayTileProvider(newSpatialData, selectedMapPollutant, getColor(mapOverlayColour), mapPaletteMode));
                 if(null != touchMarker) updateOverlayTouchMarker(mapView, null, null); //Do this last
             }
             mapView.redrawTiles();
         }
     }
 
+    private void setOverlay(OverlayTileProvider newOverlay) {
+        //The auto palette is only known once the tiles have decoded the data, the scale shows the absolute palette until then
+        newOverlay.setOnPaletteResolved(() -> runOnUiThread(() -> {
+            if(tileProvider.getOverlayTileProvider() == newOverlay) updateMapScaleText(newOverlay);
+        }));
+        tileProvider.setOverlayTileProvider(newOverlay);
+        updateMapScaleText(newOverlay);
+    }
+
+    private void updateMapScaleText(OverlayTileProvider overlay) {
+        TextView minTxt = findViewById(R.id.txtMapMin);
+        TextView maxTxt = findViewById(R.id.txtMapMax);
+        OverlayPalette palette = overlay.getPalette();
+        minTxt.setText(""+ ((int) palette.getMinVal()));
+        maxTxt.setText(((int) palette.getMaxVal()) + " " + overlay.getPollutant().getUnits());
+    }
+
     private void updateOverlayTouchMarker(MapView mapView, Float sceneX, Float sceneY) {
 
         if(null == tileProvider) return;
@@ -0,0 +1,72 @@
+package com.dbf.aqhi.map;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes ARGB pixels as an uncompressed 32-bit BMP, with an alpha channel.
+ * Encoding is a plain copy of the pixels, and decoding by {@link android.graphics.BitmapFactory} is almost as cheap,
+ * so the overlay tiles can be handed to the map as a stream without the cost of a compressed format.
+ */
+final class BmpEncoder {
+
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int INFO_HEADER_SIZE = 108; //BITMAPV4HEADER, the first version with an alpha mask
+    private static final int PIXEL_OFFSET = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+
+    private static final int BI_BITFIELDS = 3;
+    private static final int LCS_SRGB = 0x73524742; //'sRGB'
+    private static final int PIXELS_PER_METER = 2835; //72 DPI
+
+    private BmpEncoder() {}
+
+    /**
+     * @return the size of an encoded image, in bytes
+     */
+    static int getEncodedSize(int width, int height) {
+        return PIXEL_OFFSET + width * height * 4;
+    }
+
+    /**
+     * @param argb   non-premultiplied ARGB pixels, in row-major order from the top left
+     * @return the encoded image
+     */
+    static byte[] encode(int[] argb, int width, int height) {
+        if (argb.length < width * height)
+            throw new IllegalArgumentException("Expected " + (width * height) + " pixels, got " + argb.length + ".");
+
+        final byte[] bmp = new byte[getEncodedSize(width, height)];
+        final ByteBuffer buffer = ByteBuffer.wrap(bmp).order(ByteOrder.LITTLE_ENDIAN);
+
+        //File header
+        buffer.put((byte) 'B').put((byte) 'M');
+        buffer.putInt(bmp.length);
+        buffer.putInt(0); //Reserved
+        buffer.putInt(PIXEL_OFFSET);
+
+        //Info header
+        buffer.putInt(INFO_HEADER_SIZE);
+        buffer.putInt(width);
+        buffer.putInt(-height); //Top-down rows, same order as the pixels
+        buffer.putShort((short) 1); //Planes
+        buffer.putShort((short) 32); //Bits per pixel
+        buffer.putInt(BI_BITFIELDS);
+        buffer.putInt(width * height * 4);
+        buffer.putInt(PIXELS_PER_METER);
+        buffer.putInt(PIXELS_PER_METER);
+        buffer.putInt(0); //Colours used
+        buffer.putInt(0); //Important colours
+
+        //Channel masks, a little-endian ARGB int is stored as B, G, R, A
+        buffer.putInt(0x00FF0000);
+        buffer.putInt(0x0000FF00);
+        buffer.putInt(0x000000FF);
+        buffer.putInt(0xFF000000);
+        buffer.putInt(LCS_SRGB);
+        //The end points and the gamma are ignored for sRGB, they remain 0
+
+        buffer.position(PIXEL_OFFSET);
+        buffer.asIntBuffer().put(argb, 0, width * height);
+        return bmp;
+    }
+}
@@ -0,0 +1,250 @@
+package com.dbf.aqhi.map;
+
+import android.util.Log;
+
+import com.dbf.aqhi.data.spatial.ModelMetaData;
+import com.dbf.utils.stacktrace.StackTraceCompactor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persists the rendered overlay tiles in the cache directory, so they survive restarts of the app.
+ * <p>
+ * A tile is a pure function of the model run, the pollutant, the colour and the palette of the overlay, and of its position.
+ * The tiles of an overlay are stored in their own partition, a directory named after its {@link TileCache.OverlayKey},
+ * and the tiles of the older model runs of a pollutant are deleted as soon as a new model run of that pollutant is displayed.
+ * The size of the cache is bounded, the least recently used tiles are deleted first, across every partition.
+ * <p>
+ * The tiles are stored compressed, and streamed to the map as is. They are written on a background thread,
+ * so rendering a tile is never slowed down by the disk. The compressed copy is shared with the {@link TileCache}.
+ * <p>
+ * There is a single cache for the process, see {@link #get(File)}. The map is created again by every configuration change of the activity,
+ * the cache outlives it, along with its writer thread and its accounting of the directory.
+ */
+final class DiskTileCache {
+    private static final String LOG_TAG = "DiskTileCache";
+
+    //Increment when the rendering of the tiles changes, the tiles of other versions are deleted
+    private static final int VERSION = 2;
+    private static final String VERSION_PREFIX = "v" + VERSION + "_";
+
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private static final long TRIM_BYTES = MAX_BYTES * 3 / 4; //Trim below the limit, so the trim doesn't run on every write
+    private static final int EMPTY_TILE_SIZE = 64; //Nominal size of the tiles without any overlay, for the file entry
+    private static final String TILE_SUFFIX = ".webp";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static DiskTileCache instance;
+
+    private final File dir;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, LOG_TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private long totalBytes = -1; //Only used by the writer thread, computed by the first write
+
+    private DiskTileCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the cache of the process, created in the directory on the first call
+     */
+    static synchronized DiskTileCache get(File dir) {
+        if (null == instance) instance = new DiskTileCache(dir);
+        return instance;
+    }
+
+    /**
+     * Opens the partition of an overlay, in the background.
+     * The partitions of the other model runs of the same pollutant are deleted, they are superseded, as are the partitions of other versions.
+     * Each pollutant has its own model runs, the partitions of the other pollutants are left to the trim, see {@link #trim()}.
+     */
+    void open(TileCache.OverlayKey overlay) {
+        final String runName = getRunName(overlay.model());
+        final String pollutantName = getPollutantName(overlay);
+        final File partition = getPartition(overlay);
+        writer.execute(() -> {
+            final File[] partitions = dir.listFiles();
+            if (null != partitions) {
+                for (File other : partitions) {
+                    final String name = other.getName();
+                    if (!name.startsWith(VERSION_PREFIX) || (isPollutant(name, pollutantName) && !name.startsWith(runName))) {
+                        deletePartition(other);
+                        totalBytes = -1; //Computed again by the next write
+                    }
+                }
+            }
+            if (!partition.isDirectory() && !partition.mkdirs()) Log.w(LOG_TAG, "Failed to create the tile cache directory " + partition);
+        });
+    }
+
+    /**
+     * @return the compressed tile, {@link TileCache#EMPTY_TILE} if the tile has no overlay, or null if it is not cached
+     */
+    byte[] get(TileCache.TileKey key) {
+        final File file = getFile(getPartition(key.overlay()), key);
+        try {
+            final byte[] tile = Files.readAllBytes(file.toPath());
+            hits.incrementAndGet();
+            //Best effort, the modification time is the recency of the tile
+            file.setLastModified(System.currentTimeMillis());
+            return (tile.length == 0) ? TileCache.EMPTY_TILE : tile;
+        } catch (IOException e) {
+            //Not cached
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a tile in the background. Only the key is queued, so a backlog of writes holds no tile,
+     * the compressed tile is taken from the memory cache when it is written.
+     * A tile that has left the memory cache by then is not written, it will be when it is rendered again.
+     *
+     * @param tileCache memory cache holding the tile, see {@link TileCache#getCompressed(TileCache.TileKey)}
+     */
+    void put(TileCache.TileKey key, TileCache tileCache) {
+        final File partition = getPartition(key.overlay());
+        writer.execute(() -> write(partition, key, tileCache));
+    }
+
+    private void write(File partition, TileCache.TileKey key, TileCache tileCache) {
+        //The partition is deleted if its model run is obsolete, don't create it again
+        if (!partition.isDirectory()) return;
+
+        final byte[] compressed = tileCache.getCompressed(key);
+        if (null == compressed) return;
+
+        //Written to a temporary file first, so a partial tile is never read back
+        final File file = getFile(partition, key);
+        final File temp = new File(partition, file.getName() + TEMP_SUFFIX);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(compressed);
+            }
+            if (!temp.renameTo(file)) throw new IOException("Failed to rename " + temp);
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Failed to write the map tile " + file + "\n" + StackTraceCompactor.getCompactStackTrace(e));
+            temp.delete();
+            return;
+        }
+
+        if (totalBytes < 0) totalBytes = computeTotalBytes();
+        else totalBytes += getSize(file);
+        if (totalBytes > MAX_BYTES) trim();
+    }
+
+    /**
+     * Deletes the least recently used tiles, across every partition, until the cache is below {@link #TRIM_BYTES}.
+     */
+    private void trim() {
+        final List<File> files = listTiles();
+        files.sort(Comparator.comparingLong(File::lastModified));
+        long bytes = 0;
+        for (File file : files) bytes += getSize(file);
+
+        int deleted = 0;
+        for (File file : files) {
+            if (bytes <= TRIM_BYTES) break;
+            final long size = getSize(file);
+            if (file.delete()) {
+                bytes -= size;
+                deleted++;
+            }
+        }
+        totalBytes = bytes;
+        Log.i(LOG_TAG, String.format(Locale.ROOT, "Trimmed %d tiles from the disk cache, %d bytes remain.", deleted, bytes));
+    }
+
+    private long computeTotalBytes() {
+        long bytes = 0;
+        for (File file : listTiles()) bytes += getSize(file);
+        return bytes;
+    }
+
+    private List<File> listTiles() {
+        final List<File> tiles = new ArrayList<>();
+        final File[] partitions = dir.listFiles(File::isDirectory);
+        if (null == partitions) return tiles;
+        for (File partition : partitions) {
+            final File[] files = partition.listFiles((d, name) -> name.endsWith(TILE_SUFFIX));
+            if (null != files) tiles.addAll(List.of(files));
+        }
+        return tiles;
+    }
+
+    private static long getSize(File file) {
+        return Math.max(file.length(), EMPTY_TILE_SIZE);
+    }
+
+    private static void deletePartition(File partition) {
+        final File[] files = partition.listFiles();
+        if (null != files) {
+            for (File file : files) file.delete();
+        }
+        if (!partition.delete()) Log.w(LOG_TAG, "Failed to delete the tile cache directory " + partition);
+    }
+
+    private File getPartition(TileCache.OverlayKey overlay) {
+        return new File(dir, getRunName(overlay.model()) + getOverlayName(overlay));
+    }
+
+    private static File getFile(File partition, TileCache.TileKey key) {
+        return new File(partition, key.zoomLvl() + "_" + key.row() + "_" + key.col() + TILE_SUFFIX);
+    }
+
+    /**
+     * @return the prefix of the partitions of a model run, along with the version of the rendering
+     */
+    private static String getRunName(ModelMetaData model) {
+        return sanitize(VERSION_PREFIX + model.getModel() + "_" + model.getModelRunDate() + "_"
+                + model.getModelRunHour() + "_" + model.getForecastHour()) + "__";
+    }
+
+    private static String getOverlayName(TileCache.OverlayKey overlay) {
+        return sanitize(overlay.pollutant() + "_" + Integer.toHexString(overlay.overlayColour()) + "_" + overlay.paletteMode());
+    }
+
+    /**
+     * @return the prefix of the overlay names of a pollutant, see {@link #getOverlayName(TileCache.OverlayKey)}
+     */
+    private static String getPollutantName(TileCache.OverlayKey overlay) {
+        return sanitize(overlay.pollutant() + "_");
+    }
+
+    /**
+     * @param partition name of a partition, the run name followed by the overlay name
+     * @return true if the partition is of the pollutant. The overlay name never holds the separator, the last one is found before it.
+     */
+    private static boolean isPollutant(String partition, String pollutantName) {
+        final int separator = partition.lastIndexOf("__");
+        return separator >= 0 && partition.startsWith(pollutantName, separator + 2);
+    }
+
+    private static String sanitize(String name) {
+        //Only keep the characters that are safe in a file name, the separator is reserved
+        return name.replaceAll("[^A-Za-z0-9_.-]", "").replaceAll("_+", "_");
+    }
+
+    /**
+     * @return the counters of the cache, for tuning
+     */
+    String getStats() {
+        return String.format(Locale.ROOT, "Disk hits: %d, misses: %d", hits.get(), misses.get());
+    }
+}
@@ -18,7 +18,7 @@ public class MapTransformer {
     //Parameters are based on the CBCT3978 map data
     //https://maps-cartes.services.geo.ca/server2_serveur2/rest/services/BaseMaps/CBCT3978/MapServer
     private static final double phi0 = Math.toRadians(49.0);         //Latitude of Origin (radians)
-    private static final double lambda0 = Math.toRadians(-95.0);     //Central Meridian (radians)
+    static final double lambda0 = Math.toRadians(-95.0);             //Central Meridian (radians)
     private static final double phi1 = Math.toRadians(49.0);         //Standard Parallel 1 (radians)
     private static final double phi2 = Math.toRadians(77.0);         //Standard Parallel 2 (radians)
     private static final double a = 6378137;                         //Semi-major Axis
@@ -30,7 +30,7 @@ public class MapTransformer {
     //Computed Lambert projection constants (using ellipsoidal definitions)
     private static final double n;
     private static final double F;
-    private static final double rho0;
+    static final double rho0;
     private static final double aF;
 
     //I'm using 3 well spaced-apart know coordinates in order to relatively scale and position the map.
@@ -39,19 +39,20 @@ public class MapTransformer {
     private static final Pair<double[],int[]> alert    = new Pair<double[], int[]>(new double[]{82.45, -62.5}, new int[]{18398, 399});
     private static final Pair<double[],int[]> victoria = new Pair<double[], int[]>(new double[]{48.44, -123.416}, new int[]{2245, 22295});
 
-    private static double x0, x1, x2; //Affine Transformation X constants
-    private static double y0, y1, y2; //Affine Transformation Y constants
+    //The constants used by the inverse transformation are also used by the fused kernel of GridProjection
+    static final double x0, x1, x2; //Affine Transformation X constants
+    static final double y0, y1, y2; //Affine Transformation Y constants
 
     //Precomputed affine transformation inverses for improved performance.
-    private static double inv11;
-    private static double inv12;
-    private static double inv21;
-    private static double inv22;
+    static final double inv11;
+    static final double inv12;
+    static final double inv21;
+    static final double inv22;
 
     //Precomputed lambert inverse constants for improved performance.
-    private static double invN;
-    private static double invAF;
-    private static double signN;
+    static final double invN;
+    static final double invAF;
+    static final double signN;
 
     static {
         //Ellipsoidal LCC (2SP), GRS80 using φ1, φ2, φ0, λ0
@@ -76,15 +77,28 @@ public class MapTransformer {
         //Calculate rho0 for the latitude of origin.
         rho0 = aF * Math.pow(t0, n);
 
-        computeControlPoints(ottawa, alert, victoria);
+        final double[] affine = computeControlPoints(ottawa, alert, victoria);
+        x0 = affine[0];
+        x1 = affine[1];
+        x2 = affine[2];
+        y0 = affine[3];
+        y1 = affine[4];
+        y2 = affine[5];
+
+        final double det = x1 * y2 - x2 * y1;
+        inv11 =  y2 / det;
+        inv12 = -x2 / det;
+        inv21 = -y1 / det;
+        inv22 =  x1 / det;
     }
 
     /**
-     * Initialize the parameters for the affine transformation equations
+     * Compute the parameters for the affine transformation equations
      *
      * @param controlPoints
+     * @return the constants {x0, x1, x2, y0, y1, y2}
      */
-    private static void computeControlPoints(Pair<double[],int[]>... controlPoints) {
+    private static double[] computeControlPoints(Pair<double[],int[]>... controlPoints) {
         double[][] controlMatrix = new double[controlPoints.length][controlPoints.length];
         double[] x = new double[controlPoints.length];
         double[] y = new double[controlPoints.length];
@@ -104,21 +118,15 @@ public class MapTransformer {
         //Use the Apache Math library instead of implementing this from scratch
         controlMatrix = (new LUDecomposition(MatrixUtils.createRealMatrix(controlMatrix)).getSolver().getInverse()).getData();
 
-        //X
-        x0 = controlMatrix[0][0] * x[0] + controlMatrix[0][1] * x[1] + controlMatrix[0][2] * x[2];
-        x1 = controlMatrix[1][0] * x[0] + controlMatrix[1][1] * x[1] + controlMatrix[1][2] * x[2];
-        x2 = controlMatrix[2][0] * x[0] + controlMatrix[2][1] * x[1] + controlMatrix[2][2] * x[2];
-
-        //Y
-        y0 = controlMatrix[0][0] * y[0] + controlMatrix[0][1] * y[1] + controlMatrix[0][2] * y[2];
-        y1 = controlMatrix[1][0] * y[0] + controlMatrix[1][1] * y[1] + controlMatrix[1][2] * y[2];
-        y2 = controlMatrix[2][0] * y[0] + controlMatrix[2][1] * y[1] + controlMatrix[2][2] * y[2];
-
-        final double det = x1 * y2 - x2 * y1;
-        inv11 =  y2 / det;
-        inv12 = -x2 / det;
-        inv21 = -y1 / det;
-        inv22 =  x1 / det;
+        return new double[] {
+                //X
+                controlMatrix[0][0] * x[0] + controlMatrix[0][1] * x[1] + controlMatrix[0][2] * x[2],
+                controlMatrix[1][0] * x[0] + controlMatrix[1][1] * x[1] + controlMatrix[1][2] * x[2],
+                controlMatrix[2][0] * x[0] + controlMatrix[2][1] * x[1] + controlMatrix[2][2] * x[2],
+                //Y
+                controlMatrix[0][0] * y[0] + controlMatrix[0][1] * y[1] + controlMatrix[0][2] * y[2],
+                controlMatrix[1][0] * y[0] + controlMatrix[1][1] * y[1] + controlMatrix[1][2] * y[2],
+                controlMatrix[2][0] * y[0] + controlMatrix[2][1] * y[1] + controlMatrix[2][2] * y[2]};
     }
 
     /**
@@ -219,9 +227,9 @@ public class MapTransformer {
     private static final double e8 = e4 * e4;
 
     //Precomputed conformal-to-geodetic coefficients (EPSG/Snyder series) for performance optimization
-    private static final double C2 =  0.5     * e2 +  5.0/24.0 * e4 + 1.0/12.0 * e6 + 13.0/360.0   * e8;
-    private static final double C4 =  7.0/48.0* e4 + 29.0/240.0* e6 + 811.0/11520.0 * e8;
-    private static final double C6 =  7.0/120.0*e6 + 81.0/1120.0* e8;
+    static final double C2 =  0.5     * e2 +  5.0/24.0 * e4 + 1.0/12.0 * e6 + 13.0/360.0   * e8;
+    static final double C4 =  7.0/48.0* e4 + 29.0/240.0* e6 + 811.0/11520.0 * e8;
+    static final double C6 =  7.0/120.0*e6 + 81.0/1120.0* e8;
     private static final double C8 = 4279.0/161280.0 * e8;
 
     //Since we only need about 100m of precision, we can use some fast approximation
@@ -0,0 +1,143 @@
+package com.dbf.aqhi.map;
+
+import static com.dbf.aqhi.map.OverlayTileProvider.MAX_PIXEL_VALUE;
+
+import com.dbf.aqhi.api.datamart.Pollutant;
+
+/**
+ * Maps the values of an overlay to ARGB colours, at tile render time.
+ * The decoded images only hold the values, so the palette can be changed instantly without decoding again.
+ * The overlay colour is fixed, only the alpha varies with the value.
+ */
+public class OverlayPalette {
+
+    public enum Mode {
+        ABSOLUTE,  //Linear ramp over the fixed overlay range of the pollutant
+        THRESHOLD, //Steps at the 3 levels of the pollutant
+        AUTO;      //Linear ramp over the range of the current data
+
+        public Mode next() {
+            return values()[(ordinal() + 1) % values().length];
+        }
+    }
+
+    //Number of entries of the ramp lookup table, enough for the alpha to be exact to 1 unit
+    private static final int LUT_SIZE = 1024;
+
+    private final Mode mode;
+    private final int colourMask;
+    private final float minVal;
+    private final float maxVal;
+
+    //Ramp modes
+    private final int[] lut;
+    private final float lutScale;
+
+    //Threshold mode
+    private final float level1;
+    private final float level2;
+    private final float level3;
+
+    private OverlayPalette(Mode mode, int colour, float minVal, float maxVal, float level1, float level2, float level3) {
+        this.mode = mode;
+        this.colourMask = colour & 0x00FFFFFF;
+        this.minVal = minVal;
+        this.maxVal = maxVal;
+        this.level1 = level1;
+        this.level2 = level2;
+        this.level3 = level3;
+
+        if (mode == Mode.THRESHOLD) {
+            this.lut = null;
+            this.lutScale = 0;
+        } else {
+            //Same ramp as the pixels baked by the decoders: 0 at the minimum, MAX_PIXEL_VALUE at the maximum
+            this.lut = new int[LUT_SIZE + 1];
+            this.lutScale = LUT_SIZE / (maxVal - minVal);
+            for (int i = 0; i <= LUT_SIZE; i++) {
+                lut[i] = toColour((int) (((float) i / LUT_SIZE) * MAX_PIXEL_VALUE));
+            }
+        }
+    }
+
+    /**
+     * Creates a palette for a pollutant.
+     * The threshold mode falls back to the absolute mode if the pollutant has no levels,
+     * and the auto mode falls back to the absolute mode if the data has no range.
+     *
+     * @param range {min, max} of the data, only for the auto mode, or null if unknown
+     */
+    public static OverlayPalette create(Mode mode, Pollutant pollutant, int colour, float[] range) {
+        final float level1 = pollutant.getLevel1();
+        final float level2 = pollutant.getLevel2();
+        final float level3 = pollutant.getLevel3();
+        switch (mode) {
+            case THRESHOLD:
+                if (level1 < 0 || level2 < level1 || level3 < level2) break; //No levels
+                return new OverlayPalette(mode, colour, pollutant.getOverlayMinVal(), level3, level1, level2, level3);
+            case AUTO:
+                if (null == range || !(range[1] > range[0])) break; //No data, or constant
+                return new OverlayPalette(mode, colour, range[0], range[1], level1, level2, level3);
+        }
+        return new OverlayPalette(Mode.ABSOLUTE, colour, pollutant.getOverlayMinVal(), pollutant.getOverlayMaxVal(), level1, level2, level3);
+    }
+
+    /**
+     * This method is called for every pixel of every tile, it is optimized for high performance.
+     *
+     * @return the ARGB colour of the value, transparent for NaN or values at or below the minimum
+     */
+    public int getColour(float value) {
+        if (!(value > minVal)) return 0; //Also handles NaN
+
+        if (null != lut) {
+            final int i = (int) ((value - minVal) * lutScale);
+            return lut[i > LUT_SIZE ? LUT_SIZE : i];
+        }
+
+        //Threshold
+        if (value < level1) return toColour(MAX_PIXEL_VALUE / 4);
+        if (value < level2) return toColour(MAX_PIXEL_VALUE / 2);
+        if (value < level3) return toColour(MAX_PIXEL_VALUE * 3 / 4);
+        return toColour(MAX_PIXEL_VALUE);
+    }
+
+    /**
+     * Colour of a pixel of an image that has no values, the alpha was baked by the decoder using the absolute range.
+     *
+     * @param a [0..255], -1 for no data
+     */
+    public int getPixelColour(int a) {
+        return (a > 0) ? toColour(a) : 0;
+    }
+
+    /**
+     * @return true if every value up to the provided maximum is transparent
+     */
+    public boolean isTransparent(float max) {
+        return max <= minVal;
+    }
+
+    /**
+     * @return true if every value from the provided minimum has the colour of the maximum, see {@link #getColour(float)}
+     */
+    public boolean isSaturated(float min) {
+        return min >= maxVal;
+    }
+
+    private int toColour(int a) {
+        return (a <= 0) ? 0 : (a & 0xFF) << 24 | colourMask;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public float getMinVal() {
+        return minVal;
+    }
+
+    public float getMaxVal() {
+        return maxVal;
+    }
+}
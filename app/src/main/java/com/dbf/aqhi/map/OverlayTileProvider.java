@@ -1,69 +1,203 @@
 package com.dbf.aqhi.map;
 
+import static com.dbf.aqhi.AQHIFeature.MAP_HEIGHT;
 import static com.dbf.aqhi.AQHIFeature.MAP_LEVEL_COUNT;
 import static com.dbf.aqhi.AQHIFeature.MAP_TILE_SIZE;
+import static com.dbf.aqhi.AQHIFeature.MAP_WIDTH;
 import static com.dbf.aqhi.Utils.DEG_TO_RAD;
-import static com.dbf.aqhi.Utils.RAD_TO_DEG;
-
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 
+import com.dbf.aqhi.Utils;
 import com.dbf.aqhi.api.datamart.Pollutant;
 import com.dbf.aqhi.data.spatial.SpatialData;
+import com.dbf.aqhi.grib2.Grib2;
+import com.dbf.aqhi.jpeg.ImageStats;
 import com.dbf.aqhi.jpeg.RawImage;
 
 import java.text.DecimalFormat;
+import java.util.Arrays;
 
 public class OverlayTileProvider {
 
     public static final int MAX_PIXEL_VALUE = 230; //Ensure a little bit of transparency
 
-    private final double gridScaleXInv;
-    private final double gridScaleYInv;
+    //Tiles of masked overlays are split into blocks, blocks without any valid grid point are skipped entirely
+    private static final int BLOCK_SIZE = 16;
+    static final int BLOCKS_PER_TILE = MAP_TILE_SIZE / BLOCK_SIZE;
 
-    private final double rLatZero;
-    private final double rLonZero;
+    //The grid position of the pixels is only computed exactly at the corners of the blocks, and interpolated in between.
+    //Blocks where the interpolation would be off by more than this distance, or this fraction of a tile pixel if larger, are computed exactly.
+    //The map transformation itself only has about 100m of precision.
+    //The bounds are fixed, the warps and the tiles persisted by the WarpCache and the DiskTileCache depend on them, along with their versions.
+    private static final double MAX_WARP_ERROR_METERS = 100;
+    private static final double MAX_WARP_ERROR_PIXELS = 0.25;
+    private static final double WARP_ERROR_MARGIN = 1.1; //Applied to the error measured at the centre and the middle of the edges of a block
+    static final int LATTICE_SIZE = BLOCKS_PER_TILE + 1; //Corners per side
 
-    private final double lamP;
-    private final double sinPhiP;
-    private final double cosPhiP;
+    //Returned instead of a colour when the pixels of a tile don't all have the same colour. ARGB colours only use 32 bits.
+    private static final long MIXED_COLOURS = -1;
 
-    private final SpatialData overlay;
-    private final RawImage rawImage;
+    //Resolution reduction of the overlay for the lowest zoom levels, where a grid cell is smaller than a tile pixel.
+    //Only used if the ground resolution of the grid can't be measured. Levels beyond the end of the array use the full resolution.
+    private static final int[] ZOOM_LEVEL_REDUCTION = {3, 3, 2, 1, 1};
 
-    private final int overlayColourMask;
+    private final GridProjection projection;
 
-    public OverlayTileProvider(SpatialData overlay, int overlayColour) {
+    private final SpatialData overlay;
+    private final Grib2 grib2;
+
+    private final Pollutant pollutant;
+    private final int overlayColour;
+    private final OverlayPalette.Mode paletteMode;
+    private volatile OverlayPalette palette; //Created on first use, the auto mode needs the statistics of the data
+    private volatile Runnable onPaletteResolved; //Called once the auto palette replaces the absolute fallback
+    private final int[] zoomLevelReduction; //Indexed by zoom level
+    private final double cellWidthMeters; //Approximate size of a full resolution grid cell
+    private final double cellHeightMeters;
+    private final WarpCache warpCache; //Shared by every overlay on the same grid
+    private final TileCache.OverlayKey cacheKey;
+
+    public OverlayTileProvider(SpatialData overlay, Pollutant pollutant, int overlayColour, OverlayPalette.Mode paletteMode) {
         this.overlay   = overlay;
-        this.rawImage = overlay.getGrib2().getRawImage();
+        this.pollutant = pollutant;
+        this.grib2 = overlay.getGrib2(); //Images are decoded lazily, at the resolution needed for the zoom level
 
-        this.gridScaleXInv = overlay.getGridScaleXInv();
-        this.gridScaleYInv = overlay.getGridScaleYInv();
+        this.projection = overlay.getProjection();
 
-        this.rLatZero = overlay.getrLatZero();
-        this.rLonZero = overlay.getrLonZero();
+        this.overlayColour = overlayColour;
+        this.paletteMode = paletteMode;
+        this.zoomLevelReduction = computeZoomLevelReduction();
+        this.cacheKey = new TileCache.OverlayKey(overlay.getModel(), pollutant, overlayColour, paletteMode);
 
-        this.lamP = overlay.getLamP();
-        this.sinPhiP = overlay.getSinPhiP();
-        this.cosPhiP = overlay.getCosPhiP();
+        //The grid is in rotated coordinates close to the rotated equator, the cells are close to square
+        this.cellWidthMeters = Utils.EARTH_RADIUS * DEG_TO_RAD / overlay.getGridScaleXInv();
+        this.cellHeightMeters = Utils.EARTH_RADIUS * DEG_TO_RAD / overlay.getGridScaleYInv();
 
-        this.overlayColourMask = overlayColour & 0x00FFFFFF;
+        //The warp of the tiles only depends on the parameters of the transformation, not on the pollutant or the model run
+        this.warpCache = WarpCache.forGeometry(WarpCache.hash(overlay.getGridScaleXInv(), overlay.getGridScaleYInv(),
+                overlay.getrLatZero(), overlay.getrLonZero(), overlay.getLamP(), overlay.getSinPhiP(), overlay.getCosPhiP()));
     }
 
     public SpatialData getOverlay() {
         return overlay;
     }
 
+    public Pollutant getPollutant() {
+        return pollutant;
+    }
+
+    public OverlayPalette.Mode getPaletteMode() {
+        return paletteMode;
+    }
+
+    public int getOverlayColour() {
+        return overlayColour;
+    }
+
+    /**
+     * @return the identity of the tiles of this overlay, for the tile caches
+     */
+    TileCache.OverlayKey getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Returns the palette used to colour the overlay, creating it if needed. This method never decodes, it is safe for the UI thread.
+     * The auto mode needs the statistics of the data, which are accumulated by the first full resolution decode of the tiles.
+     * Until then, the palette of the absolute mode is returned, see {@link #setOnPaletteResolved(Runnable)}.
+     */
+    public OverlayPalette getPalette() {
+        return getPalette(false);
+    }
+
+    /**
+     * @param decode true to decode the data if the auto mode needs its statistics, only from the tile rendering threads
+     */
+    private OverlayPalette getPalette(boolean decode) {
+        OverlayPalette p = palette;
+        if (null != p) return p;
+
+        float[] range = null;
+        if (paletteMode == OverlayPalette.Mode.AUTO) {
+            range = getValueRange(decode);
+            //Not kept, the statistics may not be known yet
+            if (null == range && !decode) return OverlayPalette.create(OverlayPalette.Mode.ABSOLUTE, pollutant, overlayColour, null);
+        }
+
+        final boolean resolved;
+        synchronized (this) {
+            p = palette;
+            resolved = null == p;
+            if (resolved) {
+                p = OverlayPalette.create(paletteMode, pollutant, overlayColour, range);
+                palette = p;
+            }
+        }
+
+        //The UI may have shown the absolute fallback
+        final Runnable listener = onPaletteResolved;
+        if (resolved && decode && null != listener && paletteMode == OverlayPalette.Mode.AUTO) listener.run();
+        return p;
+    }
+
+    /**
+     * @param decode true to decode the full resolution image if the statistics are not known yet
+     * @return the {min, max} range of the data, or null if unknown
+     */
+    private float[] getValueRange(boolean decode) {
+        final ImageStats stats = grib2.getStats();
+        if (null != stats) return stats.getValueRange();
+        if (!decode) return null;
+
+        //The statistics are accumulated by the full resolution decode, the reduced images are then filtered from it
+        final RawImage image = grib2.getRawImage();
+        if (null == image) return null;
+        try {
+            final ImageStats decodedStats = grib2.getStats();
+            return (null != decodedStats) ? decodedStats.getValueRange() : image.getValueRange(); //Older cached images have no statistics
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Sets the listener called once the palette of the auto mode is known, the absolute mode is used until then.
+     * The listener is called by a tile rendering thread.
+     */
+    public void setOnPaletteResolved(Runnable onPaletteResolved) {
+        this.onPaletteResolved = onPaletteResolved;
+    }
+
     /**
-     * Draws the overlay in onto a canvas for a single map tiles located at (col, row) and zoom level.
+     * Renders the overlay of a single map tile located at (col, row) and zoom level, as transparent ARGB pixels.
      * This method is deliberately redundant with SpatialData.overlayLookup for performance reasons.
+     * Tiles whose grid region is entirely transparent, or entirely saturated, are handled before any per pixel work.
+     * The grid position of the pixels is computed exactly on a lattice at the corners of the blocks, and interpolated in between,
+     * unless the error of the interpolation exceeds {@link #MAX_WARP_ERROR_METERS}, or {@link #MAX_WARP_ERROR_PIXELS} at low zoom levels.
+     * Both are cached by the {@link WarpCache}.
      *
-     * @param canvas
+     * @param argb    output, MAP_TILE_SIZE^2 pixels in row-major order, only written if the tile is not transparent
      * @param row
      * @param col
      * @param zoomLvl
+     * @return false if nothing was drawn, the tile is fully transparent
      */
-    public void drawOverlay(Canvas canvas, int row, int col, int zoomLvl) {
+    public boolean drawOverlay(int[] argb, int row, int col, int zoomLvl) {
+        //Resolved first, the auto mode may decode the full resolution image that the reduced images are filtered from
+        final OverlayPalette palette = getPalette(true);
+        final RawImage rawImage = grib2.getRawImage(getReduction(zoomLvl));
+        if (null == rawImage) return false; //The data could not be decoded
+        try {
+            return drawOverlay(argb, rawImage, palette, row, col, zoomLvl);
+        } finally {
+            //The arrays of an evicted image are only reused once every tile reading it is done
+            rawImage.release();
+        }
+    }
+
+    private boolean drawOverlay(int[] argb, RawImage rawImage, OverlayPalette palette, int row, int col, int zoomLvl) {
+        //The grid indices of a reduced resolution image are divided by 2^reduction
+        final double reductionScale = 1.0 / (1 << rawImage.reduction);
+
         //Determine the current scaling of the base bitmap image based on the tile level
         final double scale = Math.pow(2.0, zoomLvl - (MAP_LEVEL_COUNT - 1));
         final double invScale = 1.0 / scale;
@@ -73,58 +207,377 @@ public class OverlayTileProvider {
         final double tileWorldOriginX = col * tileScale;
         final double tileWorldOriginY = row * tileScale;
 
-        //Create computedOverlay ARGB buffer (per-pixel alpha from RawImage)
-        final int[] computedOverlay = new int[MAP_TILE_SIZE * MAP_TILE_SIZE];
+        //The colours are applied to the sampled values. Older cached images may only have pixels, with the alpha already applied.
+        final boolean hasValues = rawImage.hasValues();
+
+        //The buffers are re-used by every tile rendered on this thread
+        final TileBuffers buffers = TileBuffers.get();
+
+        //Skip all the per pixel work when every pixel of the tile has the same colour
+        final WarpCache.Tile warp = getWarp(row, col, zoomLvl);
+        final double[][] lattice = getLattice(warp, rawImage.reduction, buffers);
+        final double[] blockBounds = computeBlockBounds(lattice, buffers.blockBounds);
+        final long uniformColour = getUniformColour(rawImage, blockBounds, palette, buffers.range);
+        if (uniformColour == 0) return false; //Nothing to draw for this tile
+        if (uniformColour != MIXED_COLOURS) {
+            Arrays.fill(argb, 0, MAP_TILE_SIZE * MAP_TILE_SIZE, (int) uniformColour);
+            return true;
+        }
+
+        //Only overlays with a bitmap have grid points without data
+        boolean[] blockHasData = null;
+        if (null != rawImage.mask) {
+            blockHasData = findBlocksWithData(rawImage, blockBounds, buffers.blockHasData);
+            if (null == blockHasData) return false; //Nothing to draw for this tile
+        }
 
-        //For each pixel in the tile, sample the RawImage with bilinear interpolation
+        final boolean[] blockIsExact = warp.blockIsExact;
+        final double[] latticeX = lattice[0];
+        final double[] latticeY = lattice[1];
+
+        //For each scanline of the tile, compute the grid position of every pixel, then sample the whole span at once
         int idx = 0;
-        double[] latLon = new double[2]; //Allocated once, better performance
+        final double[] latLon = buffers.latLon;
+        final int[] spanX = buffers.spanX; //16.16 fixed-point grid indices
+        final int[] spanY = buffers.spanY;
+        final float[] spanValues = buffers.spanValues;
+        final int[] spanPixels = buffers.spanPixels;
 
         double worldY = tileWorldOriginY;
         for (int tileY = 0; tileY < MAP_TILE_SIZE; tileY++, worldY += invScale) {
-            double worldX = tileWorldOriginX;
-            for (int tileX = 0; tileX < MAP_TILE_SIZE; tileX++, worldX += invScale) {
-                //NOTE: This is a performance critical tight loop.
-                //So the code is copied from overlayLookup() to avoid the call overhead.
-                //This is where a macro function would be useful in Java.
+            final int blockRow = tileY / BLOCK_SIZE;
+            final double v = (double) (tileY % BLOCK_SIZE) / BLOCK_SIZE; //Position within the block
+            for (int blockCol = 0; blockCol < BLOCKS_PER_TILE; blockCol++) {
+                final int block = blockRow * BLOCKS_PER_TILE + blockCol;
+                final int tileX0 = blockCol * BLOCK_SIZE;
+                if (null != blockHasData && !blockHasData[block]) {
+                    //Skip this row of the block, it remains transparent
+                    for (int k = 0; k < BLOCK_SIZE; k++) {
+                        spanX[tileX0 + k] = RawImage.FIXED_NONE;
+                        spanY[tileX0 + k] = RawImage.FIXED_NONE;
+                    }
+                    continue;
+                }
 
-                //Transform from global pixel location to latitude and longitude coordinates
-                MapTransformer.transformXY(worldX, worldY, latLon);
+                if (!blockIsExact[block]) {
+                    //Bilinear interpolation of the lattice, down the edges of the block then across the row
+                    final int c00 = blockRow * LATTICE_SIZE + blockCol;
+                    final int c10 = c00 + 1;
+                    final int c01 = c00 + LATTICE_SIZE;
+                    final int c11 = c01 + 1;
+                    double x = latticeX[c00] + (latticeX[c01] - latticeX[c00]) * v;
+                    double y = latticeY[c00] + (latticeY[c01] - latticeY[c00]) * v;
+                    final double stepX = (latticeX[c10] + (latticeX[c11] - latticeX[c10]) * v - x) / BLOCK_SIZE;
+                    final double stepY = (latticeY[c10] + (latticeY[c11] - latticeY[c10]) * v - y) / BLOCK_SIZE;
+                    for (int k = 0; k < BLOCK_SIZE; k++, x += stepX, y += stepY) {
+                        spanX[tileX0 + k] = RawImage.toFixed(x);
+                        spanY[tileX0 + k] = RawImage.toFixed(y);
+                    }
+                    continue;
+                }
 
-                //Fudge factor
-                latLon[1] += 4.8;
+                double worldX = tileWorldOriginX + tileX0 * invScale;
+                for (int tileX = tileX0; tileX < tileX0 + BLOCK_SIZE; tileX++, worldX += invScale) {
+                    //NOTE: This is a performance critical tight loop, the fused kernel avoids most of the trigonometry.
+                    projection.pixelToGrid(worldX, worldY, latLon);
+                    spanY[tileX] = RawImage.toFixed(latLon[0] * reductionScale);
+                    spanX[tileX] = RawImage.toFixed(latLon[1] * reductionScale);
+                }
+            }
 
-                //Convert from degrees to rotated radian coordinates
-                latLon[0] *= DEG_TO_RAD;
-                latLon[1] *= DEG_TO_RAD;
+            if (hasValues) {
+                rawImage.sampleValuesSpan(spanX, spanY, spanValues, MAP_TILE_SIZE);
+                for (int tileX = 0; tileX < MAP_TILE_SIZE; tileX++) {
+                    argb[idx++] = palette.getColour(spanValues[tileX]);
+                }
+            } else {
+                rawImage.samplePixelsSpan(spanX, spanY, spanPixels, MAP_TILE_SIZE);
+                for (int tileX = 0; tileX < MAP_TILE_SIZE; tileX++) {
+                    argb[idx++] = palette.getPixelColour(spanPixels[tileX]);
+                }
+            }
+        }
+        return true;
+    }
 
-                final double sinLat = Math.sin(latLon[0]);
-                final double cosLat = Math.cos(latLon[0]);
+    /**
+     * Returns the warp of a tile from the cache, computing it if needed.
+     */
+    private WarpCache.Tile getWarp(int row, int col, int zoomLvl) {
+        WarpCache.Tile warp = warpCache.get(zoomLvl, row, col);
+        if (null == warp) {
+            final double invScale = Math.pow(2.0, (MAP_LEVEL_COUNT - 1) - zoomLvl);
+            final double tileWorldOriginX = col * MAP_TILE_SIZE * invScale;
+            final double tileWorldOriginY = row * MAP_TILE_SIZE * invScale;
+            final double[][] lattice = computeLattice(tileWorldOriginX, tileWorldOriginY, invScale);
+            warp = new WarpCache.Tile(toFloats(lattice[0]), toFloats(lattice[1]), findExactBlocks(lattice, tileWorldOriginX, tileWorldOriginY, invScale));
+            warpCache.put(zoomLvl, row, col, warp);
+        }
+        return warp;
+    }
 
-                final double dLam = latLon[1] - lamP;
-                final double cosLatCosDLam = Math.cos(dLam) * cosLat;
+    private static float[] toFloats(double[] values) {
+        final float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) floats[i] = (float) values[i];
+        return floats;
+    }
 
-                final double phiR = Math.asin((sinLat * sinPhiP) - (cosPhiP * cosLatCosDLam)); //Faster than Math.atan2(sinPhiR, Math.hypot(cosPhiR_sinLamR, cosPhiR_cosLamR));
-                final double lamR = Math.atan2(cosLat * Math.sin(dLam), (sinLat * cosPhiP) + (sinPhiP * cosLatCosDLam));
+    /**
+     * Scales the lattice of a tile to the indices of an image.
+     *
+     * @return {gridX, gridY}, the lattice of the buffers of this thread
+     */
+    private static double[][] getLattice(WarpCache.Tile warp, int reduction, TileBuffers buffers) {
+        final double reductionScale = 1.0 / (1 << reduction);
+        final double[] gridX = buffers.lattice[0];
+        final double[] gridY = buffers.lattice[1];
+        for (int i = 0; i < gridX.length; i++) {
+            gridX[i] = warp.gridX[i] * reductionScale;
+            gridY[i] = warp.gridY[i] * reductionScale;
+        }
+        return buffers.lattice;
+    }
 
-                //Convert from rotated radian coordinates to grid fractional indices (i,j) in degrees
-                latLon[0] = ((phiR * RAD_TO_DEG) - rLatZero) * gridScaleYInv;
-                latLon[1] = ((lamR * RAD_TO_DEG) - rLonZero) * gridScaleXInv;
+    /**
+     * Computes the exact grid position of the corners of the blocks of a tile, at full resolution.
+     *
+     * @return {gridX, gridY}, {@link #LATTICE_SIZE}^2 corners each, in row-major order, NaN if the position of a corner is unknown
+     */
+    private double[][] computeLattice(double tileWorldOriginX, double tileWorldOriginY, double invScale) {
+        final double[] gridX = new double[LATTICE_SIZE * LATTICE_SIZE];
+        final double[] gridY = new double[LATTICE_SIZE * LATTICE_SIZE];
+        final double[] latLon = new double[2];
+        final double blockWorldSize = BLOCK_SIZE * invScale;
+        for (int j = 0, i = 0; j < LATTICE_SIZE; j++) {
+            for (int k = 0; k < LATTICE_SIZE; k++, i++) {
+                worldToGrid(tileWorldOriginX + k * blockWorldSize, tileWorldOriginY + j * blockWorldSize, latLon);
+                gridY[i] = latLon[0];
+                gridX[i] = latLon[1];
+            }
+        }
+        return new double[][]{gridX, gridY};
+    }
 
-                int color = 0; //transparent by default
-                final int a = rawImage.samplePixelsBilinear(latLon[1], latLon[0]);
-                if (a > 0) {
-                    //Compose ARGB with per-pixel alpha
-                    color = (a & 0xFF) << 24 | overlayColourMask;
-                }
-                computedOverlay[idx++] = color;
+    /**
+     * Determines which blocks of a tile can't be interpolated from the lattice within {@link #MAX_WARP_ERROR_METERS},
+     * or within {@link #MAX_WARP_ERROR_PIXELS} when a tile pixel is larger than that distance.
+     * The mapping is smooth, so the error of the bilinear interpolation is largest near the centre of a block or the middle of its edges,
+     * where it is measured against the exact position. The midpoints of the edges are shared by neighbouring blocks, they are transformed once.
+     * The error in metres doesn't depend on the resolution of the image.
+     *
+     * @return true for the blocks whose pixels must be transformed exactly, in row-major order
+     */
+    private boolean[] findExactBlocks(double[][] lattice, double tileWorldOriginX, double tileWorldOriginY, double invScale) {
+        final double[] gridX = lattice[0];
+        final double[] gridY = lattice[1];
+        final double blockWorldSize = BLOCK_SIZE * invScale;
+        final double[] latLon = new double[2];
+
+        //Error of the interpolation at the middle of the horizontal edges, LATTICE_SIZE rows of BLOCKS_PER_TILE edges,
+        //and of the vertical edges, BLOCKS_PER_TILE rows of LATTICE_SIZE edges. In grid cells, NaN if unknown.
+        final double[] horizontalErrorX = new double[LATTICE_SIZE * BLOCKS_PER_TILE];
+        final double[] horizontalErrorY = new double[LATTICE_SIZE * BLOCKS_PER_TILE];
+        final double[] verticalErrorX = new double[BLOCKS_PER_TILE * LATTICE_SIZE];
+        final double[] verticalErrorY = new double[BLOCKS_PER_TILE * LATTICE_SIZE];
+        for (int j = 0; j < LATTICE_SIZE; j++) {
+            for (int k = 0; k < BLOCKS_PER_TILE; k++) {
+                final int c0 = j * LATTICE_SIZE + k;
+                worldToGrid(tileWorldOriginX + (k + 0.5) * blockWorldSize, tileWorldOriginY + j * blockWorldSize, latLon);
+                horizontalErrorX[j * BLOCKS_PER_TILE + k] = (gridX[c0] + gridX[c0 + 1]) * 0.5 - latLon[1];
+                horizontalErrorY[j * BLOCKS_PER_TILE + k] = (gridY[c0] + gridY[c0 + 1]) * 0.5 - latLon[0];
             }
         }
-        if(canvas.isHardwareAccelerated()) {
-            canvas.drawBitmap(Bitmap.createBitmap(computedOverlay, MAP_TILE_SIZE, MAP_TILE_SIZE, Bitmap.Config.ARGB_8888), 0f, 0f, null);
+        for (int j = 0; j < BLOCKS_PER_TILE; j++) {
+            for (int k = 0; k < LATTICE_SIZE; k++) {
+                final int c0 = j * LATTICE_SIZE + k;
+                worldToGrid(tileWorldOriginX + k * blockWorldSize, tileWorldOriginY + (j + 0.5) * blockWorldSize, latLon);
+                verticalErrorX[j * LATTICE_SIZE + k] = (gridX[c0] + gridX[c0 + LATTICE_SIZE]) * 0.5 - latLon[1];
+                verticalErrorY[j * LATTICE_SIZE + k] = (gridY[c0] + gridY[c0 + LATTICE_SIZE]) * 0.5 - latLon[0];
+            }
+        }
+
+        final boolean[] blockIsExact = new boolean[BLOCKS_PER_TILE * BLOCKS_PER_TILE];
+        for (int j = 0, b = 0; j < BLOCKS_PER_TILE; j++) {
+            for (int k = 0; k < BLOCKS_PER_TILE; k++, b++) {
+                final int c00 = j * LATTICE_SIZE + k;
+                final int c10 = c00 + 1;
+                final int c01 = c00 + LATTICE_SIZE;
+                final int c11 = c01 + 1;
+
+                //The smallest side of the block gives the smallest tile pixel, and the tightest bound
+                final double pixelMeters = Math.min(
+                        Math.hypot((gridX[c10] - gridX[c00]) * cellWidthMeters, (gridY[c10] - gridY[c00]) * cellHeightMeters),
+                        Math.hypot((gridX[c01] - gridX[c00]) * cellWidthMeters, (gridY[c01] - gridY[c00]) * cellHeightMeters)) / BLOCK_SIZE;
+                final double maxError = Math.max(MAX_WARP_ERROR_METERS, MAX_WARP_ERROR_PIXELS * pixelMeters);
+
+                worldToGrid(tileWorldOriginX + (k + 0.5) * blockWorldSize, tileWorldOriginY + (j + 0.5) * blockWorldSize, latLon);
+                double error = getWarpError((gridX[c00] + gridX[c10] + gridX[c01] + gridX[c11]) * 0.25 - latLon[1],
+                        (gridY[c00] + gridY[c10] + gridY[c01] + gridY[c11]) * 0.25 - latLon[0]);
+                final int top = j * BLOCKS_PER_TILE + k;
+                final int bottom = top + BLOCKS_PER_TILE;
+                final int left = j * LATTICE_SIZE + k;
+                final int right = left + 1;
+                error = Math.max(error, Math.max(getWarpError(horizontalErrorX[top], horizontalErrorY[top]), getWarpError(horizontalErrorX[bottom], horizontalErrorY[bottom])));
+                error = Math.max(error, Math.max(getWarpError(verticalErrorX[left], verticalErrorY[left]), getWarpError(verticalErrorX[right], verticalErrorY[right])));
+
+                //The error between the checked points may be a little larger, a margin is kept.
+                //Also true when a position is unknown, since NaN is never within the bound.
+                blockIsExact[b] = !(error * WARP_ERROR_MARGIN <= maxError);
+            }
+        }
+        return blockIsExact;
+    }
+
+    /**
+     * @return the distance in metres of an error in grid cells, NaN if unknown
+     */
+    private double getWarpError(double errorX, double errorY) {
+        return Math.hypot(errorX * cellWidthMeters, errorY * cellHeightMeters);
+    }
+
+    /**
+     * Computes the grid bounding box of each block of a tile, in the indices of the image, from the lattice of block corners.
+     * A margin is added to the bounding box of each block for the interpolation and the curvature of the projection.
+     *
+     * @param blockBounds receives the bounding boxes, see {@link TileBuffers#blockBounds}
+     * @return {minX, minY, maxX, maxY} of each block, in row-major order, NaN if the position of a block is unknown
+     */
+    private static double[] computeBlockBounds(double[][] lattice, double[] blockBounds) {
+        final int corners = LATTICE_SIZE;
+        final double[] gridX = lattice[0];
+        final double[] gridY = lattice[1];
+
+        for (int j = 0, b = 0; j < BLOCKS_PER_TILE; j++) {
+            for (int k = 0; k < BLOCKS_PER_TILE; k++, b += 4) {
+                final int c00 = j * corners + k;
+                final int c10 = c00 + 1;
+                final int c01 = c00 + corners;
+                final int c11 = c01 + 1;
+                final double minX = Math.min(Math.min(gridX[c00], gridX[c10]), Math.min(gridX[c01], gridX[c11]));
+                final double maxX = Math.max(Math.max(gridX[c00], gridX[c10]), Math.max(gridX[c01], gridX[c11]));
+                final double minY = Math.min(Math.min(gridY[c00], gridY[c10]), Math.min(gridY[c01], gridY[c11]));
+                final double maxY = Math.max(Math.max(gridY[c00], gridY[c10]), Math.max(gridY[c01], gridY[c11]));
+
+                //1 grid cell for the interpolation, plus a fraction of the block size for the curvature. NaN propagates.
+                final double marginX = 1 + (maxX - minX) * 0.125;
+                final double marginY = 1 + (maxY - minY) * 0.125;
+                blockBounds[b]     = minX - marginX;
+                blockBounds[b + 1] = minY - marginY;
+                blockBounds[b + 2] = maxX + marginX;
+                blockBounds[b + 3] = maxY + marginY;
+            }
+        }
+        return blockBounds;
+    }
+
+    /**
+     * Determines which blocks of a tile overlap grid points that hold data, by testing the bounding box of each block against the mask.
+     *
+     * @param blockHasData receives the blocks containing data, see {@link TileBuffers#blockHasData}
+     * @return the blocks containing data, in row-major order, or null if no block of the tile contains any data
+     */
+    private static boolean[] findBlocksWithData(RawImage rawImage, double[] blockBounds, boolean[] blockHasData) {
+        boolean tileHasData = false;
+        for (int i = 0, b = 0; i < blockHasData.length; i++, b += 4) {
+            if (Double.isNaN(blockBounds[b]) || Double.isNaN(blockBounds[b + 1]) || Double.isNaN(blockBounds[b + 2]) || Double.isNaN(blockBounds[b + 3])) {
+                blockHasData[i] = true; //Can't tell, draw it
+            } else {
+                blockHasData[i] = rawImage.hasValidData(
+                        (int) Math.floor(blockBounds[b]), (int) Math.floor(blockBounds[b + 1]),
+                        (int) Math.ceil(blockBounds[b + 2]), (int) Math.ceil(blockBounds[b + 3]));
+            }
+            tileHasData |= blockHasData[i];
+        }
+        return tileHasData ? blockHasData : null;
+    }
+
+    /**
+     * Determines if every pixel of a tile has the same colour, from the range of the grid points under the tile.
+     * The range is read from the min/max quadtree of the image, see {@link RawImage#getRangeTree()}.
+     * A tile is transparent if every value is at or below the minimum of the palette, or if there is no value at all.
+     * It has a single colour if every value is saturated, and every grid point under the tile holds a value.
+     *
+     * @param range scratch array of 2 elements
+     * @return the ARGB colour of every pixel, 0 for transparent, or {@link #MIXED_COLOURS}
+     */
+    private static long getUniformColour(RawImage rawImage, double[] blockBounds, OverlayPalette palette, float[] range) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int b = 0; b < blockBounds.length; b += 4) {
+            if (Double.isNaN(blockBounds[b]) || Double.isNaN(blockBounds[b + 1]) || Double.isNaN(blockBounds[b + 2]) || Double.isNaN(blockBounds[b + 3]))
+                return MIXED_COLOURS; //Can't tell
+            minX = Math.min(minX, blockBounds[b]);
+            minY = Math.min(minY, blockBounds[b + 1]);
+            maxX = Math.max(maxX, blockBounds[b + 2]);
+            maxY = Math.max(maxY, blockBounds[b + 3]);
+        }
+
+        final int x0 = (int) Math.floor(minX);
+        final int y0 = (int) Math.floor(minY);
+        final int x1 = (int) Math.ceil(maxX);
+        final int y1 = (int) Math.ceil(maxY);
+        final boolean complete = rawImage.getRangeTree().getRange(x0, y0, x1, y1, range)
+                && rawImage.contains(x0, y0, x1, y1); //Pixels outside the image are transparent
+        if (range[0] > range[1]) return 0; //No value under the tile
+
+        if (rawImage.hasValues()) {
+            if (palette.isTransparent(range[1])) return 0;
+            if (complete && palette.isSaturated(range[0])) return palette.getColour(range[1]) & 0xFFFFFFFFL;
         } else {
-            canvas.drawBitmap(computedOverlay, 0, MAP_TILE_SIZE, 0f, 0f, MAP_TILE_SIZE, MAP_TILE_SIZE, true, null);
+            if (range[1] <= 0) return 0;
+            if (complete && range[0] == range[1]) return palette.getPixelColour((int) range[0]) & 0xFFFFFFFFL;
         }
+        return MIXED_COLOURS;
+    }
+
+    private int getReduction(int zoomLvl) {
+        return (zoomLvl >= 0 && zoomLvl < zoomLevelReduction.length) ? zoomLevelReduction[zoomLvl] : 0;
+    }
+
+    /**
+     * Picks the level of the overlay image pyramid for each zoom level, the one whose cell size best matches the size of a tile pixel.
+     * The ground resolution of the grid, in grid cells per global pixel, is measured at the centre of the map.
+     * Each level of reduction doubles the cell size, so the best level is the base 2 logarithm of the number of cells per tile pixel.
+     */
+    private int[] computeZoomLevelReduction() {
+        final double[] centre = new double[2];
+        final double[] right = new double[2];
+        final double[] below = new double[2];
+        final double centreX = MAP_WIDTH / 2.0;
+        final double centreY = MAP_HEIGHT / 2.0;
+        worldToGrid(centreX, centreY, centre);
+        worldToGrid(centreX + MAP_TILE_SIZE, centreY, right);
+        worldToGrid(centreX, centreY + MAP_TILE_SIZE, below);
+
+        //Use the largest of the two directions, to avoid any aliasing
+        final double cellsPerPixel = Math.max(
+                Math.hypot(right[0] - centre[0], right[1] - centre[1]),
+                Math.hypot(below[0] - centre[0], below[1] - centre[1])) / MAP_TILE_SIZE;
+
+        final int[] reductions = new int[MAP_LEVEL_COUNT];
+        for (int zoomLvl = 0; zoomLvl < MAP_LEVEL_COUNT; zoomLvl++) {
+            if (!(cellsPerPixel > 0) || Double.isInfinite(cellsPerPixel)) {
+                //Outside the grid, fall back to the fixed table
+                reductions[zoomLvl] = (zoomLvl < ZOOM_LEVEL_REDUCTION.length) ? ZOOM_LEVEL_REDUCTION[zoomLvl] : 0;
+                continue;
+            }
+            final double invScale = Math.pow(2.0, (MAP_LEVEL_COUNT - 1) - zoomLvl); //Global pixels per tile pixel
+            final long reduction = Math.round(Math.log(cellsPerPixel * invScale) / Math.log(2.0));
+            reductions[zoomLvl] = (int) Math.max(0, Math.min(Grib2.MAX_REDUCTION, reduction));
+        }
+        return reductions;
+    }
+
+    /**
+     * Transforms a global pixel location to fractional grid indices, at full resolution.
+     * Same transformation as the tight loop of {@link #drawOverlay}, see {@link GridProjection}.
+     *
+     * @param latLon output, grid Y index at position 0 and grid X index at position 1
+     */
+    private void worldToGrid(double worldX, double worldY, double[] latLon) {
+        projection.pixelToGrid(worldX, worldY, latLon);
     }
 
     /**
@@ -140,11 +593,16 @@ public class OverlayTileProvider {
         final double[] latLon = new double[2];
         MapTransformer.transformXY(x, y, latLon);
 
-        if(null != rawImage.values) {
+        //Always use the full resolution for the text.
+        //This is called from the UI thread, the lookups only decode a small window of the grid if the image is not already decoded.
+        //If only the full image can be decoded, the text isn't available until it is decoded in the background.
+        if(!grib2.hasData()) {
+            return "-- " + pollutant.getUnits(); //The data could not be decoded
+        } else if(grib2.hasValues()) {
             //First try to use raw value if possible
             final float overlayValue = overlay.overlayValueLookup(latLon[0], latLon[1]);
             if(overlayValue < 0.0 || Float.isNaN(overlayValue)) {
-                return "-- " + pollutant.getUnits(); //Outside the grid
+                return "-- " + pollutant.getUnits(); //Outside the grid, or not decoded yet
             }
             return (new DecimalFormat("0.0")).format(overlayValue) + " " + pollutant.getUnits();
         } else {
@@ -0,0 +1,113 @@
+package com.dbf.aqhi.map;
+
+import static com.dbf.aqhi.AQHIFeature.MAP_TILE_SIZE;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.dbf.utils.stacktrace.StackTraceCompactor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Locale;
+
+import ovh.plrapps.mapview.core.TileStreamProvider;
+
+/**
+ * Provides the tiles of the pollution overlay, as a transparent layer drawn over the base map.
+ * The base map tiles are streamed straight from the assets by their own layer, they are never decoded or computed here.
+ * The overlay tiles are uncompressed, see {@link BmpEncoder}, so neither the encoding nor the decoding by the map is expensive.
+ * They are cached in memory, see {@link TileCache}, and on disk so they survive restarts of the app, see {@link DiskTileCache}.
+ */
+public class OverlayTileStreamProvider implements TileStreamProvider {
+    private static final String LOG_TAG = "OverlayTileStreamProvider";
+
+    private volatile OverlayTileProvider overlayTileProvider;
+
+    private final TileCache tileCache;
+    private final DiskTileCache diskTileCache;
+
+    /**
+     * @param memoryClassMb memory class of the device, the budget of the cache is a fraction of it, see {@link TileCache}
+     * @param cacheDir      directory of the tiles persisted across restarts, see {@link DiskTileCache}
+     */
+    public OverlayTileStreamProvider(int memoryClassMb, File cacheDir) {
+        this.tileCache = new TileCache(memoryClassMb);
+        this.diskTileCache = DiskTileCache.get(cacheDir);
+    }
+
+    /**
+     * @return the overlay tile, or null if the tile has no overlay
+     */
+    @Nullable
+    @Override
+    public InputStream getTileStream(int row, int col, int zoomLvl) {
+        final OverlayTileProvider overlay = overlayTileProvider;
+        if(null == overlay) return null;
+
+        TileCache.TileKey key = new TileCache.TileKey(overlay.getCacheKey(), row, col, zoomLvl);
+        byte[] bytes = tileCache.get(key);
+        if (null == bytes) {
+            bytes = diskTileCache.get(key);
+            if (null != bytes) tileCache.putCompressed(key, bytes);
+        }
+        if (null == bytes) {
+            bytes = getTileBytes(overlay, row, col, zoomLvl);
+            if (null == bytes) return null;
+            //The tile is cached under the overlay that rendered it, even if the overlay changed in the meantime
+            tileCache.put(key, bytes);
+            diskTileCache.put(key, tileCache);
+            if(overlay != overlayTileProvider){
+                //The overlay changed during the process, start over with the new one
+                return getTileStream(row, col, zoomLvl);
+            }
+        }
+        return (bytes == TileCache.EMPTY_TILE) ? null : new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * @return the encoded overlay tile, {@link TileCache#EMPTY_TILE} if the tile has no overlay, or null if it failed
+     */
+    private byte[] getTileBytes(OverlayTileProvider overlay, int row, int col, int zoomLvl) {
+        if (null == overlay) return TileCache.EMPTY_TILE;
+        try {
+            //The pixel buffer is re-used by every tile rendered on this thread
+            final int[] argb = TileBuffers.get().overlayPixels;
+            if (!overlay.drawOverlay(argb, row, col, zoomLvl)) return TileCache.EMPTY_TILE;
+            return BmpEncoder.encode(argb, MAP_TILE_SIZE, MAP_TILE_SIZE);
+        } catch (Throwable t) {
+            Log.e(LOG_TAG, String.format("Overlay tile failed row:%d column:%d zoom:%d:\n%s", row, col, zoomLvl, StackTraceCompactor.getCompactStackTrace(t)));
+            return null;
+        }
+    }
+
+    public OverlayTileProvider getOverlayTileProvider() {
+        return overlayTileProvider;
+    }
+
+    public void setOverlayTileProvider(OverlayTileProvider overlayTileProvider) {
+        this.overlayTileProvider = overlayTileProvider;
+        if (null == overlayTileProvider) return;
+
+        //Only the older model runs of the same pollutant are removed, the tiles of the other overlays are kept, switching back to them is instant
+        tileCache.removeSupersededRuns(overlayTileProvider.getCacheKey());
+        diskTileCache.open(overlayTileProvider.getCacheKey());
+    }
+
+    /**
+     * Shrinks the tile cache when the system is low on memory, see {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        tileCache.trimMemory(level);
+    }
+
+    /**
+     * Logs the hit rate, the size and the evictions of the tile cache, for tuning.
+     */
+    public void logCacheStats() {
+        final TileCache.Stats stats = tileCache.getStats();
+        Log.i(LOG_TAG, String.format(Locale.ROOT, "Tile cache hit rate: %.1f%%, %s, %s", stats.getHitRate() * 100, stats, diskTileCache.getStats()));
+    }
+}
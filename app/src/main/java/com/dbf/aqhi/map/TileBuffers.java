@@ -0,0 +1,51 @@
+package com.dbf.aqhi.map;
+
+import static com.dbf.aqhi.AQHIFeature.MAP_TILE_SIZE;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Buffers reused by the tile rendering, so that producing a tile allocates close to nothing once the map is warmed up.
+ * The map renders its tiles on a pool of worker threads, each worker has its own set, see {@link #get()}.
+ * Everything is only valid until the same worker renders its next tile.
+ */
+final class TileBuffers {
+
+    private static final int COMPRESSED_INITIAL_SIZE = 32 * 1024;
+
+    private static final ThreadLocal<TileBuffers> BUFFERS = ThreadLocal.withInitial(TileBuffers::new);
+
+    final int[] overlayPixels = new int[MAP_TILE_SIZE * MAP_TILE_SIZE]; //ARGB
+    final int[] spanX = new int[MAP_TILE_SIZE]; //16.16 fixed-point grid indices
+    final int[] spanY = new int[MAP_TILE_SIZE];
+    final float[] spanValues = new float[MAP_TILE_SIZE];
+    final int[] spanPixels = new int[MAP_TILE_SIZE];
+    final double[] latLon = new double[2];
+    final double[][] lattice = new double[2][OverlayTileProvider.LATTICE_SIZE * OverlayTileProvider.LATTICE_SIZE]; //{gridX, gridY}
+    final double[] blockBounds = new double[OverlayTileProvider.BLOCKS_PER_TILE * OverlayTileProvider.BLOCKS_PER_TILE * 4]; //{minX, minY, maxX, maxY} per block
+    final boolean[] blockHasData = new boolean[OverlayTileProvider.BLOCKS_PER_TILE * OverlayTileProvider.BLOCKS_PER_TILE];
+    final float[] range = new float[2]; //{min, max}
+
+    //Compression of the tiles, on the background threads of TileCache and DiskTileCache
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream(COMPRESSED_INITIAL_SIZE);
+    private Bitmap bitmap; //Created on first use
+
+    private TileBuffers() {}
+
+    /**
+     * @return the buffers of the current worker thread
+     */
+    static TileBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * @return a mutable ARGB bitmap of the size of a tile
+     */
+    Bitmap getBitmap() {
+        if (null == bitmap) bitmap = Bitmap.createBitmap(MAP_TILE_SIZE, MAP_TILE_SIZE, Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+}
@@ -0,0 +1,302 @@
+package com.dbf.aqhi.map;
+
+import static com.dbf.aqhi.AQHIFeature.MAP_TILE_SIZE;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.dbf.aqhi.api.datamart.Pollutant;
+import com.dbf.aqhi.data.spatial.ModelMetaData;
+import com.dbf.utils.stacktrace.StackTraceCompactor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two tier cache of the overlay tiles, both tiers are budgeted in bytes.
+ * <ul>
+ *     <li>L1 holds the uncompressed tiles, ready to be drawn, for the most recently viewed region of the map.</li>
+ *     <li>L2 holds the tiles evicted from L1, compressed. They are streamed to the map as is, it decodes them itself.</li>
+ * </ul>
+ * The evicted tiles are compressed on a low priority background thread, so putting a tile never waits for the compression of another one.
+ * Until then, they are kept uncompressed, up to {@link #MAX_PENDING_DEMOTIONS} of them.
+ * A tile is compressed at most once, the compressed copy is shared with the {@link DiskTileCache}, see {@link #getCompressed(TileKey)}.
+ * The budgets are a fraction of the memory class of the device, and both tiers shrink when the system is low on memory, see {@link #trimMemory(int)}.
+ * <p>
+ * The tiles of every overlay share the same budgets, they are partitioned by the identity of their overlay, see {@link OverlayKey}.
+ * Switching back to a recently viewed pollutant or colour finds its tiles still cached, the least recently used tiles of any overlay are evicted first.
+ */
+final class TileCache {
+    private static final String LOG_TAG = "TileCache";
+
+    private static final int L1_MEMORY_FRACTION = 16; //1/16 of the memory class, 16MB or 64 tiles on a 256MB device
+    private static final int L2_MEMORY_FRACTION = 8;
+    private static final int EMPTY_TILE_SIZE = 64; //Nominal size of the tiles without any overlay, for the key and the entry
+    private static final int MAX_PENDING_DEMOTIONS = 16; //Each pending demotion holds an uncompressed tile
+
+    //Compresses the tiles evicted from L1 into L2, shared by every cache
+    private static final ExecutorService DEMOTER = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, LOG_TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    //Cached in place of the tiles without any overlay
+    static final byte[] EMPTY_TILE = new byte[0];
+
+    /**
+     * Identity of an overlay, every parameter its tiles depend on.
+     */
+    record OverlayKey(ModelMetaData model, Pollutant pollutant, int overlayColour, OverlayPalette.Mode paletteMode) {}
+
+    //For use as the cache key
+    record TileKey(OverlayKey overlay, int row, int col, int zoomLvl) {}
+
+    /**
+     * Snapshot of the counters of the cache, for tuning.
+     */
+    record Stats(int l1Hits, int l2Hits, int misses, int l1Bytes, int l2Bytes, int l1Evictions, int l2Evictions) {
+        double getHitRate() {
+            final int requests = l1Hits + l2Hits + misses;
+            return (requests == 0) ? 0 : (double) (l1Hits + l2Hits) / requests;
+        }
+    }
+
+    /**
+     * Uncompressed tile of L1, along with its compressed copy once it is compressed.
+     */
+    private static final class Entry {
+        private final byte[] tile;
+        private byte[] compressed;
+
+        private Entry(byte[] tile) {
+            this.tile = tile;
+            if (tile == EMPTY_TILE) compressed = EMPTY_TILE;
+        }
+
+        /**
+         * @return the compressed tile, compressing it on the first call, or null if it failed
+         */
+        private synchronized byte[] getCompressed() {
+            if (null == compressed) {
+                final byte[] result = compress(tile);
+                if (result != tile) compressed = result;
+            }
+            return compressed;
+        }
+
+        private synchronized boolean isCompressed() {
+            return null != compressed;
+        }
+    }
+
+    private final LruCache<TileKey, Entry> l1;
+    private final LruCache<TileKey, byte[]> l2;
+    private final LinkedHashMap<TileKey, Entry> pending = new LinkedHashMap<>(); //Evicted from L1, not compressed yet, the eldest first
+
+    //Counted here, the lookups of the disk cache are not requests of the map
+    private final AtomicInteger l1Hits = new AtomicInteger();
+    private final AtomicInteger l2Hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param memoryClassMb memory class of the device, see {@link android.app.ActivityManager#getMemoryClass()}
+     */
+    TileCache(int memoryClassMb) {
+        if (memoryClassMb <= 0) throw new IllegalArgumentException("Invalid memory class: " + memoryClassMb);
+
+        final int memoryBytes = memoryClassMb * 1024 * 1024;
+        l2 = new LruCache<TileKey, byte[]>(memoryBytes / L2_MEMORY_FRACTION) {
+            @Override
+            protected int sizeOf(TileKey key, byte[] value) {
+                return getSize(value);
+            }
+        };
+        l1 = new LruCache<TileKey, Entry>(memoryBytes / L1_MEMORY_FRACTION) {
+            @Override
+            protected int sizeOf(TileKey key, Entry value) {
+                //The compressed copy is small next to the tile, and the size of an entry can't change
+                return getSize(value.tile);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, TileKey key, Entry oldValue, Entry newValue) {
+                //Removed tiles are dropped, only evicted ones are demoted
+                if (evicted) demote(key, oldValue);
+            }
+        };
+    }
+
+    /**
+     * Compresses a tile evicted from L1 into L2, in the background, unless it is already compressed.
+     * If the compression falls too far behind, the eldest pending tile is dropped, it will be read back from the disk or rendered again.
+     */
+    private void demote(TileKey key, Entry entry) {
+        if (entry.isCompressed()) {
+            l2.put(key, entry.getCompressed());
+            return;
+        }
+        synchronized (pending) {
+            pending.put(key, entry);
+            if (pending.size() > MAX_PENDING_DEMOTIONS) {
+                final Iterator<TileKey> eldest = pending.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        DEMOTER.execute(() -> {
+            synchronized (pending) {
+                if (pending.get(key) != entry) return; //Dropped or removed in the meantime
+            }
+            final byte[] compressed = entry.getCompressed();
+            synchronized (pending) {
+                if (pending.remove(key, entry) && null != compressed) l2.put(key, compressed);
+            }
+        });
+    }
+
+    private static int getSize(byte[] value) {
+        return (value == EMPTY_TILE) ? EMPTY_TILE_SIZE : value.length;
+    }
+
+    /**
+     * @return the tile, uncompressed if it is found in L1, compressed if it is found in L2, or null if it is not cached
+     */
+    byte[] get(TileKey key) {
+        Entry entry = l1.get(key);
+        if (null != entry) {
+            l1Hits.incrementAndGet();
+            return entry.tile;
+        }
+        synchronized (pending) {
+            entry = pending.get(key);
+        }
+        final byte[] tile = (null != entry) ? entry.tile : l2.get(key);
+        if (null != tile) l2Hits.incrementAndGet();
+        else misses.incrementAndGet();
+        return tile;
+    }
+
+    /**
+     * Compresses a cached tile, unless it is already compressed. For the {@link DiskTileCache}, on its background thread.
+     * The compressed copy is kept, so the tile is not compressed again when it is evicted from L1.
+     *
+     * @return the compressed tile, {@link #EMPTY_TILE} if the tile has no overlay, or null if it is not cached anymore or the compression failed
+     */
+    byte[] getCompressed(TileKey key) {
+        Entry entry = l1.get(key);
+        if (null == entry) {
+            synchronized (pending) {
+                entry = pending.get(key);
+            }
+        }
+        return (null != entry) ? entry.getCompressed() : l2.get(key);
+    }
+
+    /**
+     * @param tile uncompressed tile, see {@link BmpEncoder}, or {@link #EMPTY_TILE}
+     */
+    void put(TileKey key, byte[] tile) {
+        l1.put(key, new Entry(tile));
+    }
+
+    /**
+     * @param tile compressed tile, read back from the {@link DiskTileCache}, or {@link #EMPTY_TILE}
+     */
+    void putCompressed(TileKey key, byte[] tile) {
+        l2.put(key, tile);
+    }
+
+    /**
+     * Removes the tiles of the other model runs of the pollutant of an overlay, they are superseded and will never be displayed again.
+     * Each pollutant has its own model runs, the tiles of the other pollutants are kept and evicted as usual.
+     * Removed tiles are not compressed into L2, only evicted ones are.
+     */
+    void removeSupersededRuns(OverlayKey overlay) {
+        for (TileKey key : l1.snapshot().keySet()) {
+            if (isSuperseded(key, overlay)) l1.remove(key);
+        }
+        synchronized (pending) {
+            pending.keySet().removeIf(key -> isSuperseded(key, overlay));
+        }
+        for (TileKey key : l2.snapshot().keySet()) {
+            if (isSuperseded(key, overlay)) l2.remove(key);
+        }
+    }
+
+    /**
+     * @return true if the tile is of the same pollutant as the overlay, but of another model run
+     */
+    private static boolean isSuperseded(TileKey key, OverlayKey overlay) {
+        return key.overlay().pollutant() == overlay.pollutant() && !key.overlay().model().isSameRun(overlay.model());
+    }
+
+    /**
+     * Shrinks the cache when the system is low on memory, see {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * The tiles trimmed from L1 are removed rather than evicted, so they are not compressed into L2, that's the opposite of what the system asks for.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            removeFromL1(0);
+            l2.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            //The map is not visible, keep only the compressed tiles
+            removeFromL1(0);
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) l2.trimToSize(l2.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            removeFromL1(l1.maxSize() / 2);
+            l2.trimToSize(l2.maxSize() / 2);
+        }
+        synchronized (pending) {
+            pending.clear();
+        }
+        Log.i(LOG_TAG, "Trimmed the tile cache at level " + level + ". " + getStats());
+    }
+
+    /**
+     * Removes the least recently used tiles of L1 until it fits in a size.
+     */
+    private void removeFromL1(int size) {
+        //The snapshot is ordered from the least recently used tile
+        for (TileKey key : l1.snapshot().keySet()) {
+            if (l1.size() <= size) break;
+            l1.remove(key);
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(l1Hits.get(), l2Hits.get(), misses.get(), l1.size(), l2.size(), l1.evictionCount(), l2.evictionCount());
+    }
+
+    /**
+     * Compresses an uncompressed tile, for L2 and for the {@link DiskTileCache}.
+     *
+     * @return the compressed tile, or the uncompressed one if it failed
+     */
+    static byte[] compress(byte[] bmp) {
+        try {
+            //Only called from the background threads of the caches, never while a tile is rendered on the same thread
+            final TileBuffers buffers = TileBuffers.get();
+            final int[] argb = buffers.overlayPixels;
+            ByteBuffer.wrap(bmp, bmp.length - argb.length * 4, argb.length * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(argb);
+
+            final Bitmap bitmap = buffers.getBitmap();
+            bitmap.setPixels(argb, 0, MAP_TILE_SIZE, 0, 0, MAP_TILE_SIZE, MAP_TILE_SIZE);
+            final ByteArrayOutputStream baos = buffers.compressed;
+            baos.reset();
+            if (bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS, 80, baos)) return baos.toByteArray();
+            Log.w(LOG_TAG, "Failed to compress map tile.");
+        } catch (Throwable t) {
+            Log.e(LOG_TAG, "Failed to compress map tile.\n" + StackTraceCompactor.getCompactStackTrace(t));
+        }
+        return bmp;
+    }
+}
@@ -0,0 +1,229 @@
+package com.dbf.aqhi.map;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.dbf.utils.stacktrace.StackTraceCompactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caches the warp of each map tile, the grid position of the corners of its blocks, see {@link OverlayTileProvider}.
+ * The warp only depends on the map projection and on the geometry of the grid, which is the same for every pollutant and model run.
+ * So switching pollutants, or receiving a new model run, only needs a table lookup instead of computing the projection again.
+ * <p>
+ * The warps are kept in memory, and in a memory-mapped file in the cache directory, so they survive restarts of the app.
+ * The file is opened by the first access to the cache, from a tile rendering thread, never by the thread creating the cache.
+ * The file is a fixed size direct-mapped table: each tile has a single slot, shared with other tiles, identified by a tag.
+ * There is a single file at a time, for the geometry of the most recent grid.
+ */
+public class WarpCache {
+    private static final String LOG_TAG = "WarpCache";
+
+    //Increment when the warp computation or the file layout changes
+    private static final int VERSION = 3;
+    private static final int MAGIC = 0x57415250; //WARP
+
+    private static final String FILE_PREFIX = "warp_";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final int MEMORY_TILES = 512; //About 1.3MB, the lattices are stored as floats
+    private static final int FILE_SLOTS = 4096; //About 9.6MB
+
+    private static final int HEADER_SIZE = 32;
+    private static final int LATTICE_POINTS = OverlayTileProvider.LATTICE_SIZE * OverlayTileProvider.LATTICE_SIZE;
+    private static final int BLOCK_COUNT = OverlayTileProvider.BLOCKS_PER_TILE * OverlayTileProvider.BLOCKS_PER_TILE;
+    private static final int EXACT_WORDS = (BLOCK_COUNT + 63) >>> 6;
+    private static final int SLOT_SIZE = 8 + LATTICE_POINTS * 2 * 4 + EXACT_WORDS * 8; //Tag, lattice, exact block bits
+
+    private static volatile File cacheDir;
+    private static WarpCache current; //Geometry of the most recent grid
+
+    private final long geometryHash;
+    private final File dir; //Null for memory only
+    private final LruCache<Long, Tile> memoryCache = new LruCache<>(MEMORY_TILES);
+    private MappedByteBuffer file; //Null if the file can't be used, or until it is opened
+    private boolean fileOpened;
+
+    /**
+     * Warp of a single map tile, at the full resolution of the grid.
+     */
+    public static class Tile {
+        //Grid position of the corners of the blocks, in row-major order, NaN if unknown.
+        //Floats keep about 1/10000 of a grid cell of precision, which is plenty.
+        final float[] gridX;
+        final float[] gridY;
+        final boolean[] blockIsExact; //Blocks that can't be interpolated from the lattice
+
+        Tile(float[] gridX, float[] gridY, boolean[] blockIsExact) {
+            if (gridX.length != LATTICE_POINTS || gridY.length != LATTICE_POINTS || blockIsExact.length != BLOCK_COUNT)
+                throw new IllegalArgumentException("Invalid tile warp size.");
+            this.gridX = gridX;
+            this.gridY = gridY;
+            this.blockIsExact = blockIsExact;
+        }
+    }
+
+    private WarpCache(long geometryHash) {
+        this.geometryHash = geometryHash;
+        this.dir = cacheDir;
+    }
+
+    /**
+     * Opens the file on first use, so the disk is only accessed by the tile rendering threads.
+     * Must be called while holding the monitor.
+     *
+     * @return the mapped file, or null if it can't be used
+     */
+    private MappedByteBuffer getFile() {
+        if (!fileOpened) {
+            fileOpened = true;
+            if (null != dir) {
+                try {
+                    file = openFile(dir, geometryHash);
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, "Failed to open the warp cache file, using memory only.\n" + StackTraceCompactor.getCompactStackTrace(e));
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Sets the directory of the cache file. Until it is set, the warps are only cached in memory.
+     */
+    public static void init(File dir) {
+        cacheDir = dir;
+    }
+
+    /**
+     * Returns the cache of a grid geometry, creating it if needed. The cache of any other geometry is discarded.
+     *
+     * @param geometryHash hash of every parameter of the transformation from map pixels to grid indices, see {@link #hash(double...)}
+     */
+    public static synchronized WarpCache forGeometry(long geometryHash) {
+        if (null == current || current.geometryHash != geometryHash) current = new WarpCache(geometryHash);
+        return current;
+    }
+
+    /**
+     * Hashes the parameters of a transformation, along with the version of the warp computation.
+     */
+    public static long hash(double... params) {
+        long hash = VERSION;
+        for (double param : params) {
+            hash = hash * 1_000_003L + Double.doubleToLongBits(param);
+        }
+        return hash;
+    }
+
+    private static long getTag(int zoomLvl, int row, int col) {
+        //0 is an empty slot
+        return (((long) zoomLvl << 48) | ((long) row << 24) | col) + 1;
+    }
+
+    /**
+     * @return the warp of a tile, or null if it is not cached
+     */
+    public Tile get(int zoomLvl, int row, int col) {
+        final long tag = getTag(zoomLvl, row, col);
+        Tile tile = memoryCache.get(tag);
+        if (null != tile) return tile;
+
+        tile = readSlot(tag);
+        if (null != tile) memoryCache.put(tag, tile);
+        return tile;
+    }
+
+    public void put(int zoomLvl, int row, int col, Tile tile) {
+        final long tag = getTag(zoomLvl, row, col);
+        memoryCache.put(tag, tile);
+        writeSlot(tag, tile);
+    }
+
+    private static int getSlotOffset(long tag) {
+        //Spread neighbouring tiles over different slots
+        final long mixed = tag * 0x9E3779B97F4A7C15L;
+        return HEADER_SIZE + (int) ((mixed >>> 32) % FILE_SLOTS) * SLOT_SIZE;
+    }
+
+    private synchronized Tile readSlot(long tag) {
+        final MappedByteBuffer file = getFile();
+        if (null == file) return null;
+        final int offset = getSlotOffset(tag);
+        if (file.getLong(offset) != tag) return null; //Empty, or another tile
+
+        final float[] gridX = new float[LATTICE_POINTS];
+        final float[] gridY = new float[LATTICE_POINTS];
+        int position = offset + 8;
+        for (int i = 0; i < LATTICE_POINTS; i++, position += 8) {
+            gridX[i] = file.getFloat(position);
+            gridY[i] = file.getFloat(position + 4);
+        }
+        final boolean[] blockIsExact = new boolean[BLOCK_COUNT];
+        for (int w = 0; w < EXACT_WORDS; w++, position += 8) {
+            final long word = file.getLong(position);
+            for (int b = w << 6; b < Math.min(BLOCK_COUNT, (w + 1) << 6); b++) {
+                blockIsExact[b] = (word & (1L << b)) != 0;
+            }
+        }
+        return new Tile(gridX, gridY, blockIsExact);
+    }
+
+    private synchronized void writeSlot(long tag, Tile tile) {
+        final MappedByteBuffer file = getFile();
+        if (null == file) return;
+        final int offset = getSlotOffset(tag);
+        file.putLong(offset, 0); //Invalidate the slot while it is written
+
+        int position = offset + 8;
+        for (int i = 0; i < LATTICE_POINTS; i++, position += 8) {
+            file.putFloat(position, tile.gridX[i]);
+            file.putFloat(position + 4, tile.gridY[i]);
+        }
+        for (int w = 0; w < EXACT_WORDS; w++, position += 8) {
+            long word = 0;
+            for (int b = w << 6; b < Math.min(BLOCK_COUNT, (w + 1) << 6); b++) {
+                if (tile.blockIsExact[b]) word |= 1L << b;
+            }
+            file.putLong(position, word);
+        }
+        file.putLong(offset, tag);
+    }
+
+    private static MappedByteBuffer openFile(File dir, long geometryHash) throws IOException {
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to create the directory " + dir);
+
+        //Only keep the file of the current geometry
+        final String name = FILE_PREFIX + Long.toHexString(geometryHash) + FILE_SUFFIX;
+        final File[] files = dir.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                if (f.getName().startsWith(FILE_PREFIX) && !f.getName().equals(name)) f.delete();
+            }
+        }
+
+        final long size = HEADER_SIZE + (long) FILE_SLOTS * SLOT_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw")) {
+            final boolean valid = raf.length() == size && raf.readInt() == MAGIC && raf.readInt() == VERSION
+                    && raf.readLong() == geometryHash && raf.readInt() == FILE_SLOTS;
+            if (!valid) {
+                //Start over with empty slots
+                Log.i(LOG_TAG, "Creating the warp cache file " + name + ".");
+                raf.setLength(0);
+                raf.setLength(size);
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(geometryHash);
+                raf.writeInt(FILE_SLOTS);
+            }
+            //The mapping remains valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}